@@ -0,0 +1,400 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk;
+
+import net.hydromatic.optiq.impl.splunk.util.StringUtils;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.reltype.*;
+import org.eigenbase.rex.*;
+import org.eigenbase.sql.fun.SqlStdOperatorTable;
+import org.eigenbase.sql.type.SqlTypeName;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Planner rule that pushes an aggregation into a Splunk search as
+ * "| stats".
+ *
+ * <p>Supports COUNT(*), COUNT(x), COUNT(DISTINCT x) (which becomes "dc"),
+ * SUM, AVG, MIN and MAX. Splunk then sends one row per group, rather than
+ * every event. The aggregated values arrive as strings, so the rule puts a
+ * {@link ProjectRel} on top of the search to convert them to the types that
+ * the aggregation returns.</p>
+ *
+ * <p>MIN and MAX are not pushed on a string argument (and every Splunk
+ * field is a string): Splunk's "min" and "max" compare values that look
+ * like numbers numerically, so Splunk's max of '900' and '1000' is '1000',
+ * whereas SQL's is '900'.</p>
+ *
+ * <p>Unlike SQL, Splunk's "stats ... by" ignores events in which a group
+ * field is missing, rather than grouping them under null; so the search
+ * first fills missing group fields with {@link #NULL_VALUE}, and the
+ * converting projection turns that value back into null. The rule does not
+ * push an aggregation that also uses a group field as an argument, because
+ * the argument would see the filled-in value.</p>
+ *
+ * <p>A group key such as "FLOOR(_time TO HOUR)" becomes
+ * "| bin _time span=1h" before the "| stats"; the search returns the start
+ * of each bucket as a TIMESTAMP. Splunk aligns day, month and year buckets
+ * to the time zone of the Splunk user, so those agree with Optiq only if
+ * that time zone is UTC.</p>
+ */
+public class SplunkAggregateRule extends RelOptRule {
+  private static final Logger LOGGER =
+      StringUtils.getClassTracer(SplunkAggregateRule.class);
+
+  /** Prefix of the names that the search gives to aggregated values. */
+  static final String AGG_PREFIX = "optiq_agg";
+
+  /** Value that "| fillnull" gives a missing group field, so that Splunk
+   * groups the events that lack the field, as SQL groups nulls. */
+  static final String NULL_VALUE = "__optiq_null__";
+
+  /** Splunk spans of the time units that "FLOOR(_time TO unit)" may
+   * use. */
+  private static final Map<String, String> SPANS =
+      ImmutableMap.<String, String>builder()
+          .put("SECOND", "1s")
+          .put("MINUTE", "1m")
+          .put("HOUR", "1h")
+          .put("DAY", "1d")
+          .put("MONTH", "1mon")
+          .put("YEAR", "1y")
+          .build();
+
+  public static final SplunkAggregateRule INSTANCE =
+      new SplunkAggregateRule(
+          new RelOptRuleOperand(
+              AggregateRel.class,
+              new RelOptRuleOperand(SplunkTableAccessRel.class)),
+          "SplunkAggregateRule");
+
+  /** Instance that matches an aggregate on a projection, so that the
+   * aggregate can group by a time bucket such as "FLOOR(_time TO HOUR)". */
+  public static final SplunkAggregateRule ON_PROJECT =
+      new SplunkAggregateRule(
+          new RelOptRuleOperand(
+              AggregateRel.class,
+              new RelOptRuleOperand(
+                  ProjectRel.class,
+                  new RelOptRuleOperand(SplunkTableAccessRel.class))),
+          "SplunkAggregateRule: on proj");
+
+  private SplunkAggregateRule(RelOptRuleOperand operand, String id) {
+    super(operand, id);
+  }
+
+  public void onMatch(RelOptRuleCall call) {
+    final AggregateRel aggregate = (AggregateRel) call.rels[0];
+    final ProjectRel project =
+        call.rels.length == 3 ? (ProjectRel) call.rels[1] : null;
+    final SplunkTableAccessRel splunkRel =
+        (SplunkTableAccessRel) call.rels[call.rels.length - 1];
+    if (splunkRel.outputRowType != null) {
+      // Already aggregated.
+      return;
+    }
+    final List<RelDataTypeField> inputFields =
+        splunkRel.getRowType().getFieldList();
+
+    final StringBuilder buf = new StringBuilder(" | stats");
+    final List<String> fieldList = new ArrayList<String>();
+    final Set<String> argNames = new HashSet<String>();
+    int i = 0;
+    for (AggregateCall aggCall : aggregate.getAggCallList()) {
+      final String function = function(aggCall);
+      if (function == null) {
+        LOGGER.fine("cannot push " + aggCall);
+        return;
+      }
+      final String name = AGG_PREFIX + i++;
+      buf.append(i > 1 ? ", " : " ").append(function);
+      if (!aggCall.getArgList().isEmpty()) {
+        final RelDataTypeField field =
+            field(project, inputFields, aggCall.getArgList().get(0));
+        if (field == null || isTime(field)) {
+          return;
+        }
+        if ((function.equals("min") || function.equals("max"))
+            && SqlTypeName.charTypes.contains(
+                field.getType().getSqlTypeName())) {
+          LOGGER.fine("cannot push " + aggCall + "; string ordering");
+          return;
+        }
+        argNames.add(field.getName());
+        buf.append('(')
+            .append(SplunkPushDownRule.searchEscape(field.getName()))
+            .append(')');
+      }
+      buf.append(" AS ").append(name);
+      fieldList.add(name);
+    }
+    if (fieldList.isEmpty()) {
+      // SELECT DISTINCT. Splunk needs an aggregate function; the result
+      // does not use it.
+      buf.append(" count");
+    }
+    final List<String> groupNames = new ArrayList<String>();
+    final BitSet nullable = new BitSet();
+    String span = null;
+    final BitSet groupSet = aggregate.getGroupSet();
+    for (int j = groupSet.nextSetBit(0); j >= 0;
+         j = groupSet.nextSetBit(j + 1)) {
+      if (project != null) {
+        final String span2 = span(project.getProjects().get(j), inputFields);
+        if (span2 != null) {
+          if (span != null) {
+            // Splunk can only bin "_time" one way.
+            return;
+          }
+          span = span2;
+          groupNames.add("_time");
+          continue;
+        }
+      }
+      final RelDataTypeField field = field(project, inputFields, j);
+      if (field == null || isTime(field)) {
+        return;
+      }
+      if (argNames.contains(field.getName())) {
+        // The aggregate would see the filled-in value.
+        return;
+      }
+      if (field.getType().isNullable()) {
+        nullable.set(groupNames.size());
+      }
+      groupNames.add(field.getName());
+    }
+    final List<String> fillNames = new ArrayList<String>();
+    for (int k = nullable.nextSetBit(0); k >= 0;
+         k = nullable.nextSetBit(k + 1)) {
+      fillNames.add(groupNames.get(k));
+    }
+    buf.insert(0, fillNull(fillNames));
+    if (!groupNames.isEmpty()) {
+      buf.append(" by");
+      for (String groupName : groupNames) {
+        buf.append(' ').append(SplunkPushDownRule.searchEscape(groupName));
+      }
+    }
+    if (span != null) {
+      buf.insert(0, " | bin _time span=" + span);
+    }
+    fieldList.addAll(0, groupNames);
+    LOGGER.fine(description + ": " + buf);
+
+    final SplunkTableAccessRel rel =
+        new SplunkTableAccessRel(
+            splunkRel.getCluster(),
+            splunkRel.getTable(),
+            splunkRel.splunkTable,
+            splunkRel.search + buf,
+            splunkRel.earliest,
+            splunkRel.latest,
+            fieldList,
+            stringRowType(
+                aggregate.getCluster().getTypeFactory(), fieldList),
+            null,
+            splunkRel.selectivity);
+
+    call.transformTo(convert(rel, aggregate.getRowType(), nullable));
+  }
+
+  /** Returns a "| fillnull" command that gives missing fields the value
+   * {@link #NULL_VALUE}, or an empty string if there are no fields. */
+  static String fillNull(List<String> fieldNames) {
+    if (fieldNames.isEmpty()) {
+      return "";
+    }
+    final StringBuilder buf =
+        new StringBuilder(" | fillnull value=").append(NULL_VALUE);
+    for (String fieldName : fieldNames) {
+      buf.append(' ').append(SplunkPushDownRule.searchEscape(fieldName));
+    }
+    return buf.toString();
+  }
+
+  /** Returns the field of the search that a field of the aggregate's input
+   * refers to, or null if the projection computes it. */
+  private static RelDataTypeField field(
+      ProjectRel project, List<RelDataTypeField> fields, int i) {
+    if (project == null) {
+      return fields.get(i);
+    }
+    final RexNode node = project.getProjects().get(i);
+    if (node instanceof RexInputRef) {
+      return fields.get(((RexInputRef) node).getIndex());
+    }
+    return null;
+  }
+
+  /** Returns the Splunk span of a time bucket expression, such as "1h" for
+   * "FLOOR(_time TO HOUR)", or null if the expression is not a time
+   * bucket. */
+  private static String span(RexNode node, List<RelDataTypeField> fields) {
+    if (!(node instanceof RexCall)) {
+      return null;
+    }
+    final RexCall call = (RexCall) node;
+    if (!call.getOperator().getName().equals("FLOOR")
+        || call.getOperands().size() != 2
+        || !(call.getOperands().get(0) instanceof RexInputRef)
+        || !(call.getOperands().get(1) instanceof RexLiteral)) {
+      return null;
+    }
+    final RelDataTypeField field =
+        fields.get(((RexInputRef) call.getOperands().get(0)).getIndex());
+    if (!field.getName().equals("_time") || !isTime(field)) {
+      return null;
+    }
+    final Object unit = ((RexLiteral) call.getOperands().get(1)).getValue();
+    return SPANS.get(String.valueOf(unit));
+  }
+
+  /** Creates the row type of a search whose output is not a subset of the
+   * table's fields. Every field of the output is a string, except "_time",
+   * which the search converts to a TIMESTAMP. */
+  static RelDataType stringRowType(
+      RelDataTypeFactory typeFactory, List<String> fieldList) {
+    final RelDataType stringType = typeFactory.createJavaType(String.class);
+    final RelDataType timestampType =
+        typeFactory.createTypeWithNullability(
+            typeFactory.createSqlType(SqlTypeName.TIMESTAMP), true);
+    final RelDataTypeFactory.FieldInfoBuilder builder =
+        new RelDataTypeFactory.FieldInfoBuilder();
+    for (String field : fieldList) {
+      builder.add(
+          field, field.equals("_time") ? timestampType : stringType);
+    }
+    return typeFactory.createStructType(builder);
+  }
+
+  /** Creates a {@link ProjectRel} that converts each field of a search,
+   * all of which are strings, to the type of the corresponding field of a
+   * given row type. */
+  static RelNode convert(SplunkTableAccessRel rel, RelDataType rowType) {
+    return convert(rel, rowType, new BitSet());
+  }
+
+  /** Creates a {@link ProjectRel} that converts each field of a search to
+   * the type of the corresponding field of a given row type, and converts
+   * {@link #NULL_VALUE} in given fields to null. */
+  static RelNode convert(
+      SplunkTableAccessRel rel, RelDataType rowType, BitSet nullFields) {
+    final RexBuilder rexBuilder = rel.getCluster().getRexBuilder();
+    final List<RexNode> projects = new ArrayList<RexNode>();
+    final List<RelDataTypeField> fields = rel.getRowType().getFieldList();
+    final List<RelDataTypeField> targetFields = rowType.getFieldList();
+    for (int j = 0; j < targetFields.size(); j++) {
+      final RexNode ref =
+          rexBuilder.makeInputRef(fields.get(j).getType(), j);
+      final RelDataType type = targetFields.get(j).getType();
+      RexNode node = convert(rexBuilder, ref, type);
+      if (nullFields.get(j)) {
+        node =
+            rexBuilder.makeCall(
+                SqlStdOperatorTable.caseOperator,
+                rexBuilder.makeCall(
+                    SqlStdOperatorTable.equalsOperator,
+                    ref,
+                    rexBuilder.makeLiteral(NULL_VALUE)),
+                rexBuilder.makeCast(type, rexBuilder.constantNull()),
+                node);
+      }
+      projects.add(node);
+    }
+    return new ProjectRel(
+        rel.getCluster(),
+        rel,
+        projects,
+        rowType,
+        ProjectRelBase.Flags.Boxed,
+        rel.getCollationList());
+  }
+
+  /** Returns the Splunk function that computes an aggregate call, or null
+   * if there is none. */
+  private static String function(AggregateCall aggCall) {
+    final String name = aggCall.getAggregation().getName();
+    final int argCount = aggCall.getArgList().size();
+    if (name.equals("COUNT")) {
+      if (argCount == 0) {
+        return "count";
+      }
+      if (argCount == 1) {
+        return aggCall.isDistinct() ? "dc" : "count";
+      }
+      return null;
+    }
+    if (argCount != 1) {
+      return null;
+    }
+    if (name.equals("MIN")) {
+      return "min";
+    }
+    if (name.equals("MAX")) {
+      return "max";
+    }
+    if (aggCall.isDistinct()) {
+      return null;
+    }
+    if (name.equals("SUM")) {
+      return "sum";
+    }
+    if (name.equals("AVG")) {
+      return "avg";
+    }
+    return null;
+  }
+
+  /** Returns whether a field is a TIMESTAMP. Splunk would format its
+   * aggregated values as strings that a cast cannot convert back. */
+  static boolean isTime(RelDataTypeField field) {
+    return field.getType().getSqlTypeName() == SqlTypeName.TIMESTAMP;
+  }
+
+  /** Converts a string field to a given type. Splunk sends an empty string
+   * if there is no value (say the SUM of an empty group), which becomes a
+   * null number. */
+  private static RexNode convert(
+      RexBuilder rexBuilder, RexNode ref, RelDataType type) {
+    if (ref.getType().equals(type)) {
+      return ref;
+    }
+    final RexNode cast = rexBuilder.makeCast(type, ref);
+    if (!type.isNullable()
+        || !SqlTypeName.numericTypes.contains(type.getSqlTypeName())) {
+      return cast;
+    }
+    return rexBuilder.makeCall(
+        SqlStdOperatorTable.caseOperator,
+        rexBuilder.makeCall(
+            SqlStdOperatorTable.equalsOperator,
+            ref,
+            rexBuilder.makeLiteral("")),
+        rexBuilder.makeNullLiteral(type.getSqlTypeName()),
+        cast);
+  }
+}
+
+// End SplunkAggregateRule.java
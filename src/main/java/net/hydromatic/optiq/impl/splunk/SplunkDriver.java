@@ -20,22 +20,96 @@ package net.hydromatic.optiq.impl.splunk;
 import net.hydromatic.optiq.MutableSchema;
 import net.hydromatic.optiq.Schema;
 import net.hydromatic.optiq.impl.jdbc.JdbcSchema;
+import net.hydromatic.optiq.impl.splunk.search.SearchResultDecoders;
+import net.hydromatic.optiq.impl.splunk.search.SearchScheduler;
+import net.hydromatic.optiq.impl.splunk.search.SessionKeyCache;
 import net.hydromatic.optiq.impl.splunk.search.SplunkConnection;
+import net.hydromatic.optiq.impl.splunk.util.HttpConnectionPool;
+import net.hydromatic.optiq.impl.splunk.util.NioHttpClient;
+import net.hydromatic.optiq.impl.splunk.util.SslSocketFactories;
+import net.hydromatic.optiq.impl.splunk.util.StringUtils;
+import net.hydromatic.optiq.impl.splunk.util.TrustAllSslSocketFactory;
 import net.hydromatic.optiq.jdbc.*;
 
 import org.apache.commons.dbcp.BasicDataSource;
 
+import java.io.IOException;
 import java.net.URL;
+import java.security.GeneralSecurityException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
+import javax.net.ssl.SSLSocketFactory;
+
 /**
  * JDBC driver for Splunk.
  *
  * <p>It accepts connect strings that start with "jdbc:splunk:".</p>
+ *
+ * <p>The "url" property may be a comma-separated list of the URLs of
+ * several search heads, such as the members of a search head cluster; each
+ * search goes to the least loaded head that is up (see
+ * {@link net.hydromatic.optiq.impl.splunk.search.SearchHead}).</p>
+ *
+ * <p>Connections made by the same driver instance share a pool of HTTP
+ * connections, and hence the cache of TLS sessions. By default the driver
+ * trusts any certificate; to verify the server's certificate, set the
+ * "trustStore" (and optionally "trustStorePassword") property.</p>
+ *
+ * <p>If the "transport" property is "nio", exports are multiplexed over a
+ * few selector threads (set by the "selectorThreads" property, default 2)
+ * shared by all connections made by this driver instance, rather than
+ * occupying a thread each. The NIO transport does not speak TLS, so every
+ * URL must be "http"; otherwise the connection fails.</p>
+ *
+ * <p>If the "compress" property is true, the driver asks Splunk to
+ * compress search results with gzip.</p>
+ *
+ * <p>The "outputMode" property sets the format in which Splunk sends search
+ * results: "csv" (the default) or "json_rows". Which is faster depends on
+ * the data; {@code SplunkDecoderBenchmark} compares them.</p>
+ *
+ * <p>If the "prefetch" property is greater than 0, search results are read
+ * and decoded in a background thread, up to that many batches (of
+ * "prefetchBatchSize" rows, default 256) ahead of the consumer.</p>
+ *
+ * <p>If the "slices" property is greater than 1, a search over a long time
+ * range is split into up to that many searches over slices of the range,
+ * each at least "minSliceSeconds" (default 3600) long, which run
+ * concurrently.</p>
+ *
+ * <p>Searches, and slices of searches, start only when Splunk can take
+ * them: at most "maxSearches" at a time per connection, and at most
+ * "maxSearchesPerHead" at a time per search head among all connections
+ * made by this driver instance with the same limit (by default, neither is
+ * limited). Waiting searches start in order of "priority" ("interactive",
+ * the default, before "batch"), then in order of arrival; a search that
+ * waits more than "queueTimeoutSeconds" fails (see
+ * {@link net.hydromatic.optiq.impl.splunk.search.SearchScheduler}).</p>
+ *
+ * <p>If the "mode" property is "job", each search runs as a search job
+ * rather than by export; when the job is done, its results are read in
+ * pages of "pageSize" rows (default 10000), up to "pageThreads" (default
+ * 4) at a time. Identical searches reuse a finished job until it
+ * expires.</p>
  */
 public class SplunkDriver extends UnregisteredDriver {
+  /** Connection pools, keyed by a digest of trust store path and password;
+   * the trust-all pool has key "". */
+  private final Map<String, HttpConnectionPool> pools =
+      new HashMap<String, HttpConnectionPool>();
+
+  /** Schedulers, keyed by their limit of searches per search head. */
+  private final Map<Integer, SearchScheduler> schedulers =
+      new HashMap<Integer, SearchScheduler>();
+
+  private NioHttpClient nioClient;
+
   protected SplunkDriver() {
     super();
   }
@@ -63,7 +137,10 @@ public class SplunkDriver extends UnregisteredDriver {
         throw new IllegalArgumentException(
             "Must specify 'url' property");
       }
-      URL url2 = new URL(url1);
+      final List<URL> urls = new ArrayList<URL>();
+      for (String s : url1.split(",")) {
+        urls.add(new URL(s.trim()));
+      }
       String user = info.getProperty("user");
       if (user == null) {
         throw new IllegalArgumentException(
@@ -74,7 +151,79 @@ public class SplunkDriver extends UnregisteredDriver {
         throw new IllegalArgumentException(
             "Must specify 'password' property");
       }
-      splunkConnection = new SplunkConnection(url2, user, password);
+      final HttpConnectionPool pool =
+          getPool(
+              info.getProperty("trustStore"),
+              info.getProperty("trustStorePassword"));
+      splunkConnection =
+          new SplunkConnection(
+              urls, user, password, pool, SessionKeyCache.getDefault());
+      splunkConnection.setCompress(
+          StringUtils.parseBoolean(
+              info.getProperty("compress"), false, false));
+      final String outputMode = info.getProperty("outputMode");
+      if (outputMode != null) {
+        splunkConnection.setDecoder(SearchResultDecoders.get(outputMode));
+      }
+      final String prefetch = info.getProperty("prefetch");
+      if (prefetch != null) {
+        final String batchSize = info.getProperty("prefetchBatchSize");
+        splunkConnection.setPrefetch(
+            Integer.parseInt(prefetch),
+            batchSize == null ? 256 : Integer.parseInt(batchSize));
+      }
+      final String slices = info.getProperty("slices");
+      if (slices != null) {
+        final String minSliceSeconds = info.getProperty("minSliceSeconds");
+        splunkConnection.setSlicing(
+            Integer.parseInt(slices),
+            1000L * (minSliceSeconds == null
+                ? 3600
+                : Integer.parseInt(minSliceSeconds)));
+      }
+      if ("job".equals(info.getProperty("mode"))) {
+        final String pageSize = info.getProperty("pageSize");
+        final String pageThreads = info.getProperty("pageThreads");
+        splunkConnection.setJobMode(
+            pageSize == null ? 10000 : Integer.parseInt(pageSize),
+            pageThreads == null ? 4 : Integer.parseInt(pageThreads));
+      }
+      final String maxSearchesPerHead =
+          info.getProperty("maxSearchesPerHead");
+      splunkConnection.setScheduler(
+          getScheduler(
+              maxSearchesPerHead == null
+                  ? 0
+                  : Integer.parseInt(maxSearchesPerHead)));
+      final String maxSearches = info.getProperty("maxSearches");
+      if (maxSearches != null) {
+        splunkConnection.setMaxActiveSearches(Integer.parseInt(maxSearches));
+      }
+      final String priority = info.getProperty("priority");
+      if (priority != null) {
+        splunkConnection.setPriority(
+            SearchScheduler.Priority.valueOf(priority.toUpperCase()));
+      }
+      final String queueTimeoutSeconds =
+          info.getProperty("queueTimeoutSeconds");
+      if (queueTimeoutSeconds != null) {
+        splunkConnection.setQueueTimeout(
+            1000L * Integer.parseInt(queueTimeoutSeconds));
+      }
+      if ("nio".equals(info.getProperty("transport"))) {
+        for (URL headUrl : urls) {
+          if (!headUrl.getProtocol().equals("http")) {
+            throw new IllegalArgumentException(
+                "transport 'nio' requires an http URL, but got " + headUrl);
+          }
+        }
+        final String selectorThreads = info.getProperty("selectorThreads");
+        splunkConnection.setNioClient(
+            getNioClient(
+                selectorThreads == null
+                    ? 2
+                    : Integer.parseInt(selectorThreads)));
+      }
     } catch (Exception e) {
       throw new SQLException("Cannot connect", e);
     }
@@ -115,6 +264,60 @@ public class SplunkDriver extends UnregisteredDriver {
 
     return connection;
   }
+
+  /** Returns the NIO client, creating it if necessary. The thread count of
+   * the first call wins. */
+  private synchronized NioHttpClient getNioClient(int threadCount)
+      throws IOException {
+    if (nioClient == null) {
+      nioClient = new NioHttpClient(threadCount, 1 << 20);
+    }
+    return nioClient;
+  }
+
+  /** Returns the scheduler for a given limit of searches per search head,
+   * creating it if necessary. */
+  private synchronized SearchScheduler getScheduler(int maxSearchesPerHead) {
+    SearchScheduler scheduler = schedulers.get(maxSearchesPerHead);
+    if (scheduler == null) {
+      scheduler = new SearchScheduler(maxSearchesPerHead);
+      schedulers.put(maxSearchesPerHead, scheduler);
+    }
+    return scheduler;
+  }
+
+  /** Returns the connection pool for a given trust store and password,
+   * creating it if necessary.
+   *
+   * <p>The key includes the password, as {@link SessionKeyCache}'s does, so
+   * a connection with a different (perhaps wrong) password loads the trust
+   * store itself rather than getting another connection's factory. Without
+   * a trust store, the pool's trust-all factory, and so its TLS session
+   * cache, belongs to this driver.</p> */
+  private synchronized HttpConnectionPool getPool(
+      String trustStore, String trustStorePassword)
+      throws GeneralSecurityException, IOException {
+    final String key =
+        trustStore == null
+            ? ""
+            : StringUtils.digest(
+                trustStore,
+                trustStorePassword == null ? "-" : "+",
+                trustStorePassword == null ? "" : trustStorePassword);
+    HttpConnectionPool pool = pools.get(key);
+    if (pool == null) {
+      final SSLSocketFactory sslSocketFactory =
+          trustStore == null
+              ? TrustAllSslSocketFactory.newSSLSocketFactory()
+              : SslSocketFactories.fromTrustStore(
+                  trustStore, trustStorePassword);
+      pool =
+          new HttpConnectionPool(
+              32, 30000, sslSocketFactory, trustStore != null);
+      pools.put(key, pool);
+    }
+    return pool;
+  }
 }
 
 // End SplunkDriver.java
@@ -0,0 +1,125 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk;
+
+import net.hydromatic.optiq.impl.splunk.util.StringUtils;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.reltype.RelDataTypeField;
+import org.eigenbase.rex.*;
+import org.eigenbase.sql.type.SqlTypeName;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Planner rule that pushes a projection that computes values, such as
+ * <code>SELECT LOWER(host), bytes * 8 FROM splunk</code>, into a Splunk
+ * search as "| eval".
+ *
+ * <p>Splunk computes each value next to the data, and sends only the fields
+ * that the projection returns, rather than every field that the
+ * expressions use. The computed values arrive as strings, so the rule puts
+ * a {@link ProjectRel} on top of the search to convert them to the types
+ * of the projection.</p>
+ *
+ * <p>(Projections that only choose fields are handled by
+ * {@link SplunkPushDownRule}.)</p>
+ */
+public class SplunkEvalRule extends RelOptRule {
+  private static final Logger LOGGER =
+      StringUtils.getClassTracer(SplunkEvalRule.class);
+
+  /** Prefix of the names that the search gives to computed values. */
+  static final String EVAL_PREFIX = "optiq_eval";
+
+  public static final SplunkEvalRule INSTANCE = new SplunkEvalRule();
+
+  private SplunkEvalRule() {
+    super(
+        new RelOptRuleOperand(
+            ProjectRel.class,
+            new RelOptRuleOperand(SplunkTableAccessRel.class)),
+        "SplunkEvalRule");
+  }
+
+  public void onMatch(RelOptRuleCall call) {
+    final ProjectRel project = (ProjectRel) call.rels[0];
+    final SplunkTableAccessRel splunkRel =
+        (SplunkTableAccessRel) call.rels[1];
+    if (splunkRel.outputRowType != null) {
+      // The search's output is already converted by a projection.
+      return;
+    }
+    final List<RelDataTypeField> inputFields =
+        splunkRel.getRowType().getFieldList();
+    final SplunkEvalTranslator translator =
+        new SplunkEvalTranslator(inputFields);
+
+    final StringBuilder buf = new StringBuilder(" | eval");
+    final List<String> fieldList = new ArrayList<String>();
+    int i = 0;
+    for (RexNode node : project.getProjects()) {
+      final String name;
+      if (node instanceof RexInputRef) {
+        name = inputFields.get(((RexInputRef) node).getIndex()).getName();
+      } else {
+        if (node.getType().getSqlTypeName() == SqlTypeName.BOOLEAN) {
+          // Splunk's eval cannot assign a condition to a field.
+          return;
+        }
+        final String expression = translator.translate(node);
+        if (expression == null) {
+          LOGGER.fine("cannot push " + node);
+          return;
+        }
+        name = EVAL_PREFIX + i++;
+        buf.append(i > 1 ? ", " : " ")
+            .append(name).append('=').append(expression);
+      }
+      if (fieldList.contains(name)) {
+        // The search returns each field once.
+        return;
+      }
+      fieldList.add(name);
+    }
+    if (i == 0) {
+      // Nothing to compute.
+      return;
+    }
+    LOGGER.fine(description + ": " + buf);
+
+    final SplunkTableAccessRel rel =
+        new SplunkTableAccessRel(
+            splunkRel.getCluster(),
+            splunkRel.getTable(),
+            splunkRel.splunkTable,
+            splunkRel.search + buf,
+            splunkRel.earliest,
+            splunkRel.latest,
+            fieldList,
+            SplunkAggregateRule.stringRowType(
+                project.getCluster().getTypeFactory(), fieldList),
+            null,
+            splunkRel.selectivity);
+    call.transformTo(SplunkAggregateRule.convert(rel, project.getRowType()));
+  }
+}
+
+// End SplunkEvalRule.java
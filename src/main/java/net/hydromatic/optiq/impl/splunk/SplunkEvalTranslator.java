@@ -0,0 +1,265 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk;
+
+import org.eigenbase.reltype.RelDataTypeField;
+import org.eigenbase.rex.*;
+import org.eigenbase.sql.type.SqlTypeName;
+import org.eigenbase.util.NlsString;
+
+import java.util.List;
+
+/**
+ * Translates an expression to the language of Splunk's "eval" and "where"
+ * commands.
+ *
+ * <p>Translates field references, literals, arithmetic, comparisons, AND,
+ * OR, NOT, IS [NOT] NULL, LIKE, CASE, casts of strings to DOUBLE, FLOAT or
+ * REAL and of numbers to strings, casts to a wider type or a shorter
+ * VARCHAR, string concatenation, LOWER, UPPER, SUBSTRING, CHAR_LENGTH, ABS
+ * and MOD. Every operation is enclosed in parentheses, so the result does
+ * not depend on Splunk's precedence rules.</p>
+ *
+ * <p>Does not translate anything that Splunk would evaluate differently
+ * from SQL: integer division (Splunk always divides in floating point),
+ * ordering comparisons between strings (Splunk compares strings that look
+ * like numbers numerically), or expressions on "_time" (which Splunk
+ * represents as seconds). An expression that cannot be translated, or any
+ * part of it, yields null.</p>
+ */
+class SplunkEvalTranslator {
+  private final List<RelDataTypeField> fields;
+
+  /**
+   * Creates a SplunkEvalTranslator.
+   *
+   * @param fields Fields of the input to the expression
+   */
+  SplunkEvalTranslator(List<RelDataTypeField> fields) {
+    this.fields = fields;
+  }
+
+  /** Translates an expression, or returns null. */
+  public String translate(RexNode node) {
+    if (node instanceof RexInputRef) {
+      final RelDataTypeField field =
+          fields.get(((RexInputRef) node).getIndex());
+      if (SplunkAggregateRule.isTime(field)) {
+        return null;
+      }
+      return quoteField(field.getName());
+    }
+    if (node instanceof RexLiteral) {
+      return literal((RexLiteral) node);
+    }
+    if (!(node instanceof RexCall)) {
+      return null;
+    }
+    final RexCall call = (RexCall) node;
+    final List<RexNode> operands = call.getOperands();
+    switch (call.getOperator().getKind()) {
+    case AND:
+      return infix(operands, " AND ");
+    case OR:
+      return infix(operands, " OR ");
+    case NOT:
+      return function("NOT ", operands);
+    case IS_NULL:
+      return function("isnull", operands);
+    case IS_NOT_NULL:
+      return function("isnotnull", operands);
+    case EQUALS:
+      return infix(operands, " == ");
+    case NOT_EQUALS:
+      return infix(operands, " != ");
+    case LESS_THAN:
+      return ordering(operands, " < ");
+    case LESS_THAN_OR_EQUAL:
+      return ordering(operands, " <= ");
+    case GREATER_THAN:
+      return ordering(operands, " > ");
+    case GREATER_THAN_OR_EQUAL:
+      return ordering(operands, " >= ");
+    case LIKE:
+      // Splunk's like() uses SQL's wildcards, "%" and "_".
+      return operands.size() == 2 ? function("like", operands) : null;
+    case PLUS:
+      return infix(operands, " + ");
+    case MINUS:
+      return infix(operands, " - ");
+    case TIMES:
+      return infix(operands, " * ");
+    case DIVIDE:
+      return SqlTypeName.approxTypes.contains(call.getType().getSqlTypeName())
+          ? infix(operands, " / ")
+          : null;
+    case MINUS_PREFIX:
+      return function("-", operands);
+    case CASE:
+      return translateCase(operands);
+    case CAST:
+      return translateCast(call);
+    default:
+      break;
+    }
+    final String name = call.getOperator().getName();
+    if (name.equals("||")) {
+      return infix(operands, " . ");
+    }
+    if (name.equals("LOWER")) {
+      return function("lower", operands);
+    }
+    if (name.equals("UPPER")) {
+      return function("upper", operands);
+    }
+    if (name.equals("SUBSTRING")) {
+      // substr, like SUBSTRING, counts from 1.
+      return function("substr", operands);
+    }
+    if (name.equals("CHAR_LENGTH") || name.equals("CHARACTER_LENGTH")) {
+      return function("len", operands);
+    }
+    if (name.equals("ABS")) {
+      return function("abs", operands);
+    }
+    if (name.equals("MOD")) {
+      return infix(operands, " % ");
+    }
+    return null;
+  }
+
+  private String infix(List<RexNode> operands, String op) {
+    final StringBuilder buf = new StringBuilder("(");
+    for (int i = 0; i < operands.size(); i++) {
+      final String s = translate(operands.get(i));
+      if (s == null) {
+        return null;
+      }
+      if (i > 0) {
+        buf.append(op);
+      }
+      buf.append(s);
+    }
+    return buf.append(')').toString();
+  }
+
+  private String ordering(List<RexNode> operands, String op) {
+    for (RexNode operand : operands) {
+      if (SqlTypeName.charTypes.contains(
+          operand.getType().getSqlTypeName())) {
+        return null;
+      }
+    }
+    return infix(operands, op);
+  }
+
+  private String function(String name, List<RexNode> operands) {
+    final String args = infix(operands, ", ");
+    return args == null ? null : name + args;
+  }
+
+  /** Translates CASE WHEN c1 THEN v1 ... ELSE e END as
+   * "case(c1, v1, ..., true(), e)". */
+  private String translateCase(List<RexNode> operands) {
+    final StringBuilder buf = new StringBuilder("case(");
+    for (int i = 0; i < operands.size(); i++) {
+      if (i > 0) {
+        buf.append(", ");
+      }
+      if (i == operands.size() - 1 && i % 2 == 0) {
+        buf.append("true(), ");
+      }
+      final String s = translate(operands.get(i));
+      if (s == null) {
+        return null;
+      }
+      buf.append(s);
+    }
+    return buf.append(')').toString();
+  }
+
+  private String translateCast(RexCall call) {
+    final RexNode operand = call.getOperands().get(0);
+    final SqlTypeName from = operand.getType().getSqlTypeName();
+    final SqlTypeName to = call.getType().getSqlTypeName();
+    if (SplunkFilterTranslator.isValuePreserving(
+        operand.getType(), call.getType())) {
+      // Widening; SQL would not truncate the value.
+      return translate(operand);
+    }
+    if (SqlTypeName.numericTypes.contains(to)) {
+      // A narrowing numeric cast rounds or overflows by SQL's rules, which
+      // Splunk's round() and floor() do not follow; leave it to Optiq. So
+      // is a cast of a string to an exact type: tonumber("3.7") is 3.7,
+      // which the converting projection could not make an INTEGER.
+      if (SqlTypeName.charTypes.contains(from)
+          && SqlTypeName.approxTypes.contains(to)) {
+        return function("tonumber", call.getOperands());
+      }
+    } else if (to == SqlTypeName.VARCHAR) {
+      if (SqlTypeName.charTypes.contains(from)
+          && call.getType().getPrecision() >= 0) {
+        // Narrowing; SQL truncates the value.
+        final String s = translate(operand);
+        return s == null
+            ? null
+            : "substr(" + s + ", 1, " + call.getType().getPrecision() + ")";
+      }
+      if (SqlTypeName.numericTypes.contains(from)) {
+        return function("tostring", call.getOperands());
+      }
+    }
+    return null;
+  }
+
+  private static String literal(RexLiteral literal) {
+    final Object value = literal.getValue();
+    if (value == null) {
+      return "null()";
+    }
+    final SqlTypeName typeName = literal.getTypeName();
+    if (typeName == SqlTypeName.BOOLEAN) {
+      return (Boolean) value ? "true()" : "false()";
+    }
+    if (SqlTypeName.numericTypes.contains(typeName)) {
+      return value.toString();
+    }
+    if (typeName == SqlTypeName.CHAR) {
+      return quoteString(((NlsString) value).getValue());
+    }
+    return null;
+  }
+
+  /** Quotes a string literal, as "value". */
+  static String quoteString(String s) {
+    return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  /** Quotes a field name, if necessary, as 'name'. */
+  static String quoteField(String name) {
+    for (int i = 0; i < name.length(); i++) {
+      final char c = name.charAt(i);
+      if (!(Character.isLetterOrDigit(c) || c == '_')) {
+        return "'" + name.replace("'", "\\'") + "'";
+      }
+    }
+    return name;
+  }
+}
+
+// End SplunkEvalTranslator.java
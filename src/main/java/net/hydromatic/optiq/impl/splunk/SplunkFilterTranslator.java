@@ -0,0 +1,320 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk;
+
+import org.eigenbase.reltype.RelDataType;
+import org.eigenbase.rex.*;
+import org.eigenbase.sql.SqlKind;
+import org.eigenbase.sql.type.SqlTypeName;
+import org.eigenbase.sql.type.SqlTypeUtil;
+import org.eigenbase.util.NlsString;
+
+import java.util.List;
+
+/**
+ * Translates a condition to Splunk's search language.
+ *
+ * <p>Translates AND, OR, NOT, comparisons between a field and a literal (in
+ * either order, and ignoring casts that do not change the value), LIKE,
+ * IS NULL and IS NOT NULL. Optiq
+ * has already expanded IN lists into ORs and BETWEEN into ANDs of
+ * comparisons. Every compound operand is enclosed in parentheses, so the
+ * result does not depend on Splunk's precedence rules (in which, unlike
+ * SQL, OR binds more tightly than AND).</p>
+ *
+ * <p>Does not translate ordering comparisons (such as "&lt;") between
+ * strings: Splunk compares values that look like numbers numerically, so
+ * "bytes&gt;9" would keep "10", which SQL's string comparison rejects.</p>
+ *
+ * <p>A condition that cannot be translated, or any part of it, yields
+ * null.</p>
+ */
+class SplunkFilterTranslator {
+  private final List<String> fieldNames;
+
+  /**
+   * Creates a SplunkFilterTranslator.
+   *
+   * @param fieldNames Names of the fields of the input to the condition
+   */
+  SplunkFilterTranslator(List<String> fieldNames) {
+    this.fieldNames = fieldNames;
+  }
+
+  /** Translates a condition, or returns null. */
+  public String translate(RexNode node) {
+    return translate(node, false);
+  }
+
+  /**
+   * Translates a condition, or its negation, or returns null.
+   *
+   * <p>SQL's NOT of an unknown value is unknown, whereas Splunk's NOT
+   * matches the events in which a field is missing; so the negation of a
+   * comparison requires the field to be present. Negation is pushed down
+   * to the leaves rather than emitted as "NOT (...)".</p>
+   *
+   * @param node Condition
+   * @param negate Whether to match the events for which the condition is
+   *     false, rather than true
+   */
+  private String translate(RexNode node, boolean negate) {
+    if (!(node instanceof RexCall)) {
+      return null;
+    }
+    final RexCall call = (RexCall) node;
+    final List<RexNode> operands = call.getOperands();
+    switch (call.getOperator().getKind()) {
+    case AND:
+      return translateList(operands, negate ? " OR " : " AND ", negate);
+    case OR:
+      return translateList(operands, negate ? " AND " : " OR ", negate);
+    case NOT:
+      return translate(operands.get(0), !negate);
+    case IS_NULL:
+      // An event in which a field is missing or empty does not match
+      // "field=*".
+      final String name = field(operands.get(0));
+      return name == null ? null : (negate ? "" : "NOT ") + name + "=*";
+    case IS_NOT_NULL:
+      final String name2 = field(operands.get(0));
+      return name2 == null ? null : (negate ? "NOT " : "") + name2 + "=*";
+    case EQUALS:
+      return negate(translateComparison(call, "="), call, negate);
+    case NOT_EQUALS:
+      return negate(translateComparison(call, "!="), call, negate);
+    case LESS_THAN:
+      return negate(translateOrdering(call, "<"), call, negate);
+    case LESS_THAN_OR_EQUAL:
+      return negate(translateOrdering(call, "<="), call, negate);
+    case GREATER_THAN:
+      return negate(translateOrdering(call, ">"), call, negate);
+    case GREATER_THAN_OR_EQUAL:
+      return negate(translateOrdering(call, ">="), call, negate);
+    case LIKE:
+      return negate(translateLike(call), call, negate);
+    default:
+      return null;
+    }
+  }
+
+  /** Negates a comparison if required, so that the result matches only
+   * events in which its fields are present. */
+  private String negate(String s, RexCall call, boolean negate) {
+    if (s == null || !negate) {
+      return s;
+    }
+    final StringBuilder buf = new StringBuilder();
+    for (RexNode operand : call.getOperands()) {
+      final String name = field(operand);
+      if (name != null) {
+        buf.append('(').append(name).append("=*) AND ");
+      }
+    }
+    return buf.append("NOT (").append(s).append(')').toString();
+  }
+
+  private String translateList(
+      List<RexNode> operands, String op, boolean negate) {
+    final StringBuilder buf = new StringBuilder();
+    for (RexNode operand : operands) {
+      final String s = translate(operand, negate);
+      if (s == null) {
+        return null;
+      }
+      if (buf.length() > 0) {
+        buf.append(op);
+      }
+      buf.append('(').append(s).append(')');
+    }
+    return buf.toString();
+  }
+
+  /** Translates an ordering comparison, unless an operand is a string. */
+  private String translateOrdering(RexCall call, String op) {
+    for (RexNode operand : call.getOperands()) {
+      if (SqlTypeName.charTypes.contains(
+          operand.getType().getSqlTypeName())) {
+        return null;
+      }
+    }
+    return translateComparison(call, op);
+  }
+
+  private String translateComparison(RexCall call, String op) {
+    if (call.getOperands().size() != 2) {
+      return null;
+    }
+    String name = field(call.getOperands().get(0));
+    String value = value(call.getOperands().get(1));
+    if (name == null || value == null) {
+      // Try "literal op field".
+      name = field(call.getOperands().get(1));
+      value = value(call.getOperands().get(0));
+      if (name == null || value == null) {
+        return null;
+      }
+      op = reverse(op);
+    }
+    return name + op + value;
+  }
+
+  private String translateLike(RexCall call) {
+    if (call.getOperands().size() != 2) {
+      return null;
+    }
+    final String name = field(call.getOperands().get(0));
+    final RexLiteral literal = literal(call.getOperands().get(1));
+    if (name == null
+        || literal == null
+        || literal.getTypeName() != SqlTypeName.CHAR) {
+      return null;
+    }
+    final String pattern = ((NlsString) literal.getValue()).getValue();
+    if (pattern.indexOf('_') >= 0 || pattern.indexOf('*') >= 0) {
+      // Splunk has no wildcard for a single character, and "*" in the
+      // pattern would become a wildcard.
+      return null;
+    }
+    return name + "="
+        + SplunkPushDownRule.searchEscape(pattern.replace('%', '*'));
+  }
+
+  private static String reverse(String op) {
+    if (op.equals("<")) {
+      return ">";
+    }
+    if (op.equals("<=")) {
+      return ">=";
+    }
+    if (op.equals(">")) {
+      return "<";
+    }
+    if (op.equals(">=")) {
+      return "<=";
+    }
+    return op;
+  }
+
+  /** Returns the name of the field that an expression refers to, ignoring
+   * casts that do not change the value, or null. */
+  private String field(RexNode node) {
+    node = stripCasts(node);
+    if (node instanceof RexInputRef) {
+      return SplunkPushDownRule.searchEscape(
+          fieldNames.get(((RexInputRef) node).getIndex()));
+    }
+    return null;
+  }
+
+  /** Returns a literal as it would appear in a search, or null. */
+  private static String value(RexNode node) {
+    final RexLiteral literal = literal(node);
+    if (literal == null || literal.getValue() == null) {
+      return null;
+    }
+    final SqlTypeName typeName = literal.getTypeName();
+    if (SqlTypeName.numericTypes.contains(typeName)) {
+      return literal.getValue().toString();
+    }
+    if (typeName == SqlTypeName.CHAR) {
+      return SplunkPushDownRule.searchEscape(
+          ((NlsString) literal.getValue()).getValue());
+    }
+    return null;
+  }
+
+  private static RexLiteral literal(RexNode node) {
+    node = stripCasts(node);
+    return node instanceof RexLiteral ? (RexLiteral) node : null;
+  }
+
+  /** Removes casts that do not change a value, such as a cast to a wider
+   * type or to a nullable type. Any other cast remains, so the expression
+   * will not translate, and remains in the filter above the search. */
+  private static RexNode stripCasts(RexNode node) {
+    while (node instanceof RexCall
+        && ((RexCall) node).getOperator().getKind() == SqlKind.CAST) {
+      final RexNode operand = ((RexCall) node).getOperands().get(0);
+      if (!isValuePreserving(operand.getType(), node.getType())) {
+        break;
+      }
+      node = operand;
+    }
+    return node;
+  }
+
+  /** Returns whether casting from one type to another preserves every
+   * value. */
+  static boolean isValuePreserving(RelDataType from, RelDataType to) {
+    final SqlTypeName fromName = from.getSqlTypeName();
+    final SqlTypeName toName = to.getSqlTypeName();
+    if (fromName == null || toName == null) {
+      return false;
+    }
+    if (SqlTypeUtil.inCharFamily(from) && SqlTypeUtil.inCharFamily(to)) {
+      // CHAR to VARCHAR keeps the padding; VARCHAR to CHAR adds it.
+      return (toName == SqlTypeName.VARCHAR || fromName == SqlTypeName.CHAR)
+          && wider(from.getPrecision(), to.getPrecision());
+    }
+    if (SqlTypeUtil.isNumeric(from) && SqlTypeUtil.isNumeric(to)) {
+      if (SqlTypeUtil.isApproximateNumeric(to)) {
+        return toName == SqlTypeName.DOUBLE
+            || toName == SqlTypeName.FLOAT
+            || fromName == SqlTypeName.REAL;
+      }
+      if (SqlTypeUtil.isApproximateNumeric(from)) {
+        return false;
+      }
+      return integerDigits(to) >= integerDigits(from)
+          && scale(to) >= scale(from);
+    }
+    return fromName == toName
+        && wider(from.getPrecision(), to.getPrecision());
+  }
+
+  /** Returns whether a precision, negative if unbounded, is at least
+   * another. */
+  private static boolean wider(int fromPrecision, int toPrecision) {
+    return toPrecision < 0
+        || fromPrecision >= 0 && toPrecision >= fromPrecision;
+  }
+
+  /** Returns the number of digits before the point of an exact numeric
+   * type. */
+  private static int integerDigits(RelDataType type) {
+    switch (type.getSqlTypeName()) {
+    case TINYINT:
+      return 3;
+    case SMALLINT:
+      return 5;
+    case INTEGER:
+      return 10;
+    case BIGINT:
+      return 19;
+    default:
+      return type.getPrecision() - type.getScale();
+    }
+  }
+
+  private static int scale(RelDataType type) {
+    return type.getSqlTypeName() == SqlTypeName.DECIMAL ? type.getScale() : 0;
+  }
+}
+
+// End SplunkFilterTranslator.java
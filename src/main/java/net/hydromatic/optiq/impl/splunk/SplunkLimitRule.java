@@ -0,0 +1,105 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk;
+
+import net.hydromatic.optiq.impl.splunk.util.StringUtils;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.rex.*;
+
+import java.util.logging.Logger;
+
+/**
+ * Planner rule that pushes a LIMIT (a {@link SortRel} with a fetch and no
+ * sort keys) into a Splunk search as "| head".
+ *
+ * <p>Splunk then stops the search when it has found enough results, rather
+ * than sending all of them to be discarded. If the sort also has an offset,
+ * the search fetches the first offset + fetch results, and the sort remains
+ * to skip the first offset of them.</p>
+ *
+ * <p>"| head" keeps the order of its input, so if the search is sorted, the
+ * result is sorted too.</p>
+ */
+public class SplunkLimitRule extends RelOptRule {
+  private static final Logger LOGGER =
+      StringUtils.getClassTracer(SplunkLimitRule.class);
+
+  public static final SplunkLimitRule INSTANCE = new SplunkLimitRule();
+
+  private SplunkLimitRule() {
+    super(
+        new RelOptRuleOperand(
+            SortRel.class,
+            new RelOptRuleOperand(SplunkTableAccessRel.class)),
+        "SplunkLimitRule");
+  }
+
+  public void onMatch(RelOptRuleCall call) {
+    final SortRel sort = (SortRel) call.rels[0];
+    final SplunkTableAccessRel splunkRel =
+        (SplunkTableAccessRel) call.rels[1];
+    if (!sort.getCollation().getFieldCollations().isEmpty()
+        || !(sort.fetch instanceof RexLiteral)
+        || sort.offset != null && !(sort.offset instanceof RexLiteral)) {
+      return;
+    }
+    final int offset = sort.offset == null ? 0 : intValue(sort.offset);
+    final int head = offset + intValue(sort.fetch);
+    if (splunkRel.search.endsWith(head(head))) {
+      // Already pushed down; only the offset remains.
+      return;
+    }
+    LOGGER.fine(description + ": " + head(head));
+    final RelNode rel =
+        new SplunkTableAccessRel(
+            splunkRel.getCluster(),
+            splunkRel.getTable(),
+            splunkRel.splunkTable,
+            splunkRel.search + head(head),
+            splunkRel.earliest,
+            splunkRel.latest,
+            splunkRel.fieldList,
+            splunkRel.outputRowType,
+            splunkRel.collation,
+            splunkRel.selectivity);
+    if (offset == 0) {
+      call.transformTo(rel);
+    } else {
+      call.transformTo(
+          new SortRel(
+              sort.getCluster(),
+              sort.getTraitSet(),
+              rel,
+              sort.getCollation(),
+              sort.offset,
+              sort.fetch));
+    }
+  }
+
+  private static String head(int n) {
+    return " | head " + n;
+  }
+
+  static int intValue(RexNode node) {
+    return ((Number) ((RexLiteral) node).getValue()).intValue();
+  }
+}
+
+// End SplunkLimitRule.java
@@ -23,11 +23,7 @@ import org.eigenbase.rel.*;
 import org.eigenbase.relopt.*;
 import org.eigenbase.reltype.*;
 import org.eigenbase.rex.*;
-import org.eigenbase.sql.SqlKind;
-import org.eigenbase.sql.SqlOperator;
 import org.eigenbase.sql.fun.SqlStdOperatorTable;
-import org.eigenbase.sql.type.SqlTypeName;
-import org.eigenbase.util.NlsString;
 import org.eigenbase.util.Pair;
 
 import java.util.*;
@@ -35,26 +31,16 @@ import java.util.logging.Logger;
 
 /**
  * Planner rule to push filters and projections to Splunk.
+ *
+ * <p>If only some of the ANDed conditions of a filter can be converted to
+ * a search, the rule pushes those, and leaves the rest in a filter on top
+ * of the search.</p>
  */
 public class SplunkPushDownRule
     extends RelOptRule {
   private static final Logger LOGGER =
       StringUtils.getClassTracer(SplunkPushDownRule.class);
 
-  private static final Set<SqlKind> SUPPORTED_OPS =
-      new HashSet<SqlKind>(
-          Arrays.asList(
-              SqlKind.EQUALS,
-              SqlKind.LESS_THAN,
-              SqlKind.LESS_THAN_OR_EQUAL,
-              SqlKind.GREATER_THAN,
-              SqlKind.GREATER_THAN_OR_EQUAL,
-              SqlKind.NOT_EQUALS,
-              SqlKind.LIKE,
-              SqlKind.AND,
-              SqlKind.OR,
-              SqlKind.NOT));
-
   public static final SplunkPushDownRule PROJECT_ON_FILTER =
       new SplunkPushDownRule(
           new RelOptRuleOperand(
@@ -104,6 +90,16 @@ public class SplunkPushDownRule
     SplunkTableAccessRel splunkRel =
         (SplunkTableAccessRel) call.rels[relLength - 1];
 
+    for (RelNode rel : call.rels) {
+      if (rel instanceof ProjectRel && computes((ProjectRel) rel)) {
+        // A projection that computes values (such as the one that
+        // SplunkAggregateRule puts above a "| stats" search, or
+        // "FLOOR(_time TO HOUR)") is not a choice of fields, so cannot be
+        // pushed down.
+        return;
+      }
+    }
+
     FilterRel  filter     = null;
     ProjectRel topProj    = null;
     ProjectRel bottomProj = null;
@@ -121,6 +117,7 @@ public class SplunkPushDownRule
     }
 
     String filterString;
+    double selectivity = 1d;
 
     if (filterIdx <= relLength
         && call.rels[relLength - filterIdx] instanceof FilterRel) {
@@ -132,15 +129,26 @@ public class SplunkPushDownRule
         topProj = (ProjectRel)call.rels[relLength - topProjIdx];
       }
 
-      RexCall filterCall = (RexCall) filter.getCondition();
-      SqlOperator op = filterCall.getOperator();
-      List<RexNode> operands = filterCall.getOperands();
-
       LOGGER.fine("fieldNames: " + getFieldsString(topRow));
 
-      filterString = getFilter(op, operands, "", topRow.getFieldNames());
+      // Push each conjunct that can be converted; leave the rest in a
+      // filter on top of the search.
+      final SplunkFilterTranslator translator =
+          new SplunkFilterTranslator(topRow.getFieldNames());
+      final List<String> pushed = new ArrayList<String>();
+      final List<RexNode> pushedNodes = new ArrayList<RexNode>();
+      final List<RexNode> residual = new ArrayList<RexNode>();
+      for (RexNode node : RelOptUtil.conjunctions(filter.getCondition())) {
+        final String s = translator.translate(node);
+        if (s == null) {
+          residual.add(node);
+        } else {
+          pushed.add(s);
+          pushedNodes.add(node);
+        }
+      }
 
-      if (filterString == null) {
+      if (pushed.isEmpty()) {
         // can't handle - exit and stop optimizer from calling
         // any SplunkUdxRel related optimizations
         transformToFarragoUdxRel(
@@ -150,6 +158,23 @@ public class SplunkPushDownRule
             bottomProj);
         return;
       }
+      filterString = and(pushed);
+      selectivity = SplunkTableAccessRel.selectivity(pushedNodes);
+
+      if (!residual.isEmpty()) {
+        LOGGER.fine("residual: " + residual);
+        RelNode rel =
+            appendSearchString(
+                filterString, selectivity, splunkRel, null, bottomProj,
+                topRow, null);
+        rel =
+            new FilterRel(
+                filter.getCluster(),
+                rel,
+                and(filter.getCluster().getRexBuilder(), residual));
+        call.transformTo(addProjectionRule(topProj, rel));
+        return;
+      }
     } else {
       filterString = "";
     }
@@ -162,7 +187,7 @@ public class SplunkPushDownRule
 
     call.transformTo(
         appendSearchString(
-            filterString, splunkRel, topProj, bottomProj,
+            filterString, selectivity, splunkRel, topProj, bottomProj,
             topRow, null));
   }
 
@@ -170,12 +195,14 @@ public class SplunkPushDownRule
    * Appends a search string.
    *
    * @param toAppend Search string to append
+   * @param selectivity Fraction of events that the search string keeps
    * @param splunkRel Relational expression
    * @param topProj Top projection
    * @param bottomProj Bottom projection
    */
   protected RelNode appendSearchString(
       String toAppend,
+      double selectivity,
       SplunkTableAccessRel splunkRel,
       ProjectRel topProj,
       ProjectRel bottomProj,
@@ -185,6 +212,11 @@ public class SplunkPushDownRule
     StringBuilder updateSearchStr = new StringBuilder(splunkRel.search);
 
     if (!toAppend.isEmpty()) {
+      if (splunkRel.search.contains("|")) {
+        // The search already has a pipeline (say "| head 10"); the filter
+        // must apply to its output.
+        updateSearchStr.append(" | search");
+      }
       updateSearchStr.append(" ").append(toAppend);
     }
     List<RelDataTypeField> bottomFields =
@@ -258,7 +290,10 @@ public class SplunkPushDownRule
             searchWithFilter,
             splunkRel.earliest,
             splunkRel.latest,
-            resultType.getFieldNames());
+            resultType.getFieldNames(),
+            splunkRel.outputRowType == null ? null : resultType,
+            null,
+            splunkRel.selectivity * selectivity);
 
     LOGGER.fine(
         "end of appendSearchString fieldNames: "
@@ -277,81 +312,40 @@ public class SplunkPushDownRule
         proj.getFlags(), proj.getCollationList());
   }
 
-  // TODO: use StringBuilder instead of String
-  // TODO: refactor this to use more tree like parsing, need to also
-  //      make sure we use parens properly - currently precedence
-  //      rules are simply left to right
-  private String getFilter(
-      SqlOperator op,
-      List<RexNode> operands,
-      String s,
-      List<String> fieldNames) {
-    if (!valid(op.getKind())) {
-      return null;
+  /** Combines search conditions, as "(a) AND (b)". */
+  private static String and(List<String> conditions) {
+    if (conditions.size() == 1) {
+      return conditions.get(0);
     }
-
-    // NOT op pre-pended
-    if (op.equals(SqlStdOperatorTable.notOperator)) {
-      s = s.concat(" NOT ");
-    }
-
-    for (int i = 0; i < operands.size(); i++) {
-      final RexNode operand = operands.get(i);
-      if (operand instanceof RexCall) {
-        s = s.concat("(");
-        final RexCall call = (RexCall) operand;
-        s = getFilter(
-            call.getOperator(),
-            call.getOperands(),
-            s,
-            fieldNames);
-        if (s == null) {
-          return null;
-        }
-        s = s.concat(")");
-        if (i != (operands.size() - 1)) {
-          s = s.concat(" " + op.toString() + " ");
-        }
-      } else {
-        if (operands.size() != 2) {
-          return null;
-        }
-        if (operand instanceof RexInputRef) {
-          if (i != 0) {
-            return null; // must be of form field=value
-          }
-
-          int fieldIndex = ((RexInputRef) operand).getIndex();
-          String name = fieldNames.get(fieldIndex);
-          s = s.concat(name);
-        } else { // RexLiteral
-          RexLiteral lit = (RexLiteral) operand;
-
-          String tmp = toString(op, lit);
-          if (tmp == null) {
-            return null;
-          }
-          s = s.concat(tmp);
-        }
-        if (i == 0) {
-          s = s.concat(toString(op));
-        }
+    final StringBuilder buf = new StringBuilder();
+    for (String condition : conditions) {
+      if (buf.length() > 0) {
+        buf.append(" AND ");
       }
+      buf.append('(').append(condition).append(')');
     }
-    return s;
+    return buf.toString();
   }
 
-  private boolean valid(SqlKind kind) {
-    return SUPPORTED_OPS.contains(kind);
+  /** Combines conditions using AND. The list must not be empty. */
+  static RexNode and(RexBuilder rexBuilder, List<RexNode> conditions) {
+    if (conditions.size() == 1) {
+      return conditions.get(0);
+    }
+    return rexBuilder.makeCall(
+        SqlStdOperatorTable.andOperator,
+        conditions.toArray(new RexNode[conditions.size()]));
   }
 
-  private String toString(SqlOperator op) {
-    if (op.equals(SqlStdOperatorTable.likeOperator)) {
-      return SqlStdOperatorTable.equalsOperator.toString();
-    } else if (op.equals(SqlStdOperatorTable.notEqualsOperator)) {
-      return "!=";
+  /** Returns whether a projection contains an expression other than a
+   * field reference. */
+  private static boolean computes(ProjectRel project) {
+    for (RexNode node : project.getProjects()) {
+      if (!(node instanceof RexInputRef)) {
+        return true;
+      }
     }
-    return op.toString();
+    return false;
   }
 
   public static String searchEscape(String str) {
@@ -379,21 +373,6 @@ public class SplunkPushDownRule
     return str;
   }
 
-  private String toString(SqlOperator op, RexLiteral literal) {
-    String value = null;
-    SqlTypeName litSqlType = literal.getTypeName();
-    if (SqlTypeName.numericTypes.contains(litSqlType)) {
-      value = literal.getValue().toString();
-    } else if (litSqlType.equals(SqlTypeName.CHAR)) {
-      value = ((NlsString) literal.getValue()).getValue();
-      if (op.equals(SqlStdOperatorTable.likeOperator)) {
-        value = value.replaceAll("%", "*");
-      }
-      value = searchEscape(value);
-    }
-    return value;
-  }
-
   // transform the call from SplunkUdxRel to FarragoJavaUdxRel
   // usually used to stop the optimizer from calling us
   protected void transformToFarragoUdxRel(
@@ -402,7 +381,8 @@ public class SplunkPushDownRule
       FilterRel filter,
       ProjectRel topProj,
       ProjectRel bottomProj) {
-    assert false;
+    // Leave the filter where it is, to be evaluated by Optiq. (Another
+    // rule, such as SplunkTimeRangeRule, may push part of it.)
 /*
         RelNode rel =
             new JavaRules.EnumerableTableAccessRel(
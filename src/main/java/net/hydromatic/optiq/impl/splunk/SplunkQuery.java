@@ -23,16 +23,29 @@ import net.hydromatic.optiq.impl.splunk.search.*;
 import net.hydromatic.optiq.impl.splunk.util.StringUtils;
 
 import java.util.*;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Query against Splunk.
  */
 public class SplunkQuery<T> extends AbstractEnumerable<T> {
+  private static final Logger LOGGER =
+      StringUtils.getClassTracer(SplunkQuery.class);
+
+  /** Sort by "_time" alone, as generated by {@link SplunkSortRule}. */
+  private static final Pattern TIME_SORT =
+      Pattern.compile(" \\| sort 0 ([+-])_time$");
+
   private final SplunkConnection splunkConnection;
   private final String search;
   private final String earliest;
   private final String latest;
   private final List<String> fieldList;
+  private final Enumerable<Object> keys;
+  private final String keyField;
+  private final int maxKeys;
 
   /** Creates a SplunkQuery. */
   public SplunkQuery(
@@ -41,13 +54,44 @@ public class SplunkQuery<T> extends AbstractEnumerable<T> {
       String earliest,
       String latest,
       List<String> fieldList) {
+    this(splunkConnection, search, earliest, latest, fieldList, null, null, 0);
+  }
+
+  /**
+   * Creates a SplunkQuery that returns only events whose value of a given
+   * field is one of a set of keys.
+   *
+   * <p>When the query is executed, it reads the keys, and adds a condition
+   * "(field=key1 OR field=key2 ...)" to the search. If there are more than
+   * {@code maxKeys} distinct keys, it runs the search as it is; the caller
+   * must filter the results (say, by joining them to the keys) in any
+   * case.</p>
+   *
+   * @param keys Keys; each element is a value, or an array whose first
+   *             element is the value; nulls are ignored
+   * @param keyField Field to filter on
+   * @param maxKeys Maximum number of keys to add to the search
+   */
+  public SplunkQuery(
+      SplunkConnection splunkConnection,
+      String search,
+      String earliest,
+      String latest,
+      List<String> fieldList,
+      Enumerable<Object> keys,
+      String keyField,
+      int maxKeys) {
     this.splunkConnection = splunkConnection;
     this.search = search;
     this.earliest = earliest;
     this.latest = latest;
     this.fieldList = fieldList;
+    this.keys = keys;
+    this.keyField = keyField;
+    this.maxKeys = maxKeys;
     assert splunkConnection != null;
     assert search != null;
+    assert keys == null || keyField != null;
   }
 
   public String toString() {
@@ -59,11 +103,98 @@ public class SplunkQuery<T> extends AbstractEnumerable<T> {
   }
 
   public Enumerator<T> enumerator() {
+    String search = this.search;
+
+    // If the range has absolute bounds, the connection may split it into
+    // slices; a sort by "_time" becomes a sort of each slice, and a merge,
+    // and "| stats" becomes partial "| stats" of each slice, and a merge.
+    final Long from = SplunkTimeRangeRule.parse(earliest);
+    final Long to = SplunkTimeRangeRule.parse(latest);
+    final boolean absolute =
+        (earliest == null || from != null) && (latest == null || to != null);
+    int timeOrder = 0;
+    if (absolute) {
+      final Matcher matcher = TIME_SORT.matcher(search);
+      if (matcher.find()
+          && SplunkConnection.isStreaming(
+              search.substring(0, matcher.start()))) {
+        timeOrder = matcher.group(1).equals("+") ? 1 : -1;
+        search = search.substring(0, matcher.start());
+      }
+    }
+
+    if (keys != null) {
+      final Set<String> keySet = readKeys(keys, maxKeys);
+      if (keySet == null) {
+        LOGGER.fine(
+            "semi-join: more than " + maxKeys + " keys; searching for all "
+            + keyField + " values");
+      } else if (keySet.isEmpty()) {
+        // No event can match.
+        LOGGER.fine("semi-join: no keys; skipping search");
+        return Linq4j.emptyEnumerator();
+      } else {
+        search = search + keyFilter(search, keyField, keySet);
+        LOGGER.fine(
+            "semi-join: searching for " + keySet.size() + " " + keyField
+            + " values");
+      }
+    }
+    if (absolute
+        && (SplunkConnection.isStreaming(search)
+            || PartialStats.of(search) != null)) {
+      //noinspection unchecked
+      return (Enumerator<T>) splunkConnection.getSearchResultIterator(
+          search, getArgs(), fieldList, from, to, timeOrder);
+    }
     //noinspection unchecked
     return (Enumerator<T>) splunkConnection.getSearchResultIterator(
         search, getArgs(), fieldList);
   }
 
+  /** Reads the distinct keys, or returns null if there are more than
+   * {@code maxKeys}. */
+  static Set<String> readKeys(Enumerable<Object> keys, int maxKeys) {
+    final Set<String> keySet = new LinkedHashSet<String>();
+    final Enumerator<Object> enumerator = keys.enumerator();
+    try {
+      while (enumerator.moveNext()) {
+        Object key = enumerator.current();
+        if (key instanceof Object[]) {
+          key = ((Object[]) key)[0];
+        }
+        if (key != null
+            && keySet.add(key.toString())
+            && keySet.size() > maxKeys) {
+          return null;
+        }
+      }
+      return keySet;
+    } finally {
+      enumerator.close();
+    }
+  }
+
+  /** Returns the condition to add to a search so that it returns only
+   * events whose value of a field is one of a set of keys. */
+  static String keyFilter(String search, String keyField, Set<String> keySet) {
+    final StringBuilder buf = new StringBuilder();
+    if (search.contains("|")) {
+      buf.append(" | search");
+    }
+    final String field = SplunkPushDownRule.searchEscape(keyField);
+    buf.append(" (");
+    int i = 0;
+    for (String key : keySet) {
+      if (i++ > 0) {
+        buf.append(" OR ");
+      }
+      buf.append(field).append('=')
+          .append(SplunkPushDownRule.searchEscape(key));
+    }
+    return buf.append(')').toString();
+  }
+
   private Map<String, String> getArgs() {
     Map<String, String> args = new HashMap<String, String>();
     if (fieldList != null) {
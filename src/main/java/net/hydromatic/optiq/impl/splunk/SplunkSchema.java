@@ -28,6 +28,7 @@ import net.hydromatic.optiq.impl.splunk.search.SplunkConnection;
 
 import org.eigenbase.reltype.RelDataType;
 import org.eigenbase.reltype.RelDataTypeFactory;
+import org.eigenbase.sql.type.SqlTypeName;
 
 import com.google.common.collect.*;
 
@@ -65,11 +66,15 @@ public class SplunkSchema implements Schema {
     this.typeFactory = typeFactory;
     this.expression = expression;
     RelDataType stringType = typeFactory.createType(String.class);
+    RelDataType timestampType =
+        typeFactory.createTypeWithNullability(
+            typeFactory.createSqlType(SqlTypeName.TIMESTAMP), true);
     final RelDataType rowType =
         typeFactory.createStructType(
             new RelDataTypeFactory.FieldInfoBuilder()
                 .add("source", stringType)
                 .add("sourcetype", stringType)
+                .add("_time", timestampType)
                 .add("_extra", stringType));
     final Type elementType = typeFactory.getJavaClass(rowType);
     this.table =
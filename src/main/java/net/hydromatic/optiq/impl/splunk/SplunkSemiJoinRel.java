@@ -0,0 +1,156 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk;
+
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.expressions.*;
+
+import net.hydromatic.optiq.impl.splunk.search.SplunkConnection;
+import net.hydromatic.optiq.rules.java.*;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.rel.metadata.RelMetadataQuery;
+import org.eigenbase.relopt.*;
+import org.eigenbase.reltype.RelDataType;
+
+import java.lang.reflect.Constructor;
+import java.util.List;
+
+/**
+ * Relational expression that searches Splunk for the events whose value of
+ * a field is one of the keys produced by its input.
+ *
+ * <p>Created by {@link SplunkSemiJoinRule}. Its input is the key column of
+ * the other side of a join; at run time, {@link SplunkQuery} reads the keys
+ * and adds them to the search.</p>
+ */
+public class SplunkSemiJoinRel extends SingleRel implements EnumerableRel {
+  /** Search whose results are to be reduced. */
+  final SplunkTableAccessRel splunkRel;
+  /** Name of the field that holds the key. */
+  final String keyField;
+  /** Maximum number of keys to add to the search; if there are more, the
+   * search returns every event. */
+  final int maxKeys;
+
+  public SplunkSemiJoinRel(
+      RelOptCluster cluster,
+      RelTraitSet traits,
+      RelNode keys,
+      SplunkTableAccessRel splunkRel,
+      String keyField,
+      int maxKeys) {
+    super(cluster, traits, keys);
+    this.splunkRel = splunkRel;
+    this.keyField = keyField;
+    this.maxKeys = maxKeys;
+    assert getConvention() == EnumerableConvention.INSTANCE;
+  }
+
+  @Override
+  public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+    return new SplunkSemiJoinRel(
+        getCluster(), traitSet, inputs.get(0), splunkRel, keyField,
+        maxKeys);
+  }
+
+  @Override
+  public RelOptPlanWriter explainTerms(RelOptPlanWriter pw) {
+    // Every field that affects the generated search must be in the digest,
+    // or the planner will treat different searches as equivalent.
+    return super.explainTerms(pw)
+        .item("table", splunkRel.getTable().getQualifiedName())
+        .item("search", splunkRel.search)
+        .item("earliest", splunkRel.earliest)
+        .item("latest", splunkRel.latest)
+        .item("fieldList", splunkRel.fieldList)
+        .item("keyField", keyField)
+        .item("maxKeys", maxKeys);
+  }
+
+  @Override
+  public RelDataType deriveRowType() {
+    return splunkRel.getRowType();
+  }
+
+  @Override
+  public double getRows() {
+    return splunkRel.getRows() * fraction();
+  }
+
+  @Override
+  public RelOptCost computeSelfCost(RelOptPlanner planner) {
+    return splunkRel.computeSelfCost(planner).multiplyBy(fraction());
+  }
+
+  /** Guesses the fraction of the search's events that have one of the
+   * keys: in proportion to the estimated number of keys, reaching 1 at
+   * {@link #maxKeys}, beyond which the search returns every event. */
+  private double fraction() {
+    final Double keyRows = RelMetadataQuery.getRowCount(getChild());
+    if (keyRows == null || keyRows >= maxKeys) {
+      return 1d;
+    }
+    return Math.max(keyRows, 1d) / maxKeys;
+  }
+
+  private static final Constructor CONSTRUCTOR =
+      Types.lookupConstructor(
+          SplunkQuery.class,
+          SplunkConnection.class,
+          String.class,
+          String.class,
+          String.class,
+          List.class,
+          Enumerable.class,
+          String.class,
+          int.class);
+
+  public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+    final BlockBuilder builder = new BlockBuilder();
+    // Keys arrive as values or as arrays; SplunkQuery handles both.
+    final Result keys =
+        implementor.visitChild(
+            this, 0, (EnumerableRel) getChild(), Prefer.ARRAY);
+    final Expression keysExp = builder.append("keys", keys.block);
+    final PhysType physType =
+        PhysTypeImpl.of(
+            implementor.getTypeFactory(),
+            getRowType(),
+            pref.preferCustom());
+    return implementor.result(
+        physType,
+        builder.append(
+            Expressions.new_(
+                CONSTRUCTOR,
+                Expressions.field(
+                    Types.castIfNecessary(
+                        SplunkSchema.class,
+                        splunkRel.splunkTable.schema.getExpression()),
+                    "splunkConnection"),
+                Expressions.constant(splunkRel.search),
+                Expressions.constant(splunkRel.earliest),
+                Expressions.constant(splunkRel.latest),
+                SplunkTableAccessRel.constantStringList(splunkRel.fieldList),
+                keysExp,
+                Expressions.constant(keyField),
+                Expressions.constant(maxKeys))).toBlock());
+  }
+}
+
+// End SplunkSemiJoinRel.java
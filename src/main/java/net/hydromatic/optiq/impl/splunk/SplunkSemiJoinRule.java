@@ -0,0 +1,171 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk;
+
+import net.hydromatic.optiq.impl.splunk.util.StringUtils;
+import net.hydromatic.optiq.rules.java.EnumerableConvention;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.rel.metadata.RelMetadataQuery;
+import org.eigenbase.relopt.*;
+import org.eigenbase.reltype.*;
+import org.eigenbase.rex.*;
+import org.eigenbase.sql.SqlKind;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Planner rule that reduces a Splunk search that is joined to another
+ * relational expression, by adding the join keys from the other side to the
+ * search.
+ *
+ * <p>For example, in</p>
+ *
+ * <blockquote><code>SELECT * FROM splunk AS s JOIN mysql.products AS p
+ * ON s.product_id = p.product_id WHERE p.category = 'Toys'</code></blockquote>
+ *
+ * <p>the join reads the products first, and the search becomes
+ * "search (product_id=12 OR product_id=17 ...)", so Splunk sends only the
+ * events that can join, rather than every event. The other side is read
+ * twice, so the rule is worthwhile only if it is small or filtered; the
+ * rule does not fire if the planner estimates that the other side has more
+ * than {@link #MAX_KEYS} rows, and {@link SplunkSemiJoinRel}'s cost grows
+ * with the number of keys.</p>
+ *
+ * <p>The join remains, so the results are the same whether or not keys are
+ * added; if there are more than {@link #MAX_KEYS} distinct keys, the search
+ * returns every event, as before. Only inner joins on one pair of fields are
+ * reduced.</p>
+ */
+public class SplunkSemiJoinRule extends RelOptRule {
+  private static final Logger LOGGER =
+      StringUtils.getClassTracer(SplunkSemiJoinRule.class);
+
+  /** Maximum number of keys to add to a search. */
+  public static final int MAX_KEYS = 1000;
+
+  /** Instance that matches a join whose right input is a search. */
+  public static final SplunkSemiJoinRule RIGHT =
+      new SplunkSemiJoinRule(
+          new RelOptRuleOperand(
+              JoinRel.class,
+              new RelOptRuleOperand(
+                  RelNode.class, (RelOptRuleOperand[]) null),
+              new RelOptRuleOperand(SplunkTableAccessRel.class)),
+          "SplunkSemiJoinRule: right");
+
+  /** Instance that matches a join whose left input is a search. */
+  public static final SplunkSemiJoinRule LEFT =
+      new SplunkSemiJoinRule(
+          new RelOptRuleOperand(
+              JoinRel.class,
+              new RelOptRuleOperand(SplunkTableAccessRel.class),
+              new RelOptRuleOperand(
+                  RelNode.class, (RelOptRuleOperand[]) null)),
+          "SplunkSemiJoinRule: left");
+
+  private SplunkSemiJoinRule(RelOptRuleOperand operand, String id) {
+    super(operand, id);
+  }
+
+  public void onMatch(RelOptRuleCall call) {
+    final JoinRel join = (JoinRel) call.rels[0];
+    final boolean splunkOnLeft = call.rels[1] instanceof SplunkTableAccessRel;
+    final SplunkTableAccessRel splunkRel =
+        (SplunkTableAccessRel) call.rels[splunkOnLeft ? 1 : 2];
+    final RelNode other = call.rels[splunkOnLeft ? 2 : 1];
+    if (join.getJoinType() != JoinRelType.INNER
+        || splunkRel.outputRowType != null
+        || !(join.getCondition() instanceof RexCall)) {
+      return;
+    }
+    final RexCall condition = (RexCall) join.getCondition();
+    if (condition.getOperator().getKind() != SqlKind.EQUALS
+        || !(condition.getOperands().get(0) instanceof RexInputRef)
+        || !(condition.getOperands().get(1) instanceof RexInputRef)) {
+      return;
+    }
+
+    // Find which field of each side the join compares.
+    final int leftCount = join.getLeft().getRowType().getFieldCount();
+    int splunkKey = -1;
+    int otherKey = -1;
+    for (RexNode operand : condition.getOperands()) {
+      final int index = ((RexInputRef) operand).getIndex();
+      final boolean isLeft = index < leftCount;
+      final int i = isLeft ? index : index - leftCount;
+      if (isLeft == splunkOnLeft) {
+        splunkKey = i;
+      } else {
+        otherKey = i;
+      }
+    }
+    if (splunkKey < 0 || otherKey < 0) {
+      return;
+    }
+    final Double otherRows = RelMetadataQuery.getRowCount(other);
+    if (otherRows == null || otherRows > MAX_KEYS) {
+      LOGGER.fine(
+          description + ": other side has about " + otherRows + " rows");
+      return;
+    }
+    final RelDataTypeField keyField =
+        splunkRel.getRowType().getFieldList().get(splunkKey);
+    if (SplunkAggregateRule.isTime(keyField)) {
+      return;
+    }
+    LOGGER.fine(description + ": " + keyField.getName());
+
+    // Project the key column of the other side.
+    final RelDataTypeField otherField =
+        other.getRowType().getFieldList().get(otherKey);
+    final RexBuilder rexBuilder = join.getCluster().getRexBuilder();
+    final RelNode keys =
+        new ProjectRel(
+            join.getCluster(),
+            other,
+            Collections.<RexNode>singletonList(
+                rexBuilder.makeInputRef(otherField.getType(), otherKey)),
+            join.getCluster().getTypeFactory().createStructType(
+                new RelDataTypeFactory.FieldInfoBuilder()
+                    .add(otherField.getName(), otherField.getType())),
+            ProjectRelBase.Flags.Boxed,
+            Collections.<RelCollation>emptyList());
+    final RelTraitSet traits =
+        join.getCluster().traitSetOf(EnumerableConvention.INSTANCE);
+    final RelNode semiJoin =
+        new SplunkSemiJoinRel(
+            join.getCluster(),
+            traits,
+            convert(keys, traits),
+            splunkRel,
+            keyField.getName(),
+            MAX_KEYS);
+    call.transformTo(
+        new JoinRel(
+            join.getCluster(),
+            splunkOnLeft ? semiJoin : join.getLeft(),
+            splunkOnLeft ? join.getRight() : semiJoin,
+            join.getCondition(),
+            join.getJoinType(),
+            join.getVariablesStopped()));
+  }
+}
+
+// End SplunkSemiJoinRule.java
@@ -0,0 +1,162 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk;
+
+import net.hydromatic.optiq.impl.splunk.util.StringUtils;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.reltype.RelDataTypeField;
+import org.eigenbase.rex.*;
+import org.eigenbase.sql.type.SqlTypeName;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Planner rule that pushes an ORDER BY (a {@link SortRel} with sort keys)
+ * into a Splunk search as "| sort".
+ *
+ * <p>Splunk sorts the results, so Optiq does not need to read all of them
+ * into memory to sort them. If the sort has a fetch (say, the query has a
+ * LIMIT), Splunk returns only the first offset + fetch results; if it has
+ * an offset, the sort remains to skip the first offset of them.</p>
+ *
+ * <p>String fields are sorted using "str()", because Splunk would otherwise
+ * sort values that look like numbers numerically, whereas SQL compares
+ * strings character by character. Splunk puts events that do not have a
+ * sort field last, whatever the direction; so the rule pushes a sort key
+ * only if the field is NOT NULL or the query puts nulls last. (If the query
+ * does not say, nulls sort as if larger than any value: last when
+ * ascending, first when descending.)</p>
+ */
+public class SplunkSortRule extends RelOptRule {
+  private static final Logger LOGGER =
+      StringUtils.getClassTracer(SplunkSortRule.class);
+
+  public static final SplunkSortRule INSTANCE = new SplunkSortRule();
+
+  private SplunkSortRule() {
+    super(
+        new RelOptRuleOperand(
+            SortRel.class,
+            new RelOptRuleOperand(SplunkTableAccessRel.class)),
+        "SplunkSortRule");
+  }
+
+  public void onMatch(RelOptRuleCall call) {
+    final SortRel sort = (SortRel) call.rels[0];
+    final SplunkTableAccessRel splunkRel =
+        (SplunkTableAccessRel) call.rels[1];
+    final List<RelFieldCollation> fieldCollations =
+        sort.getCollation().getFieldCollations();
+    if (fieldCollations.isEmpty()
+        || sort.fetch != null && !(sort.fetch instanceof RexLiteral)
+        || sort.offset != null && !(sort.offset instanceof RexLiteral)) {
+      return;
+    }
+    final int offset =
+        sort.offset == null ? 0 : SplunkLimitRule.intValue(sort.offset);
+
+    // "sort 0" means no limit; without a limit, Splunk returns at most
+    // 10,000 results.
+    final int limit =
+        sort.fetch == null ? 0 : offset + SplunkLimitRule.intValue(sort.fetch);
+    final StringBuilder buf = new StringBuilder(" | sort ").append(limit);
+    final List<RelDataTypeField> fields =
+        splunkRel.getRowType().getFieldList();
+    int i = 0;
+    for (RelFieldCollation fieldCollation : fieldCollations) {
+      final RelDataTypeField field =
+          fields.get(fieldCollation.getFieldIndex());
+      final String name = SplunkPushDownRule.searchEscape(field.getName());
+      buf.append(i++ > 0 ? ", " : " ");
+      switch (fieldCollation.getDirection()) {
+      case Ascending:
+      case StrictlyAscending:
+        buf.append('+');
+        break;
+      case Descending:
+      case StrictlyDescending:
+        buf.append('-');
+        break;
+      default:
+        LOGGER.fine("cannot push " + fieldCollation);
+        return;
+      }
+      if (field.getType().isNullable() && !nullsLast(fieldCollation)) {
+        LOGGER.fine("cannot push " + fieldCollation + "; nulls first");
+        return;
+      }
+      if (field.getType().getSqlTypeName() == SqlTypeName.TIMESTAMP) {
+        buf.append(name);
+      } else {
+        buf.append("str(").append(name).append(')');
+      }
+    }
+    if (splunkRel.search.endsWith(buf.toString())) {
+      // Already pushed down; only the offset remains.
+      return;
+    }
+    LOGGER.fine(description + ": " + buf);
+    final RelNode rel =
+        new SplunkTableAccessRel(
+            splunkRel.getCluster(),
+            splunkRel.getTable(),
+            splunkRel.splunkTable,
+            splunkRel.search + buf,
+            splunkRel.earliest,
+            splunkRel.latest,
+            splunkRel.fieldList,
+            splunkRel.outputRowType,
+            sort.getCollation(),
+            splunkRel.selectivity);
+    if (offset == 0) {
+      call.transformTo(rel);
+    } else {
+      call.transformTo(
+          new SortRel(
+              sort.getCluster(),
+              sort.getTraitSet(),
+              rel,
+              sort.getCollation(),
+              sort.offset,
+              sort.fetch));
+    }
+  }
+
+  /** Returns whether a sort key puts nulls last, as Splunk does. */
+  private static boolean nullsLast(RelFieldCollation fieldCollation) {
+    switch (fieldCollation.nullDirection) {
+    case FIRST:
+      return false;
+    case LAST:
+      return true;
+    default:
+      switch (fieldCollation.getDirection()) {
+      case Ascending:
+      case StrictlyAscending:
+        return true;
+      default:
+        return false;
+      }
+    }
+  }
+}
+
+// End SplunkSortRule.java
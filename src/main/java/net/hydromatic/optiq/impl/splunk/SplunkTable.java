@@ -21,13 +21,14 @@ import net.hydromatic.linq4j.*;
 import net.hydromatic.linq4j.expressions.Expression;
 import net.hydromatic.linq4j.expressions.Expressions;
 import net.hydromatic.optiq.*;
+import net.hydromatic.optiq.impl.splunk.search.EventStatistics;
 
 import org.eigenbase.rel.RelNode;
 import org.eigenbase.relopt.RelOptTable;
 import org.eigenbase.reltype.RelDataType;
 
 import java.lang.reflect.Type;
-import java.util.Iterator;
+import java.util.*;
 
 /**
  * Table based on Splunk.
@@ -60,7 +61,13 @@ class SplunkTable<T>
   }
 
   public Statistic getStatistic() {
-    return Statistics.UNKNOWN;
+    // Called during planning, so must not wait for a search.
+    final EventStatistics statistics =
+        schema.splunkConnection.getCachedEventStatistics();
+    if (statistics == null) {
+      return Statistics.UNKNOWN;
+    }
+    return Statistics.of(statistics.count, Collections.<BitSet>emptyList());
   }
 
   public QueryProvider getProvider() {
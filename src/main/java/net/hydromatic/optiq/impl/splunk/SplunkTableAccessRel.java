@@ -19,13 +19,17 @@ package net.hydromatic.optiq.impl.splunk;
 
 import net.hydromatic.linq4j.expressions.*;
 
+import net.hydromatic.optiq.impl.splunk.search.EventStatistics;
 import net.hydromatic.optiq.impl.splunk.search.SplunkConnection;
 import net.hydromatic.optiq.rules.java.*;
 
+import org.eigenbase.rel.RelCollation;
 import org.eigenbase.rel.TableAccessRelBase;
+import org.eigenbase.rel.metadata.RelMdUtil;
 import org.eigenbase.relopt.*;
 import org.eigenbase.reltype.RelDataType;
 import org.eigenbase.reltype.RelDataTypeFactory;
+import org.eigenbase.rex.RexNode;
 
 import java.lang.reflect.Constructor;
 import java.util.*;
@@ -47,6 +51,15 @@ public class SplunkTableAccessRel
   final String earliest;
   final String latest;
   final List<String> fieldList;
+  /** Row type, if the search's output is not a subset of the table's
+   * fields (for example, if it ends with "| stats"); otherwise null. */
+  final RelDataType outputRowType;
+  /** Order of the search's output, if it ends with "| sort"; otherwise
+   * null. */
+  final RelCollation collation;
+  /** Fraction of the events that the conditions in the search keep, as
+   * guessed from the conditions before they were translated. */
+  final double selectivity;
 
   protected SplunkTableAccessRel(
       RelOptCluster cluster,
@@ -56,15 +69,31 @@ public class SplunkTableAccessRel
       String earliest,
       String latest,
       List<String> fieldList) {
-    super(
-        cluster,
-        cluster.traitSetOf(EnumerableConvention.INSTANCE),
-        table);
+    this(
+        cluster, table, splunkTable, search, earliest, latest, fieldList,
+        null, null, 1d);
+  }
+
+  protected SplunkTableAccessRel(
+      RelOptCluster cluster,
+      RelOptTable table,
+      SplunkTable splunkTable,
+      String search,
+      String earliest,
+      String latest,
+      List<String> fieldList,
+      RelDataType outputRowType,
+      RelCollation collation,
+      double selectivity) {
+    super(cluster, traitSet(cluster, collation), table);
     this.splunkTable = splunkTable;
     this.search = search;
     this.earliest = earliest;
     this.latest = latest;
     this.fieldList = fieldList;
+    this.outputRowType = outputRowType;
+    this.collation = collation;
+    this.selectivity = selectivity;
 
     assert splunkTable != null;
     assert search != null;
@@ -74,6 +103,7 @@ public class SplunkTableAccessRel
   public RelOptPlanWriter explainTerms(RelOptPlanWriter pw) {
     return super.explainTerms(pw)
         .item("table", table.getQualifiedName())
+        .item("search", search)
         .item("earliest", earliest)
         .item("latest", latest)
         .item("fieldList", fieldList);
@@ -85,10 +115,132 @@ public class SplunkTableAccessRel
     planner.addRule(SplunkPushDownRule.FILTER_ON_PROJECT);
     planner.addRule(SplunkPushDownRule.PROJECT);
     planner.addRule(SplunkPushDownRule.PROJECT_ON_FILTER);
+    planner.addRule(SplunkLimitRule.INSTANCE);
+    planner.addRule(SplunkSortRule.INSTANCE);
+    planner.addRule(SplunkAggregateRule.INSTANCE);
+    planner.addRule(SplunkAggregateRule.ON_PROJECT);
+    planner.addRule(SplunkTopRule.INSTANCE);
+    planner.addRule(SplunkEvalRule.INSTANCE);
+    planner.addRule(SplunkWhereRule.INSTANCE);
+    planner.addRule(SplunkTimeRangeRule.INSTANCE);
+    planner.addRule(SplunkSemiJoinRule.LEFT);
+    planner.addRule(SplunkSemiJoinRule.RIGHT);
+  }
+
+  /** Returns the traits of a search: enumerable, and sorted by the given
+   * collation if not null, so that the planner does not sort again. */
+  private static RelTraitSet traitSet(
+      RelOptCluster cluster, RelCollation collation) {
+    final RelTraitSet traitSet =
+        cluster.traitSetOf(EnumerableConvention.INSTANCE);
+    return collation == null ? traitSet : traitSet.plus(collation);
+  }
+
+  @Override
+  public List<RelCollation> getCollationList() {
+    return collation == null
+        ? Collections.<RelCollation>emptyList()
+        : Collections.singletonList(collation);
+  }
+
+  @Override
+  public double getRows() {
+    return estimate()[1];
+  }
+
+  @Override
+  public RelOptCost computeSelfCost(RelOptPlanner planner) {
+    // Splunk reads the events; the network and the client carry each field
+    // of each result. So a search that filters, aggregates or returns fewer
+    // fields in Splunk is cheaper.
+    final double[] estimate = estimate();
+    final double rows = estimate[1];
+    return planner.makeCost(
+        rows, rows * getRowType().getFieldCount(), estimate[0]);
+  }
+
+  /**
+   * Estimates the number of events that the search reads, and the number of
+   * rows it returns.
+   *
+   * <p>Starts from the number of events on the server, if the connection
+   * has fetched them (see
+   * {@link SplunkConnection#getCachedEventStatistics()}; planning never
+   * waits for a search), and the fraction of them that are in the time
+   * range. Applies the selectivity of the search's conditions, then guesses
+   * the effect of each command.</p>
+   */
+  private double[] estimate() {
+    final EventStatistics statistics =
+        splunkTable.schema.splunkConnection.getCachedEventStatistics();
+    double events =
+        statistics == null ? table.getRowCount() : statistics.count;
+    if (earliest != null || latest != null) {
+      final Long from = SplunkTimeRangeRule.parse(earliest);
+      final Long to = SplunkTimeRangeRule.parse(latest);
+      if (statistics != null
+          && (earliest == null || from != null)
+          && (latest == null || to != null)) {
+        events *= statistics.fraction(from, to);
+      } else {
+        // A relative time, such as "-24h".
+        events *= 0.25d;
+      }
+    }
+
+    final String[] commands = search.split(" \\| ");
+    events *= selectivity;
+    double rows = events;
+    for (int i = 1; i < commands.length; i++) {
+      final String command = commands[i].trim();
+      final String name = command.split(" ", 2)[0];
+      if (name.equals("head")) {
+        rows = Math.min(rows, number(command, 1));
+      } else if (name.equals("sort")) {
+        final int limit = number(command, 1);
+        if (limit > 0) {
+          rows = Math.min(rows, limit);
+        }
+      } else if (name.equals("top") || name.equals("rare")) {
+        rows = Math.min(rows / 10d, number(command, 10));
+      } else if (name.equals("stats")) {
+        rows = command.contains(" by ") ? rows / 10d : 1d;
+      }
+    }
+    return new double[] {Math.max(events, 1d), Math.max(rows, 1d)};
+  }
+
+  /** Guesses the fraction of rows that satisfy all of a list of
+   * conditions, as Optiq would if it evaluated them. */
+  static double selectivity(List<RexNode> conditions) {
+    double selectivity = 1d;
+    for (RexNode condition : conditions) {
+      selectivity *= RelMdUtil.guessSelectivity(condition);
+    }
+    return selectivity;
+  }
+
+  /** Returns the number following "limit=" in a command, or else its first
+   * number, or a default. */
+  private static int number(String command, int defaultValue) {
+    for (String token : command.split(" ")) {
+      if (token.startsWith("limit=")) {
+        token = token.substring("limit=".length());
+      }
+      try {
+        return Integer.parseInt(token);
+      } catch (NumberFormatException e) {
+        // try the next token
+      }
+    }
+    return defaultValue;
   }
 
   @Override
   public RelDataType deriveRowType() {
+    if (outputRowType != null) {
+      return outputRowType;
+    }
     final RelDataTypeFactory.FieldInfoBuilder builder =
         new RelDataTypeFactory.FieldInfoBuilder();
     for (String field : fieldList) {
@@ -130,7 +282,7 @@ public class SplunkTableAccessRel
                     : constantStringList(fieldList))).toBlock());
   }
 
-  private static Expression constantStringList(final List<String> strings) {
+  static Expression constantStringList(final List<String> strings) {
     return Expressions.call(
         Arrays.class,
         "asList",
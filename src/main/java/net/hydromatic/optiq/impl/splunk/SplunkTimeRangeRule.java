@@ -0,0 +1,224 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk;
+
+import net.hydromatic.optiq.impl.splunk.util.StringUtils;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.rex.*;
+import org.eigenbase.sql.SqlKind;
+import org.eigenbase.sql.type.SqlTypeName;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Planner rule that converts conditions on "_time" in a filter on a Splunk
+ * search into the search's "earliest_time" and "latest_time" arguments.
+ *
+ * <p>Splunk stores events in buckets by time, so it can skip buckets
+ * outside the time range, rather than reading every event and then
+ * discarding the ones outside the range.</p>
+ *
+ * <p>Only conditions that compare "_time" with a TIMESTAMP literal, and are
+ * ANDed with the rest of the filter, are converted; the rest of the filter
+ * remains. Splunk's earliest time is inclusive and its latest time is
+ * exclusive, and both have millisecond precision, so the conversion is
+ * exact.</p>
+ */
+public class SplunkTimeRangeRule extends RelOptRule {
+  private static final Logger LOGGER =
+      StringUtils.getClassTracer(SplunkTimeRangeRule.class);
+
+  public static final SplunkTimeRangeRule INSTANCE =
+      new SplunkTimeRangeRule();
+
+  private SplunkTimeRangeRule() {
+    super(
+        new RelOptRuleOperand(
+            FilterRel.class,
+            new RelOptRuleOperand(SplunkTableAccessRel.class)),
+        "SplunkTimeRangeRule");
+  }
+
+  public void onMatch(RelOptRuleCall call) {
+    final FilterRel filter = (FilterRel) call.rels[0];
+    final SplunkTableAccessRel splunkRel =
+        (SplunkTableAccessRel) call.rels[1];
+    if (splunkRel.search.contains("|")) {
+      // The filter applies to the output of a command such as "| head",
+      // not to the events that Splunk reads.
+      return;
+    }
+    final int timeField =
+        splunkRel.getRowType().getFieldNames().indexOf("_time");
+    if (timeField < 0) {
+      return;
+    }
+
+    Long earliest = parse(splunkRel.earliest);
+    Long latest = parse(splunkRel.latest);
+    if (splunkRel.earliest != null && earliest == null
+        || splunkRel.latest != null && latest == null) {
+      // Relative times, such as "-24h", cannot be combined.
+      return;
+    }
+    final List<RexNode> remaining = new ArrayList<RexNode>();
+    boolean found = false;
+    for (RexNode node : RelOptUtil.conjunctions(filter.getCondition())) {
+      final Range range = range(node, timeField);
+      if (range == null) {
+        remaining.add(node);
+        continue;
+      }
+      found = true;
+      if (range.earliest != null
+          && (earliest == null || range.earliest > earliest)) {
+        earliest = range.earliest;
+      }
+      if (range.latest != null
+          && (latest == null || range.latest < latest)) {
+        latest = range.latest;
+      }
+    }
+    if (!found) {
+      return;
+    }
+    LOGGER.fine(
+        description + ": earliest " + format(earliest) + ", latest "
+        + format(latest));
+    final RelNode rel =
+        new SplunkTableAccessRel(
+            splunkRel.getCluster(),
+            splunkRel.getTable(),
+            splunkRel.splunkTable,
+            splunkRel.search,
+            format(earliest),
+            format(latest),
+            splunkRel.fieldList,
+            splunkRel.outputRowType,
+            splunkRel.collation,
+            splunkRel.selectivity);
+    if (remaining.isEmpty()) {
+      call.transformTo(rel);
+    } else {
+      call.transformTo(
+          new FilterRel(
+              filter.getCluster(),
+              rel,
+              SplunkPushDownRule.and(
+                  filter.getCluster().getRexBuilder(), remaining)));
+    }
+  }
+
+  /** Converts a condition such as "_time &gt;= TIMESTAMP '...'" to a time
+   * range, or returns null. */
+  private static Range range(RexNode node, int timeField) {
+    if (!(node instanceof RexCall)) {
+      return null;
+    }
+    final RexCall call = (RexCall) node;
+    if (call.getOperands().size() != 2) {
+      return null;
+    }
+    SqlKind kind = call.getOperator().getKind();
+    RexNode left = call.getOperands().get(0);
+    RexNode right = call.getOperands().get(1);
+    if (left instanceof RexLiteral) {
+      // "literal < _time" is "_time > literal"
+      final RexNode tmp = left;
+      left = right;
+      right = tmp;
+      kind = reverse(kind);
+    }
+    if (!(left instanceof RexInputRef)
+        || ((RexInputRef) left).getIndex() != timeField
+        || !(right instanceof RexLiteral)
+        || ((RexLiteral) right).getTypeName() != SqlTypeName.TIMESTAMP) {
+      return null;
+    }
+    final long millis =
+        ((Calendar) ((RexLiteral) right).getValue()).getTimeInMillis();
+    switch (kind) {
+    case EQUALS:
+      return new Range(millis, millis + 1);
+    case GREATER_THAN:
+      return new Range(millis + 1, null);
+    case GREATER_THAN_OR_EQUAL:
+      return new Range(millis, null);
+    case LESS_THAN:
+      return new Range(null, millis);
+    case LESS_THAN_OR_EQUAL:
+      return new Range(null, millis + 1);
+    default:
+      return null;
+    }
+  }
+
+  private static SqlKind reverse(SqlKind kind) {
+    switch (kind) {
+    case GREATER_THAN:
+      return SqlKind.LESS_THAN;
+    case GREATER_THAN_OR_EQUAL:
+      return SqlKind.LESS_THAN_OR_EQUAL;
+    case LESS_THAN:
+      return SqlKind.GREATER_THAN;
+    case LESS_THAN_OR_EQUAL:
+      return SqlKind.GREATER_THAN_OR_EQUAL;
+    default:
+      return kind;
+    }
+  }
+
+  /** Formats milliseconds since the epoch as seconds, the format that
+   * Splunk accepts for "earliest_time" and "latest_time". */
+  static String format(Long millis) {
+    return millis == null
+        ? null
+        : BigDecimal.valueOf(millis, 3).toPlainString();
+  }
+
+  /** Parses a time in the format produced by {@link #format}. */
+  static Long parse(String time) {
+    if (time == null) {
+      return null;
+    }
+    try {
+      return new BigDecimal(time).movePointRight(3).longValueExact();
+    } catch (ArithmeticException e) {
+      return null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** Time range; earliest is inclusive, latest exclusive. */
+  private static class Range {
+    final Long earliest;
+    final Long latest;
+
+    Range(Long earliest, Long latest) {
+      this.earliest = earliest;
+      this.latest = latest;
+    }
+  }
+}
+
+// End SplunkTimeRangeRule.java
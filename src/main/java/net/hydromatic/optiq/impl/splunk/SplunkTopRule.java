@@ -0,0 +1,172 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk;
+
+import net.hydromatic.optiq.impl.splunk.util.StringUtils;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.reltype.RelDataTypeField;
+import org.eigenbase.rex.*;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Planner rule that pushes the most or least frequent values of a set of
+ * fields, as in
+ *
+ * <blockquote><code>SELECT x, COUNT(*) AS c FROM splunk GROUP BY x ORDER BY
+ * c DESC LIMIT 10</code></blockquote>
+ *
+ * <p>into a Splunk search as "| top limit=10 x". If the order is ascending,
+ * the search uses "| rare" instead.</p>
+ *
+ * <p>Splunk sends only the rows that the query returns, rather than every
+ * event or every group. The rule matches a {@link SortRel} whose only sort
+ * key is COUNT(*), on an {@link AggregateRel} that computes nothing else,
+ * on a search. If the sort has an offset, the sort remains to skip the
+ * first offset rows.</p>
+ *
+ * <p>Like "stats", "top" ignores events in which a field is missing, so the
+ * search fills missing fields first, as {@link SplunkAggregateRule}
+ * does.</p>
+ */
+public class SplunkTopRule extends RelOptRule {
+  private static final Logger LOGGER =
+      StringUtils.getClassTracer(SplunkTopRule.class);
+
+  /** Name of the field in which "top" and "rare" return the count. */
+  private static final String COUNT = "count";
+
+  public static final SplunkTopRule INSTANCE = new SplunkTopRule();
+
+  private SplunkTopRule() {
+    super(
+        new RelOptRuleOperand(
+            SortRel.class,
+            new RelOptRuleOperand(
+                AggregateRel.class,
+                new RelOptRuleOperand(SplunkTableAccessRel.class))),
+        "SplunkTopRule");
+  }
+
+  public void onMatch(RelOptRuleCall call) {
+    final SortRel sort = (SortRel) call.rels[0];
+    final AggregateRel aggregate = (AggregateRel) call.rels[1];
+    final SplunkTableAccessRel splunkRel =
+        (SplunkTableAccessRel) call.rels[2];
+    if (splunkRel.outputRowType != null
+        || !(sort.fetch instanceof RexLiteral)
+        || sort.offset != null && !(sort.offset instanceof RexLiteral)) {
+      return;
+    }
+
+    // The aggregate must be "GROUP BY x, ..." with only COUNT(*).
+    final BitSet groupSet = aggregate.getGroupSet();
+    final int groupCount = groupSet.cardinality();
+    if (groupCount == 0 || aggregate.getAggCallList().size() != 1) {
+      return;
+    }
+    final AggregateCall aggCall = aggregate.getAggCallList().get(0);
+    if (!aggCall.getAggregation().getName().equals("COUNT")
+        || !aggCall.getArgList().isEmpty()) {
+      return;
+    }
+
+    // The only sort key must be the count.
+    final List<RelFieldCollation> fieldCollations =
+        sort.getCollation().getFieldCollations();
+    if (fieldCollations.size() != 1
+        || fieldCollations.get(0).getFieldIndex() != groupCount) {
+      return;
+    }
+    final String command;
+    switch (fieldCollations.get(0).getDirection()) {
+    case Descending:
+    case StrictlyDescending:
+      command = "top";
+      break;
+    case Ascending:
+    case StrictlyAscending:
+      command = "rare";
+      break;
+    default:
+      return;
+    }
+
+    final int offset =
+        sort.offset == null ? 0 : SplunkLimitRule.intValue(sort.offset);
+    final int limit = offset + SplunkLimitRule.intValue(sort.fetch);
+    final StringBuilder buf =
+        new StringBuilder(" | ").append(command).append(" limit=")
+            .append(limit).append(" showperc=f");
+    final List<String> fieldList = new ArrayList<String>();
+    final List<String> fillNames = new ArrayList<String>();
+    final BitSet nullable = new BitSet();
+    final List<RelDataTypeField> inputFields =
+        splunkRel.getRowType().getFieldList();
+    for (int j = groupSet.nextSetBit(0); j >= 0;
+         j = groupSet.nextSetBit(j + 1)) {
+      final RelDataTypeField field = inputFields.get(j);
+      if (SplunkAggregateRule.isTime(field)
+          || field.getName().equals(COUNT)) {
+        return;
+      }
+      buf.append(' ').append(SplunkPushDownRule.searchEscape(field.getName()));
+      if (field.getType().isNullable()) {
+        nullable.set(fieldList.size());
+        fillNames.add(field.getName());
+      }
+      fieldList.add(field.getName());
+    }
+    buf.insert(0, SplunkAggregateRule.fillNull(fillNames));
+    fieldList.add(COUNT);
+    LOGGER.fine(description + ": " + buf);
+
+    final SplunkTableAccessRel rel =
+        new SplunkTableAccessRel(
+            splunkRel.getCluster(),
+            splunkRel.getTable(),
+            splunkRel.splunkTable,
+            splunkRel.search + buf,
+            splunkRel.earliest,
+            splunkRel.latest,
+            fieldList,
+            SplunkAggregateRule.stringRowType(
+                aggregate.getCluster().getTypeFactory(), fieldList),
+            sort.getCollation(),
+            splunkRel.selectivity);
+    final RelNode project =
+        SplunkAggregateRule.convert(rel, aggregate.getRowType(), nullable);
+    if (offset == 0) {
+      call.transformTo(project);
+    } else {
+      call.transformTo(
+          new SortRel(
+              sort.getCluster(),
+              sort.getTraitSet(),
+              project,
+              sort.getCollation(),
+              sort.offset,
+              sort.fetch));
+    }
+  }
+}
+
+// End SplunkTopRule.java
@@ -0,0 +1,146 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk;
+
+import net.hydromatic.optiq.impl.splunk.util.StringUtils;
+
+import org.eigenbase.rel.*;
+import org.eigenbase.relopt.*;
+import org.eigenbase.reltype.*;
+import org.eigenbase.rex.*;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Planner rule that pushes a filter on the output of a search that computes
+ * values, such as the HAVING clause of an aggregation that
+ * {@link SplunkAggregateRule} has pushed down as "| stats", into the search
+ * as "| where".
+ *
+ * <p>The rule matches a {@link FilterRel} on the {@link ProjectRel} that
+ * converts the search's output. It pushes each ANDed condition that
+ * {@link SplunkEvalTranslator} can translate, and leaves the rest in a
+ * filter on top.</p>
+ */
+public class SplunkWhereRule extends RelOptRule {
+  private static final Logger LOGGER =
+      StringUtils.getClassTracer(SplunkWhereRule.class);
+
+  public static final SplunkWhereRule INSTANCE = new SplunkWhereRule();
+
+  private SplunkWhereRule() {
+    super(
+        new RelOptRuleOperand(
+            FilterRel.class,
+            new RelOptRuleOperand(
+                ProjectRel.class,
+                new RelOptRuleOperand(SplunkTableAccessRel.class))),
+        "SplunkWhereRule");
+  }
+
+  public void onMatch(RelOptRuleCall call) {
+    final FilterRel filter = (FilterRel) call.rels[0];
+    final ProjectRel project = (ProjectRel) call.rels[1];
+    final SplunkTableAccessRel splunkRel =
+        (SplunkTableAccessRel) call.rels[2];
+    if (splunkRel.outputRowType == null || !isConversion(project)) {
+      return;
+    }
+
+    // Field i of the projection converts field i of the search. The
+    // condition sees the converted types, and Splunk the search's names.
+    final List<RelDataTypeField> fields = new ArrayList<RelDataTypeField>();
+    final List<String> names = splunkRel.getRowType().getFieldNames();
+    for (RelDataTypeField field : project.getRowType().getFieldList()) {
+      fields.add(
+          new RelDataTypeFieldImpl(
+              names.get(field.getIndex()), field.getIndex(),
+              field.getType()));
+    }
+    final SplunkEvalTranslator translator = new SplunkEvalTranslator(fields);
+
+    final StringBuilder buf = new StringBuilder();
+    final List<RexNode> pushed = new ArrayList<RexNode>();
+    final List<RexNode> residual = new ArrayList<RexNode>();
+    for (RexNode node : RelOptUtil.conjunctions(filter.getCondition())) {
+      final String s = translator.translate(node);
+      if (s == null) {
+        residual.add(node);
+        continue;
+      }
+      pushed.add(node);
+      buf.append(buf.length() == 0 ? " | where " : " AND ").append(s);
+    }
+    if (buf.length() == 0) {
+      return;
+    }
+    LOGGER.fine(description + ": " + buf);
+
+    final SplunkTableAccessRel rel =
+        new SplunkTableAccessRel(
+            splunkRel.getCluster(),
+            splunkRel.getTable(),
+            splunkRel.splunkTable,
+            splunkRel.search + buf,
+            splunkRel.earliest,
+            splunkRel.latest,
+            splunkRel.fieldList,
+            splunkRel.outputRowType,
+            splunkRel.collation,
+            splunkRel.selectivity
+            * SplunkTableAccessRel.selectivity(pushed));
+    RelNode newRel =
+        new ProjectRel(
+            project.getCluster(),
+            rel,
+            project.getProjects(),
+            project.getRowType(),
+            project.getFlags(),
+            project.getCollationList());
+    if (!residual.isEmpty()) {
+      newRel =
+          new FilterRel(
+              filter.getCluster(),
+              newRel,
+              SplunkPushDownRule.and(
+                  filter.getCluster().getRexBuilder(), residual));
+    }
+    call.transformTo(newRel);
+  }
+
+  /** Returns whether each field of a projection is computed from the
+   * corresponding field of its input, as in the projections that
+   * {@link SplunkAggregateRule#convert} creates. */
+  private static boolean isConversion(ProjectRel project) {
+    final List<RexNode> projects = project.getProjects();
+    if (projects.size() != project.getChild().getRowType().getFieldCount()) {
+      return false;
+    }
+    for (int i = 0; i < projects.size(); i++) {
+      final BitSet inputs = new BitSet();
+      projects.get(i).accept(new RelOptUtil.InputFinder(inputs));
+      if (inputs.cardinality() != 1 || !inputs.get(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
+
+// End SplunkWhereRule.java
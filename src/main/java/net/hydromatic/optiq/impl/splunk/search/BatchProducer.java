@@ -0,0 +1,185 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.search;
+
+import net.hydromatic.linq4j.Enumerator;
+
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Passes rows from producer threads to a consumer in batches, through
+ * bounded queues.
+ *
+ * <p>A producer reads rows into a batch, and puts the batch on a queue when
+ * it is full, or as soon as it has a row if the consumer is waiting, so
+ * that slow searches do not add latency; when the queue is full, the
+ * producer waits. The last batch of a producer is marked as the end, and
+ * carries the error, if the producer failed, so that the consumer receives
+ * the rows read before the error, then the error.</p>
+ *
+ * <p>The consumer returns each batch it has finished with, and producers
+ * reuse it, so that a producer that hands over small batches to a waiting
+ * consumer does not allocate an array for each. Several producers may share
+ * a BatchProducer, and a queue.</p>
+ *
+ * @see PrefetchEnumerator
+ * @see SlicedEnumerator
+ */
+class BatchProducer {
+  private final int batchSize;
+  /** Batches that the consumer has finished with, for producers to
+   * reuse. */
+  private final Queue<Batch> free = new ConcurrentLinkedQueue<Batch>();
+  private final AtomicInteger batchCount = new AtomicInteger();
+  private volatile boolean closed;
+
+  BatchProducer(int batchSize) {
+    assert batchSize > 0;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Reads the rows of an enumerator, and puts them on a queue in batches.
+   * Returns when the enumerator is exhausted or fails, or when this
+   * BatchProducer is closed or the thread is interrupted. Does not close
+   * the enumerator.
+   *
+   * @param source Enumerator to read
+   * @param queue Queue to put batches on
+   * @param onRow Called after each row is read, or null
+   */
+  void produce(
+      Enumerator<?> source, BlockingQueue<Batch> queue, Runnable onRow) {
+    Batch b = newBatch();
+    try {
+      while (!closed && source.moveNext()) {
+        b.rows[b.count++] = source.current();
+        if (onRow != null) {
+          onRow.run();
+        }
+        if (b.count == batchSize || queue.isEmpty()) {
+          queue.put(b);
+          b = newBatch();
+        }
+      }
+      b.end = true;
+      queue.put(b);
+    } catch (InterruptedException e) {
+      // closed by the consumer
+    } catch (Throwable e) {
+      b.end = true;
+      b.throwable = e;
+      put(queue, b);
+    }
+  }
+
+  /** Puts an end batch on a queue, for a producer that finishes, or fails
+   * with a given error, before it has rows to read. */
+  void end(BlockingQueue<Batch> queue, Throwable e) {
+    final Batch b = newBatch();
+    b.end = true;
+    b.throwable = e;
+    put(queue, b);
+  }
+
+  private static void put(BlockingQueue<Batch> queue, Batch b) {
+    try {
+      queue.put(b);
+    } catch (InterruptedException e) {
+      // closed by the consumer
+    }
+  }
+
+  /** Returns an empty batch, reusing one that the consumer has finished
+   * with if possible. */
+  private Batch newBatch() {
+    final Batch b = free.poll();
+    if (b == null) {
+      batchCount.incrementAndGet();
+      return new Batch(batchSize);
+    }
+    b.count = 0;
+    return b;
+  }
+
+  /** Returns a batch that the consumer has finished with, and whose rows
+   * it has cleared, so that producers can reuse it. */
+  void recycle(Batch b) {
+    free.offer(b);
+  }
+
+  /** Waits for the next batch on a queue. */
+  static Batch take(BlockingQueue<Batch> queue) {
+    try {
+      return queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Tells producers to stop reading. */
+  void close() {
+    closed = true;
+  }
+
+  boolean isClosed() {
+    return closed;
+  }
+
+  /** Returns the number of batches allocated. */
+  int getBatchCount() {
+    return batchCount.get();
+  }
+
+  /** Batch of rows. */
+  static class Batch {
+    final Object[] rows;
+    int count;
+    /** Whether this is the last batch of its producer. */
+    boolean end;
+    /** Error that stopped the producer, or null. */
+    Throwable throwable;
+
+    Batch(int size) {
+      rows = new Object[size];
+    }
+
+    /** Throws the producer's error, if any, the first time it is
+     * called. */
+    void rethrow() {
+      final Throwable e = throwable;
+      if (e == null) {
+        return;
+      }
+      throwable = null;
+      if (e instanceof RuntimeException) {
+        throw (RuntimeException) e;
+      }
+      if (e instanceof Error) {
+        throw (Error) e;
+      }
+      throw new RuntimeException(e);
+    }
+  }
+}
+
+// End BatchProducer.java
@@ -0,0 +1,65 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.search;
+
+/**
+ * Statistics about the events in a Splunk server: how many there are, and
+ * the range of their times.
+ *
+ * <p>The planner uses them to estimate how many events a search reads.</p>
+ *
+ * @see SplunkConnection#getEventStatistics()
+ */
+public class EventStatistics {
+  /** Number of events. */
+  public final double count;
+  /** Time of the earliest event, in milliseconds since the epoch. */
+  public final long earliest;
+  /** Time of the latest event, in milliseconds since the epoch. */
+  public final long latest;
+
+  public EventStatistics(double count, long earliest, long latest) {
+    this.count = count;
+    this.earliest = earliest;
+    this.latest = latest;
+  }
+
+  public String toString() {
+    return "EventStatistics {count: " + count + ", earliest: " + earliest
+        + ", latest: " + latest + "}";
+  }
+
+  /**
+   * Estimates the fraction of events whose time is in a given range,
+   * assuming that events are spread evenly over time.
+   *
+   * @param from Start of the range, inclusive, or null
+   * @param to End of the range, exclusive, or null
+   * @return Fraction of events, between 0 and 1
+   */
+  public double fraction(Long from, Long to) {
+    final long start = from == null ? earliest : Math.max(from, earliest);
+    final long end = to == null ? latest + 1 : Math.min(to, latest + 1);
+    if (end <= start) {
+      return 0d;
+    }
+    return (double) (end - start) / (latest + 1 - earliest);
+  }
+}
+
+// End EventStatistics.java
@@ -0,0 +1,163 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.search;
+
+import net.hydromatic.linq4j.Enumerator;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Enumerator over results that are read in pages, several at a time.
+ *
+ * <p>While the consumer reads one page, tasks on an executor read the
+ * following pages, up to a given number in all; so at most that many pages
+ * are in memory. Rows are returned in page order.</p>
+ *
+ * <p>Because each page can be read again, {@link #reset()} is supported,
+ * and starts again from the first page. When the enumerator is closed, it
+ * tells the reader whether it has returned every row, so that the reader
+ * may release the results.</p>
+ */
+public class PagedEnumerator implements Enumerator<Object> {
+  private final PageReader reader;
+  private final ExecutorService executor;
+  private final int pageCount;
+  private final int parallelism;
+  /** Pages being read, by page number. */
+  private final Map<Integer, Future<List<Object>>> futures =
+      new HashMap<Integer, Future<List<Object>>>();
+  private int page = -1;
+  private List<Object> rows = Collections.emptyList();
+  private int index;
+  private Object current;
+  private boolean closed;
+
+  /**
+   * Creates a PagedEnumerator.
+   *
+   * @param reader Reads a page
+   * @param executor Executor to read pages
+   * @param pageCount Number of pages
+   * @param parallelism Maximum number of pages being read or waiting to be
+   *     consumed
+   */
+  PagedEnumerator(
+      PageReader reader,
+      ExecutorService executor,
+      int pageCount,
+      int parallelism) {
+    assert parallelism > 0;
+    this.reader = reader;
+    this.executor = executor;
+    this.pageCount = pageCount;
+    this.parallelism = parallelism;
+  }
+
+  public Object current() {
+    return current;
+  }
+
+  public boolean moveNext() {
+    while (index >= rows.size()) {
+      if (page + 1 >= pageCount) {
+        current = null;
+        return false;
+      }
+      ++page;
+      for (int p = page; p < Math.min(page + parallelism, pageCount); p++) {
+        if (!futures.containsKey(p)) {
+          futures.put(p, executor.submit(new PageTask(p)));
+        }
+      }
+      rows = get(futures.remove(page));
+      index = 0;
+    }
+    current = rows.get(index);
+    rows.set(index++, null);
+    return true;
+  }
+
+  private List<Object> get(Future<List<Object>> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  public void reset() {
+    cancel();
+    page = -1;
+    rows = Collections.emptyList();
+    index = 0;
+    current = null;
+  }
+
+  public void close() {
+    cancel();
+    if (!closed) {
+      closed = true;
+      reader.close(page + 1 < pageCount || index < rows.size());
+    }
+  }
+
+  private void cancel() {
+    for (Future<List<Object>> future : futures.values()) {
+      future.cancel(true);
+    }
+    futures.clear();
+  }
+
+  /** Reads a page of results. */
+  interface PageReader {
+    /** Returns the rows of the {@code page}th page, counting from 0. */
+    List<Object> read(int page) throws Exception;
+
+    /** Called when the enumerator is first closed.
+     *
+     * @param abandoned Whether the enumerator had not returned every row
+     */
+    void close(boolean abandoned);
+  }
+
+  /** Task that reads a page. */
+  private class PageTask implements Callable<List<Object>> {
+    private final int page;
+
+    PageTask(int page) {
+      this.page = page;
+    }
+
+    public List<Object> call() throws Exception {
+      return reader.read(page);
+    }
+  }
+}
+
+// End PagedEnumerator.java
@@ -0,0 +1,420 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.search;
+
+import net.hydromatic.linq4j.Enumerator;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Search that ends in "| stats", split into a search that computes partial
+ * aggregates, which can run over each slice of a time range, and a merge of
+ * the partial aggregates of the slices.
+ *
+ * <p>Supports "count", "sum", "min", "max" and "avg". Counts and sums are
+ * added; minima and maxima are compared, numerically if both values are
+ * numbers, and a number comes before any other value, so that the merge
+ * does not depend on the order in which the slices arrive; "avg(x)"
+ * becomes "sum(x)" and "count(x)", and the merge divides one by the other.
+ * "dc" (distinct count) is not supported, because Splunk cannot return a
+ * set of values that could be merged exactly; a search that uses it runs in
+ * one piece.</p>
+ *
+ * <p>The merge gives each group an ordinal, and holds partial aggregates
+ * in arrays of primitives indexed by ordinal.</p>
+ */
+public class PartialStats {
+  private static final Pattern STATS =
+      Pattern.compile("^(.*) \\| stats (.*?)(?: by ([^|]*))?$");
+
+  private static final Pattern AGG =
+      Pattern.compile(
+          "(count|sum|min|max|avg)(?:\\(([^()]*)\\))?(?: AS (\\w+))?");
+
+  /** Search before "| stats". */
+  private final String prefix;
+  private final List<String> groupNames;
+  private final List<Agg> aggs;
+  /** Partial aggregates, in the order that the partial search returns
+   * them. */
+  private final List<String> partialCalls = new ArrayList<String>();
+  private final List<String> partialNames = new ArrayList<String>();
+
+  private PartialStats(
+      String prefix, List<String> groupNames, List<Agg> aggs) {
+    this.prefix = prefix;
+    this.groupNames = groupNames;
+    this.aggs = aggs;
+    for (Agg agg : aggs) {
+      final String arg = agg.field == null ? "" : "(" + agg.field + ")";
+      if (agg.function.equals("avg")) {
+        agg.partial = partialNames.size();
+        partialCalls.add("sum" + arg);
+        partialNames.add(agg.name + "_sum");
+        partialCalls.add("count" + arg);
+        partialNames.add(agg.name + "_count");
+      } else {
+        agg.partial = partialNames.size();
+        partialCalls.add(agg.function + arg);
+        partialNames.add(agg.name);
+      }
+    }
+  }
+
+  /** Splits a search, or returns null if it does not end in a "| stats"
+   * that can be split, after commands that process each event
+   * independently. */
+  public static PartialStats of(String search) {
+    final Matcher matcher = STATS.matcher(search);
+    if (!matcher.matches()
+        || !SplunkConnection.isStreaming(matcher.group(1))) {
+      return null;
+    }
+    final List<Agg> aggs = new ArrayList<Agg>();
+    for (String call : matcher.group(2).split(", ")) {
+      final Matcher aggMatcher = AGG.matcher(call);
+      if (!aggMatcher.matches()) {
+        return null;
+      }
+      final String function = aggMatcher.group(1);
+      final String field = aggMatcher.group(2);
+      final String name = aggMatcher.group(3);
+      if (field == null && !function.equals("count")
+          || field != null && name == null) {
+        // Only "count" may omit its field. Other calls need "AS", so
+        // that the partial aggregates can have names derived from it.
+        return null;
+      }
+      aggs.add(new Agg(function, field, name == null ? function : name));
+    }
+    final List<String> groupNames = new ArrayList<String>();
+    if (matcher.group(3) != null) {
+      if (matcher.group(3).contains("\"")) {
+        return null;
+      }
+      groupNames.addAll(Arrays.asList(matcher.group(3).trim().split(" ")));
+    }
+    return new PartialStats(matcher.group(1), groupNames, aggs);
+  }
+
+  /** Returns the search that computes partial aggregates. */
+  public String getSearch() {
+    final StringBuilder buf = new StringBuilder(prefix).append(" | stats");
+    for (int i = 0; i < partialCalls.size(); i++) {
+      buf.append(i > 0 ? ", " : " ")
+          .append(partialCalls.get(i))
+          .append(" AS ")
+          .append(partialNames.get(i));
+    }
+    if (!groupNames.isEmpty()) {
+      buf.append(" by");
+      for (String groupName : groupNames) {
+        buf.append(' ').append(groupName);
+      }
+    }
+    return buf.toString();
+  }
+
+  /** Returns the fields that the partial search returns: the group fields,
+   * then the partial aggregates. */
+  public List<String> getFieldList() {
+    final List<String> list = new ArrayList<String>(groupNames);
+    list.addAll(partialNames);
+    return list;
+  }
+
+  /**
+   * Returns an enumerator that merges partial aggregates.
+   *
+   * @param partials Rows of the partial searches, with the fields of
+   *     {@link #getFieldList()}
+   * @param fieldList Fields to return, each a group field or the name of an
+   *     aggregate in the original search
+   */
+  public Enumerator merge(Enumerator partials, List<String> fieldList) {
+    return new MergeEnumerator(partials, fieldList);
+  }
+
+  /** Aggregate function call in a "| stats" command. */
+  private static class Agg {
+    final String function;
+    final String field;
+    final String name;
+    /** Position of the (first) partial aggregate among the partial
+     * aggregates. */
+    int partial;
+
+    Agg(String function, String field, String name) {
+      this.function = function;
+      this.field = field;
+      this.name = name;
+    }
+  }
+
+  /** Enumerator that reads all partial rows, merges those of the same
+   * group, then returns one row per group. */
+  private class MergeEnumerator implements Enumerator {
+    private final Enumerator partials;
+    private final List<String> fieldList;
+    private final Map<Object, Integer> ordinals =
+        new HashMap<Object, Integer>();
+    private final List<Object> groups = new ArrayList<Object>();
+    private final Column[] columns = new Column[partialNames.size()];
+    private int capacity = 16;
+    private int index = -1;
+    private Object current;
+
+    MergeEnumerator(Enumerator partials, List<String> fieldList) {
+      this.partials = partials;
+      this.fieldList = fieldList;
+      for (Agg agg : aggs) {
+        if (agg.function.equals("avg")) {
+          columns[agg.partial] = new SumColumn();
+          columns[agg.partial + 1] = new SumColumn();
+        } else if (agg.function.equals("min")) {
+          columns[agg.partial] = new ExtremeColumn(-1);
+        } else if (agg.function.equals("max")) {
+          columns[agg.partial] = new ExtremeColumn(1);
+        } else {
+          columns[agg.partial] = new SumColumn();
+        }
+      }
+      for (Column column : columns) {
+        column.resize(capacity);
+      }
+    }
+
+    private void read() {
+      final int groupCount = groupNames.size();
+      final int width = groupCount + columns.length;
+      try {
+        while (partials.moveNext()) {
+          final Object row = partials.current();
+          final Object key;
+          switch (groupCount) {
+          case 0:
+            key = "";
+            break;
+          case 1:
+            key = get(row, 0, width);
+            break;
+          default:
+            key =
+                new ArrayList<Object>(
+                    Arrays.asList((Object[]) row).subList(0, groupCount));
+          }
+          Integer ordinal = ordinals.get(key);
+          if (ordinal == null) {
+            ordinal = groups.size();
+            ordinals.put(key, ordinal);
+            groups.add(key);
+            if (ordinal == capacity) {
+              capacity *= 2;
+              for (Column column : columns) {
+                column.resize(capacity);
+              }
+            }
+          }
+          for (int i = 0; i < columns.length; i++) {
+            final Object value = get(row, groupCount + i, width);
+            if (value != null && !value.equals("")) {
+              columns[i].add(ordinal, (String) value);
+            }
+          }
+        }
+      } finally {
+        partials.close();
+      }
+      if (groups.isEmpty() && groupCount == 0) {
+        // Splunk returns one row even if there are no events.
+        groups.add("");
+      }
+    }
+
+    private Object get(Object row, int i, int width) {
+      return width == 1 ? row : ((Object[]) row)[i];
+    }
+
+    public Object current() {
+      return current;
+    }
+
+    public boolean moveNext() {
+      if (index < 0) {
+        read();
+      }
+      if (++index >= groups.size()) {
+        current = null;
+        return false;
+      }
+      final Object[] values = new Object[fieldList.size()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = value(fieldList.get(i));
+      }
+      current = values.length == 1 ? values[0] : values;
+      return true;
+    }
+
+    private Object value(String name) {
+      final int g = groupNames.indexOf(name);
+      if (g >= 0) {
+        final Object key = groups.get(index);
+        return groupNames.size() == 1 ? key : ((List) key).get(g);
+      }
+      for (Agg agg : aggs) {
+        if (agg.name.equals(name)) {
+          final Column column = columns[agg.partial];
+          if (agg.function.equals("count")) {
+            return column.get(index, "0");
+          } else if (agg.function.equals("avg")) {
+            return ((SumColumn) column).divide(
+                index, (SumColumn) columns[agg.partial + 1]);
+          } else {
+            return column.get(index, null);
+          }
+        }
+      }
+      return null;
+    }
+
+    public void reset() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+      partials.close();
+    }
+  }
+
+  /** Partial aggregates of one kind, one per group. */
+  private abstract static class Column {
+    /** Makes room for a given number of groups. */
+    abstract void resize(int n);
+
+    /** Adds a partial aggregate to a group. */
+    abstract void add(int ordinal, String value);
+
+    /** Returns the merged aggregate of a group, as a string, or a default
+     * if the group has no values. */
+    abstract String get(int ordinal, String defaultValue);
+  }
+
+  /** Sums; exact while every value is an integer. */
+  private static class SumColumn extends Column {
+    long[] longs = new long[0];
+    double[] doubles = new double[0];
+    /** Per group: 0 if no values, 1 if all are integers, 2 otherwise. */
+    byte[] states = new byte[0];
+
+    void resize(int n) {
+      final long[] newLongs = new long[n];
+      System.arraycopy(longs, 0, newLongs, 0, longs.length);
+      longs = newLongs;
+      final double[] newDoubles = new double[n];
+      System.arraycopy(doubles, 0, newDoubles, 0, doubles.length);
+      doubles = newDoubles;
+      final byte[] newStates = new byte[n];
+      System.arraycopy(states, 0, newStates, 0, states.length);
+      states = newStates;
+    }
+
+    void add(int ordinal, String value) {
+      if (states[ordinal] < 2) {
+        try {
+          longs[ordinal] += Long.parseLong(value);
+          doubles[ordinal] = longs[ordinal];
+          states[ordinal] = 1;
+          return;
+        } catch (NumberFormatException e) {
+          states[ordinal] = 2;
+        }
+      }
+      doubles[ordinal] += Double.parseDouble(value);
+    }
+
+    String get(int ordinal, String defaultValue) {
+      if (states[ordinal] == 0) {
+        return defaultValue;
+      }
+      return states[ordinal] == 1
+          ? Long.toString(longs[ordinal])
+          : BigDecimal.valueOf(doubles[ordinal]).toPlainString();
+    }
+
+    /** Returns the sum of a group divided by the sum of the same group in
+     * another column, or null if the divisor is zero. */
+    String divide(int ordinal, SumColumn counts) {
+      if (states[ordinal] == 0 || counts.doubles[ordinal] == 0d) {
+        return null;
+      }
+      return BigDecimal.valueOf(doubles[ordinal] / counts.doubles[ordinal])
+          .toPlainString();
+    }
+  }
+
+  /** Minima or maxima. */
+  private static class ExtremeColumn extends Column {
+    private final int sign;
+    String[] values = new String[0];
+
+    ExtremeColumn(int sign) {
+      this.sign = sign;
+    }
+
+    void resize(int n) {
+      final String[] newValues = new String[n];
+      System.arraycopy(values, 0, newValues, 0, values.length);
+      values = newValues;
+    }
+
+    void add(int ordinal, String value) {
+      final String previous = values[ordinal];
+      if (previous == null || compare(value, previous) * sign > 0) {
+        values[ordinal] = value;
+      }
+    }
+
+    String get(int ordinal, String defaultValue) {
+      return values[ordinal] != null ? values[ordinal] : defaultValue;
+    }
+
+    /** Compares two values in a total order: numbers numerically, before
+     * other values, which compare as strings. */
+    private static int compare(String s0, String s1) {
+      final Double d0 = toDouble(s0);
+      final Double d1 = toDouble(s1);
+      if (d0 != null) {
+        return d1 != null ? d0.compareTo(d1) : -1;
+      }
+      return d1 != null ? 1 : s0.compareTo(s1);
+    }
+
+    private static Double toDouble(String s) {
+      try {
+        return Double.valueOf(s);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+}
+
+// End PartialStats.java
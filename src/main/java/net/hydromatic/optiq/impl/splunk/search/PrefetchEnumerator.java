@@ -0,0 +1,158 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.search;
+
+import net.hydromatic.linq4j.Enumerator;
+import net.hydromatic.optiq.impl.splunk.util.StringUtils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Enumerator that reads rows from another enumerator in a background
+ * thread, so that reading from the network and decoding overlap with
+ * whatever the consumer does with the rows.
+ *
+ * <p>The producer thread passes rows to the consumer in batches (see
+ * {@link BatchProducer}), through a queue that holds at most
+ * {@code depth} batches; when the queue is full, the producer waits, and
+ * stops reading from the network, so that at most
+ * {@code (depth + 2) * batchSize} rows are held in memory. If the consumer
+ * is waiting, the producer hands over a batch without waiting for it to
+ * fill, so that slow searches do not add latency. The consumer returns
+ * each batch it has finished with to the producer, which reuses it, so
+ * at most {@code depth + 2} batches are allocated.</p>
+ *
+ * <p>The producer thread closes the underlying enumerator when it is
+ * exhausted. When this enumerator is closed, it closes the underlying
+ * enumerator too, from the consumer's thread, so that a producer that is
+ * waiting for the network wakes up; so the underlying enumerator's
+ * {@code close} method must be safe to call from another thread, and more
+ * than once.</p>
+ *
+ * @param <T> Element type
+ */
+public class PrefetchEnumerator<T> implements Enumerator<T> {
+  private static final Logger LOGGER =
+      StringUtils.getClassTracer(PrefetchEnumerator.class);
+
+  private static final AtomicInteger THREAD_ID = new AtomicInteger();
+
+  private final Enumerator<T> source;
+  private final BlockingQueue<BatchProducer.Batch> queue;
+  private final BatchProducer batchProducer;
+  private final Thread producer;
+
+  private BatchProducer.Batch batch;
+  private int index;
+  private T current;
+  private int waitCount;
+
+  /**
+   * Creates a PrefetchEnumerator and starts its producer thread.
+   *
+   * @param source Enumerator to read from
+   * @param batchSize Maximum number of rows in a batch
+   * @param depth Maximum number of batches waiting to be consumed
+   */
+  public PrefetchEnumerator(
+      final Enumerator<T> source, int batchSize, int depth) {
+    assert batchSize > 0 && depth > 0;
+    this.source = source;
+    this.queue = new ArrayBlockingQueue<BatchProducer.Batch>(depth);
+    this.batchProducer = new BatchProducer(batchSize);
+    this.producer =
+        new Thread("splunk-prefetch-" + THREAD_ID.incrementAndGet()) {
+          public void run() {
+            try {
+              batchProducer.produce(source, queue, null);
+            } finally {
+              // Clear the interrupt, if any, so that it does not disturb
+              // closing.
+              Thread.interrupted();
+              source.close();
+            }
+          }
+        };
+    producer.setDaemon(true);
+    producer.start();
+  }
+
+  public T current() {
+    return current;
+  }
+
+  @SuppressWarnings("unchecked")
+  public boolean moveNext() {
+    for (;;) {
+      if (batch != null) {
+        if (index < batch.count) {
+          current = (T) batch.rows[index];
+          batch.rows[index++] = null;
+          return true;
+        }
+        if (batch.end) {
+          batch.rethrow();
+          current = null;
+          return false;
+        }
+      }
+      if (batchProducer.isClosed()) {
+        return false;
+      }
+      if (batch != null) {
+        // All rows have been consumed, and cleared.
+        batchProducer.recycle(batch);
+        batch = null;
+      }
+      BatchProducer.Batch next = queue.poll();
+      if (next == null) {
+        ++waitCount;
+        next = BatchProducer.take(queue);
+      }
+      batch = next;
+      index = 0;
+    }
+  }
+
+  /** Returns the number of batches that the producer has allocated. */
+  public int getBatchCount() {
+    return batchProducer.getBatchCount();
+  }
+
+  public void reset() {
+    throw new UnsupportedOperationException();
+  }
+
+  /** Closes this enumerator, and the underlying enumerator, and stops the
+   * producer thread. */
+  public void close() {
+    if (batchProducer.isClosed()) {
+      return;
+    }
+    batchProducer.close();
+    producer.interrupt();
+    queue.clear();
+    source.close();
+    LOGGER.fine("prefetch: consumer waited " + waitCount + " times");
+  }
+}
+
+// End PrefetchEnumerator.java
@@ -0,0 +1,155 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.search;
+
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One of the search heads that a {@link SplunkConnection} sends searches
+ * to, with its session key, its load, and whether it is healthy.
+ *
+ * <p>A connection sends each search to the healthy head with the lowest
+ * load, estimated as the number of searches it is running, plus one,
+ * times its recent response time. A head that fails is marked down, and
+ * is not used again until a probe succeeds; probes are made when needed,
+ * at intervals that double after each failure.</p>
+ */
+public class SearchHead {
+  /** Weight of the latest response time in the smoothed response time. */
+  private static final double LATENCY_WEIGHT = 0.2d;
+
+  /** Interval before the first probe of a head that has failed. */
+  static final long MIN_RETRY_MILLIS = 1000;
+
+  /** Maximum interval between probes of a head that is down. */
+  static final long MAX_RETRY_MILLIS = 60000;
+
+  final URL url;
+  final SessionKeyCache.Entry sessionKeyEntry;
+  /** Session key, or null if not logged in. */
+  volatile String sessionKey;
+  final AtomicInteger activeCount = new AtomicInteger();
+  /** Smoothed time to the first byte of a response, in nanoseconds, or 0
+   * if unknown. */
+  private volatile double latencyNanos;
+  /** Number of consecutive failures. */
+  private int failureCount;
+  /** Time (as {@link System#currentTimeMillis()}) before which the head
+   * should not be probed, or 0 if it is up. */
+  private long retryTime;
+
+  SearchHead(URL url, SessionKeyCache.Entry sessionKeyEntry) {
+    this.url = url;
+    this.sessionKeyEntry = sessionKeyEntry;
+  }
+
+  public String toString() {
+    return "SearchHead {url: " + url + ", active: " + activeCount
+        + ", latency: " + getLatencyMillis() + "ms, up: " + isUp() + "}";
+  }
+
+  /** Returns the URL of this head. */
+  public URL getUrl() {
+    return url;
+  }
+
+  /** Returns the number of searches running on this head. */
+  public int getActiveCount() {
+    return activeCount.get();
+  }
+
+  /** Returns the smoothed time taken by this head to start returning
+   * results, in milliseconds, or 0 if unknown. */
+  public double getLatencyMillis() {
+    return latencyNanos / 1000000d;
+  }
+
+  /** Returns whether this head is up, that is, has not failed since it
+   * last succeeded. */
+  public synchronized boolean isUp() {
+    return retryTime == 0;
+  }
+
+  /** Returns the URL of a service on this head. */
+  String url(String path) {
+    return String.format(
+        "%s://%s:%d%s", url.getProtocol(), url.getHost(), url.getPort(),
+        path);
+  }
+
+  /** Returns HTTP headers for a request to this head: common headers, and
+   * the session key. */
+  Map<String, String> headers(Map<String, String> commonHeaders) {
+    final Map<String, String> headers =
+        new LinkedHashMap<String, String>(commonHeaders);
+    final String key = sessionKey;
+    if (key != null) {
+      headers.put("Authorization", "Splunk " + key);
+    }
+    return headers;
+  }
+
+  /** Returns the estimated load; lower is better. */
+  double load() {
+    final double latency = latencyNanos;
+    return (activeCount.get() + 1) * (latency == 0d ? 1d : latency);
+  }
+
+  /** Records how long the head took to start returning results. */
+  void recordLatency(long nanos) {
+    final double latency = latencyNanos;
+    latencyNanos =
+        latency == 0d
+            ? nanos
+            : latency + LATENCY_WEIGHT * (nanos - latency);
+  }
+
+  /** Records that the head responded. */
+  synchronized void markUp() {
+    failureCount = 0;
+    retryTime = 0;
+  }
+
+  /** Records that the head failed. */
+  synchronized void markDown() {
+    retryTime = System.currentTimeMillis() + retryInterval();
+    ++failureCount;
+  }
+
+  /** If the head is down and is due to be probed, claims the probe, so
+   * that other threads do not probe it at the same time, and returns
+   * true. */
+  synchronized boolean claimProbe() {
+    final long now = System.currentTimeMillis();
+    if (retryTime == 0 || now < retryTime) {
+      return false;
+    }
+    retryTime = now + retryInterval();
+    return true;
+  }
+
+  private long retryInterval() {
+    return Math.min(
+        MIN_RETRY_MILLIS << Math.min(failureCount, 16), MAX_RETRY_MILLIS);
+  }
+}
+
+// End SearchHead.java
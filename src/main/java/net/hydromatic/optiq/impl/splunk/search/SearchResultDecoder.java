@@ -0,0 +1,65 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.search;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes search results in one of the formats that Splunk's export
+ * endpoint can produce.
+ *
+ * @see SearchResultDecoders
+ * @see SplunkConnection#setDecoder(SearchResultDecoder)
+ */
+public interface SearchResultDecoder {
+  /** Sets the arguments of an export request that ask Splunk to produce
+   * results in this format; for example, "output_mode". */
+  void setArgs(Map<String, String> args);
+
+  /** Creates a cursor over the results in a stream. */
+  Cursor open(InputStream in);
+
+  /** Cursor over decoded search results. */
+  interface Cursor extends Closeable {
+    /** Returns the names of the fields, or null if there are no results.
+     * Must be called once, before {@link #next()}. */
+    String[] getFieldNames() throws IOException;
+
+    /** Moves to the next row; returns false at the end. Rows whose values
+     * do not match the field names are skipped. */
+    boolean next() throws IOException;
+
+    /** Returns the {@code i}th value of the current row, where {@code i} is
+     * the position of the field in {@link #getFieldNames()}. Only decodes
+     * the value when it is asked for. */
+    String get(int i);
+
+    /** Returns the values of the {@code i}th field of the current row, if
+     * it is a multi-value field and the format can tell, otherwise null.
+     * {@link #get(int)} returns the same values joined with line breaks;
+     * "json_rows" preserves the values, CSV cannot distinguish them from a
+     * value that contains line breaks. */
+    List<String> getValues(int i);
+  }
+}
+
+// End SearchResultDecoder.java
@@ -0,0 +1,208 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.search;
+
+import net.hydromatic.optiq.impl.splunk.util.CsvParser;
+import net.hydromatic.optiq.impl.splunk.util.JsonRowsParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implementations of {@link SearchResultDecoder}.
+ */
+public class SearchResultDecoders {
+  private SearchResultDecoders() {
+  }
+
+  /** Decoder for "csv" output mode. */
+  public static final SearchResultDecoder CSV =
+      new SearchResultDecoder() {
+        public void setArgs(Map<String, String> args) {
+          args.put("output_mode", "csv");
+        }
+
+        public Cursor open(InputStream in) {
+          return new CsvCursor(new CsvParser(in));
+        }
+
+        public String toString() {
+          return "csv";
+        }
+      };
+
+  /** Decoder for "json_rows" output mode. Unlike CSV, distinguishes null
+   * values from empty strings. */
+  public static final SearchResultDecoder JSON_ROWS =
+      new SearchResultDecoder() {
+        public void setArgs(Map<String, String> args) {
+          args.put("output_mode", "json_rows");
+        }
+
+        public Cursor open(InputStream in) {
+          return new JsonRowsCursor(new JsonRowsParser(in));
+        }
+
+        public String toString() {
+          return "json_rows";
+        }
+      };
+
+  /** Returns the decoder for an output mode, "csv" or "json_rows". */
+  public static SearchResultDecoder get(String outputMode) {
+    if (outputMode.equals("csv")) {
+      return CSV;
+    }
+    if (outputMode.equals("json_rows")) {
+      return JSON_ROWS;
+    }
+    throw new IllegalArgumentException(
+        "unknown output mode '" + outputMode + "'; expected 'csv' or "
+        + "'json_rows'");
+  }
+
+  /** Cursor over results in CSV format. The first record holds the field
+   * names. */
+  private static class CsvCursor implements SearchResultDecoder.Cursor {
+    private final CsvParser parser;
+    private int fieldCount;
+
+    CsvCursor(CsvParser parser) {
+      this.parser = parser;
+    }
+
+    public String[] getFieldNames() throws IOException {
+      final String[] fieldNames = parser.readAll();
+      if (fieldNames == null
+          || fieldNames.length == 0
+          || fieldNames.length == 1 && fieldNames[0].isEmpty()) {
+        return null;
+      }
+      fieldCount = fieldNames.length;
+      return fieldNames;
+    }
+
+    public boolean next() throws IOException {
+      int n;
+      while ((n = parser.next()) >= 0) {
+        if (n == fieldCount) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    public String get(int i) {
+      return parser.get(i);
+    }
+
+    public List<String> getValues(int i) {
+      return null;
+    }
+
+    public void close() throws IOException {
+      parser.close();
+    }
+  }
+
+  /** Cursor over results in "json_rows" format. The field names are those
+   * in effect for the first row; if a later batch of rows has different
+   * fields, its values are mapped by name. */
+  private static class JsonRowsCursor implements SearchResultDecoder.Cursor {
+    private final JsonRowsParser parser;
+    private String[] fieldNames;
+    private boolean pending;
+
+    /** Field names of the current batch, and for each of our fields, its
+     * position in the current batch, or -1. Null if the current batch has
+     * the same fields as the first batch. */
+    private String[] batchFields;
+    private int[] mapping;
+
+    JsonRowsCursor(JsonRowsParser parser) {
+      this.parser = parser;
+    }
+
+    public String[] getFieldNames() throws IOException {
+      if (parser.next() < 0) {
+        return null;
+      }
+      pending = true;
+      fieldNames = parser.getFields();
+      if (fieldNames.length == 0) {
+        return null;
+      }
+      batchFields = fieldNames;
+      return fieldNames;
+    }
+
+    public boolean next() throws IOException {
+      for (;;) {
+        if (pending) {
+          pending = false;
+        } else if (parser.next() < 0) {
+          return false;
+        }
+        final String[] fields = parser.getFields();
+        if (fields != batchFields) {
+          batchFields = fields;
+          mapping = Arrays.equals(fields, fieldNames)
+              ? null
+              : mapping(fieldNames, fields);
+        }
+        if (parser.getValueCount() == batchFields.length) {
+          return true;
+        }
+      }
+    }
+
+    private static int[] mapping(String[] fieldNames, String[] fields) {
+      final List<String> list = Arrays.asList(fields);
+      final int[] mapping = new int[fieldNames.length];
+      for (int i = 0; i < fieldNames.length; i++) {
+        mapping[i] = list.indexOf(fieldNames[i]);
+      }
+      return mapping;
+    }
+
+    public String get(int i) {
+      if (mapping == null) {
+        return parser.get(i);
+      }
+      final int j = mapping[i];
+      return j < 0 ? null : parser.get(j);
+    }
+
+    public List<String> getValues(int i) {
+      if (mapping == null) {
+        return parser.getValues(i);
+      }
+      final int j = mapping[i];
+      return j < 0 ? null : parser.getValues(j);
+    }
+
+    public void close() throws IOException {
+      parser.close();
+    }
+  }
+}
+
+// End SearchResultDecoders.java
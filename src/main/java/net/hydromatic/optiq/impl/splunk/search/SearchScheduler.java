@@ -0,0 +1,263 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.search;
+
+import java.util.*;
+
+/**
+ * Decides when the exports of one or more {@link SplunkConnection}s may
+ * start, and on which search head, so that they do not exceed Splunk's
+ * limits on concurrent searches.
+ *
+ * <p>An export may start if its connection is running fewer than its
+ * limit of exports (see {@link SplunkConnection#setMaxActiveSearches(int)})
+ * and one of its search heads is running fewer than this scheduler's limit
+ * per head; heads are identified by URL, so connections that share a
+ * scheduler share the limit. Otherwise the export waits in a queue.</p>
+ *
+ * <p>Waiting exports start in order of priority, then in the order in
+ * which they arrived; an export is passed over only if a limit that does
+ * not apply to a later export stops it from starting. An export that waits
+ * longer than its connection's timeout fails with
+ * {@link QueueTimeoutException}.</p>
+ */
+public class SearchScheduler {
+  /** Priority class of a search. */
+  public enum Priority {
+    /** Search for which a user is waiting, such as a dashboard query. */
+    INTERACTIVE,
+    /** Search that can wait, such as a report or an extract. */
+    BATCH
+  }
+
+  /** Longest time that a waiting export sleeps before checking again
+   * whether a search head has come back up. */
+  private static final long RECHECK_MILLIS = 1000;
+
+  private final int maxActivePerHead;
+  /** Number of exports running on each search head, keyed by URL. */
+  private final Map<String, Integer> headActiveCounts =
+      new HashMap<String, Integer>();
+  /** Waiting exports, in order of arrival; first the interactive ones,
+   * then the batch ones. */
+  private final List<LinkedList<Waiter>> queues =
+      new ArrayList<LinkedList<Waiter>>();
+
+  private long admittedCount;
+  private long timeoutCount;
+  private long totalWaitNanos;
+  private long maxWaitNanos;
+
+  /**
+   * Creates a SearchScheduler.
+   *
+   * @param maxActivePerHead Maximum number of exports running on a search
+   *     head at a time, or 0 for no limit
+   */
+  public SearchScheduler(int maxActivePerHead) {
+    this.maxActivePerHead = maxActivePerHead;
+    for (Priority priority : Priority.values()) {
+      queues.add(new LinkedList<Waiter>());
+    }
+  }
+
+  /**
+   * Waits until an export may start, and returns the search head that it
+   * should use.
+   *
+   * @param connection Connection that runs the export
+   * @param excluded Heads not to use, because they failed
+   * @return Head, or null if none of the connection's heads is up
+   * @throws QueueTimeoutException if the export waits longer than the
+   *     connection's timeout
+   */
+  synchronized SearchHead acquire(
+      SplunkConnection connection, Set<SearchHead> excluded) {
+    final Waiter waiter =
+        new Waiter(connection, excluded, System.nanoTime());
+    queues.get(connection.priority.ordinal()).add(waiter);
+    dispatch();
+    final long timeoutMillis = connection.queueTimeoutMillis;
+    try {
+      while (!waiter.admitted) {
+        final long waitedMillis =
+            (System.nanoTime() - waiter.startNanos) / 1000000;
+        long sleepMillis = RECHECK_MILLIS;
+        if (timeoutMillis > 0) {
+          if (waitedMillis >= timeoutMillis) {
+            ++timeoutCount;
+            throw new QueueTimeoutException(
+                "search waited more than " + timeoutMillis
+                + "ms to start");
+          }
+          sleepMillis = Math.min(sleepMillis, timeoutMillis - waitedMillis);
+        }
+        wait(sleepMillis);
+        dispatch();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } finally {
+      if (!waiter.admitted) {
+        queues.get(connection.priority.ordinal()).remove(waiter);
+        // Another waiter may be able to use the place.
+        dispatch();
+      }
+    }
+    final long waitNanos = System.nanoTime() - waiter.startNanos;
+    ++admittedCount;
+    totalWaitNanos += waitNanos;
+    maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+    return waiter.head;
+  }
+
+  /** Records that an export has finished, so that another may start. */
+  synchronized void release(SplunkConnection connection, SearchHead head) {
+    --connection.activeSearchCount;
+    if (head != null) {
+      final String key = head.url.toString();
+      final int n = headActiveCounts.get(key) - 1;
+      if (n == 0) {
+        headActiveCounts.remove(key);
+      } else {
+        headActiveCounts.put(key, n);
+      }
+    }
+    dispatch();
+  }
+
+  /** Starts the waiting exports that may start, in order of priority and
+   * arrival. */
+  private void dispatch() {
+    boolean any = false;
+    for (LinkedList<Waiter> queue : queues) {
+      for (Iterator<Waiter> iterator = queue.iterator();
+           iterator.hasNext();) {
+        final Waiter waiter = iterator.next();
+        final SplunkConnection connection = waiter.connection;
+        if (connection.maxActiveSearches > 0
+            && connection.activeSearchCount
+               >= connection.maxActiveSearches) {
+          continue;
+        }
+        SearchHead best = null;
+        boolean anyUp = false;
+        for (SearchHead head : connection.getSearchHeads()) {
+          if (waiter.excluded.contains(head) || !head.isUp()) {
+            continue;
+          }
+          anyUp = true;
+          if (maxActivePerHead > 0
+              && headActiveCount(head) >= maxActivePerHead) {
+            continue;
+          }
+          if (best == null || head.load() < best.load()) {
+            best = head;
+          }
+        }
+        if (best == null && anyUp) {
+          continue;
+        }
+        iterator.remove();
+        waiter.admitted = true;
+        waiter.head = best;
+        ++connection.activeSearchCount;
+        if (best != null) {
+          headActiveCounts.put(
+              best.url.toString(), headActiveCount(best) + 1);
+        }
+        any = true;
+      }
+    }
+    if (any) {
+      notifyAll();
+    }
+  }
+
+  private int headActiveCount(SearchHead head) {
+    final Integer n = headActiveCounts.get(head.url.toString());
+    return n == null ? 0 : n;
+  }
+
+  /** Returns the number of exports waiting to start. */
+  public synchronized int getQueueLength() {
+    int n = 0;
+    for (LinkedList<Waiter> queue : queues) {
+      n += queue.size();
+    }
+    return n;
+  }
+
+  /** Returns the number of exports that have started. */
+  public synchronized long getAdmittedCount() {
+    return admittedCount;
+  }
+
+  /** Returns the number of exports that gave up waiting. */
+  public synchronized long getTimeoutCount() {
+    return timeoutCount;
+  }
+
+  /** Returns the average time that started exports waited, in
+   * milliseconds. */
+  public synchronized double getAverageWaitMillis() {
+    return admittedCount == 0
+        ? 0d
+        : totalWaitNanos / 1000000d / admittedCount;
+  }
+
+  /** Returns the longest time that a started export waited, in
+   * milliseconds. */
+  public synchronized double getMaxWaitMillis() {
+    return maxWaitNanos / 1000000d;
+  }
+
+  public synchronized String toString() {
+    return "SearchScheduler {queued: " + getQueueLength()
+        + ", admitted: " + admittedCount + ", timeouts: " + timeoutCount
+        + ", averageWait: " + getAverageWaitMillis() + "ms, maxWait: "
+        + getMaxWaitMillis() + "ms}";
+  }
+
+  /** Export waiting to start. */
+  private static class Waiter {
+    final SplunkConnection connection;
+    final Set<SearchHead> excluded;
+    final long startNanos;
+    boolean admitted;
+    SearchHead head;
+
+    Waiter(
+        SplunkConnection connection, Set<SearchHead> excluded,
+        long startNanos) {
+      this.connection = connection;
+      this.excluded = excluded;
+      this.startNanos = startNanos;
+    }
+  }
+
+  /** Thrown when a search waits too long to start. */
+  public static class QueueTimeoutException extends RuntimeException {
+    public QueueTimeoutException(String message) {
+      super(message);
+    }
+  }
+}
+
+// End SearchScheduler.java
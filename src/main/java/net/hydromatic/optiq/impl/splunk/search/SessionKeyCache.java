@@ -0,0 +1,116 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.search;
+
+import net.hydromatic.optiq.impl.splunk.util.StringUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of Splunk session keys, shared by {@link SplunkConnection}s, so that
+ * a new connection to the same server as the same user does not need to log
+ * in again.
+ *
+ * <p>Entries are keyed by a digest of server, user name and password; a
+ * connection that presents a different password does not see the key
+ * obtained with another password, and the cache does not hold
+ * passwords.</p>
+ */
+public class SessionKeyCache {
+  private static final SessionKeyCache DEFAULT = new SessionKeyCache();
+
+  private final Map<String, Entry> map = new HashMap<String, Entry>();
+
+  private final AtomicLong lookupCount = new AtomicLong();
+  private final AtomicLong reuseCount = new AtomicLong();
+  private final AtomicLong loginCount = new AtomicLong();
+  private final AtomicLong loginNanos = new AtomicLong();
+
+  /** Returns the cache shared by all connections that do not have their
+   * own. */
+  public static SessionKeyCache getDefault() {
+    return DEFAULT;
+  }
+
+  /** Returns the key of the entry for a server, user and password: a
+   * SHA-256 digest, so that the cache, which lives as long as the JVM,
+   * never holds the password itself. */
+  static String key(String server, String username, String password) {
+    return StringUtils.digest(server, username, password);
+  }
+
+  /** Returns the entry for a key, creating an empty one if necessary. The
+   * caller should synchronize on the entry while logging in. */
+  synchronized Entry entry(String key) {
+    Entry entry = map.get(key);
+    if (entry == null) {
+      entry = new Entry();
+      map.put(key, entry);
+    }
+    return entry;
+  }
+
+  /** Records that a connection looked for a session key, and whether it
+   * found one. */
+  void recordLookup(boolean reused) {
+    lookupCount.incrementAndGet();
+    if (reused) {
+      reuseCount.incrementAndGet();
+    }
+  }
+
+  /** Records that a connection logged in, and how long it took. */
+  void recordLogin(long nanos) {
+    loginCount.incrementAndGet();
+    loginNanos.addAndGet(nanos);
+  }
+
+  /** Removes all session keys. */
+  public synchronized void clear() {
+    map.clear();
+  }
+
+  /** Returns the number of logins. */
+  public long getLoginCount() {
+    return loginCount.get();
+  }
+
+  /** Returns the average time taken by a login, in milliseconds. */
+  public double getAverageLoginMillis() {
+    final long n = loginCount.get();
+    return n == 0 ? 0d : loginNanos.get() / 1000000d / n;
+  }
+
+  /** Returns the proportion of session key lookups that were satisfied by a
+   * key obtained earlier, between 0 and 1. */
+  public double getReuseRatio() {
+    final long n = lookupCount.get();
+    return n == 0 ? 0d : (double) reuseCount.get() / n;
+  }
+
+  /** Session key for a particular server, user and password. */
+  static class Entry {
+    /** Current session key, or null if not logged in. Guarded by the
+     * entry. */
+    String sessionKey;
+  }
+}
+
+// End SessionKeyCache.java
@@ -0,0 +1,396 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.search;
+
+import net.hydromatic.linq4j.Enumerator;
+import net.hydromatic.optiq.impl.splunk.util.StringUtils;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Enumerator that runs a search as several searches, each over a slice of
+ * the time range, concurrently, and combines their results.
+ *
+ * <p>Each slice is read by a task on an executor, which passes rows to the
+ * consumer in batches through a bounded queue (see {@link BatchProducer}),
+ * as {@link PrefetchEnumerator} does. If a slice fails, the consumer
+ * receives its error. If the results are not wanted in any particular
+ * order, the slices share a queue, and the consumer receives rows from
+ * whichever slice produces them first.</p>
+ *
+ * <p>If the results are wanted in "_time" order, each slice is sorted, has
+ * its own queue, and the consumer merges the slices, comparing the time of
+ * the next row from each. A slice takes part in the merge only when its time
+ * range could contain a row that comes before the rows of the slices already
+ * merging. Each slice asks the {@link SearchScheduler} to start only after
+ * the slice before it has started, so that, if the connection may run
+ * fewer searches than there are slices, the slices that are running are
+ * always the earliest in merge order, and the consumer never waits for a
+ * slice that cannot start because later slices, which are waiting for the
+ * consumer, hold the places.</p>
+ *
+ * <p>A slice whose queue is full holds its thread until the consumer takes
+ * a batch, so the executor must be able to run every slice at once, or the
+ * consumer may wait for a slice that cannot start because other slices,
+ * perhaps of another enumerator, are holding the threads.</p>
+ */
+public class SlicedEnumerator implements Enumerator<Object> {
+  private static final Logger LOGGER =
+      StringUtils.getClassTracer(SlicedEnumerator.class);
+
+  private final SplunkConnection connection;
+  private final List<String> fieldList;
+  private final List<Slice> slices;
+  private final int timeIndex;
+  private final int timeOrder;
+  private final BatchProducer batchProducer;
+  /** Queue shared by all slices, if the order does not matter; otherwise
+   * null. */
+  private final BlockingQueue<BatchProducer.Batch> sharedQueue;
+  private final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+  /** Slices that are merging, ordered by the time of their next row. */
+  private final PriorityQueue<Cursor> heap;
+  private int nextSlice;
+  private Cursor cursor;
+  private int endCount;
+  private Object current;
+
+  /**
+   * Creates a SlicedEnumerator and submits its slices to an executor.
+   *
+   * @param connection Connection to run the searches on
+   * @param executor Executor to read slices; must not limit its number of
+   *     threads
+   * @param fieldList Fields to return
+   * @param slices Slices, in the order in which they are to be merged
+   * @param timeOrder 1 to return rows in ascending "_time" order, -1
+   *     descending, 0 in any order
+   * @param batchSize Maximum number of rows in a batch
+   * @param depth Maximum number of batches waiting to be consumed, per
+   *     slice if ordered, otherwise in all
+   */
+  SlicedEnumerator(
+      SplunkConnection connection,
+      ExecutorService executor,
+      List<String> fieldList,
+      List<Slice> slices,
+      int timeOrder,
+      int batchSize,
+      int depth) {
+    assert batchSize > 0 && depth > 0;
+    this.connection = connection;
+    this.fieldList = fieldList;
+    this.slices = slices;
+    this.timeOrder = timeOrder;
+    this.timeIndex = fieldList == null ? -1 : fieldList.indexOf("_time");
+    this.batchProducer = new BatchProducer(batchSize);
+    assert timeOrder == 0 || timeIndex >= 0;
+    if (timeOrder == 0) {
+      sharedQueue = new ArrayBlockingQueue<BatchProducer.Batch>(depth);
+      heap = null;
+    } else {
+      sharedQueue = null;
+      heap = new PriorityQueue<Cursor>(slices.size());
+    }
+    Slice previous = null;
+    for (Slice slice : slices) {
+      slice.queue =
+          sharedQueue != null
+              ? sharedQueue
+              : new ArrayBlockingQueue<BatchProducer.Batch>(depth);
+      if (timeOrder != 0) {
+        slice.previous = previous;
+        previous = slice;
+      }
+      slice.submitNanos = System.nanoTime();
+      futures.add(executor.submit(new SliceTask(slice)));
+    }
+  }
+
+  /** Returns the slices, whose statistics show how long each took. */
+  public List<Slice> getSlices() {
+    return slices;
+  }
+
+  public Object current() {
+    return current;
+  }
+
+  public boolean moveNext() {
+    if (batchProducer.isClosed()) {
+      return false;
+    }
+    return timeOrder == 0 ? moveNextShared() : moveNextMerge();
+  }
+
+  private boolean moveNextShared() {
+    for (;;) {
+      if (cursor != null && cursor.advance()) {
+        current = cursor.row;
+        return true;
+      }
+      if (endCount == slices.size()) {
+        current = null;
+        return false;
+      }
+      cursor = new Cursor(sharedQueue);
+      if (cursor.batch.end) {
+        ++endCount;
+      }
+    }
+  }
+
+  private boolean moveNextMerge() {
+    // Add the slices that could contain a row that comes before the
+    // earliest (or latest) row so far.
+    while (nextSlice < slices.size()
+        && (heap.isEmpty()
+            || mayPrecede(slices.get(nextSlice), heap.peek().time))) {
+      final Slice slice = slices.get(nextSlice++);
+      final Cursor c = new Cursor(slice.queue);
+      if (c.advance()) {
+        heap.add(c);
+      }
+    }
+    final Cursor c = heap.poll();
+    if (c == null) {
+      current = null;
+      return false;
+    }
+    current = c.row;
+    if (c.advance()) {
+      heap.add(c);
+    }
+    return true;
+  }
+
+  /** Returns whether a slice could contain a row that comes before a row
+   * with a given time. Rows without a time come last. */
+  private boolean mayPrecede(Slice slice, Long time) {
+    if (time == null) {
+      return true;
+    }
+    if (timeOrder > 0) {
+      return slice.earliest == null || slice.earliest < time;
+    } else {
+      return slice.latest == null || slice.latest - 1 > time;
+    }
+  }
+
+  public void reset() {
+    throw new UnsupportedOperationException();
+  }
+
+  /** Closes this enumerator, cancels the slices that have not finished,
+   * and closes their searches. */
+  public void close() {
+    if (batchProducer.isClosed()) {
+      return;
+    }
+    batchProducer.close();
+    for (Future<?> future : futures) {
+      future.cancel(true);
+    }
+    for (Slice slice : slices) {
+      slice.queue.clear();
+      final Enumerator enumerator = slice.enumerator;
+      if (enumerator != null) {
+        enumerator.close();
+      }
+    }
+    LOGGER.fine("slices: " + slices);
+  }
+
+  private Long time(Object row) {
+    return (Long) (fieldList.size() == 1 ? row : ((Object[]) row)[timeIndex]);
+  }
+
+  /** Slice of a search's time range, and statistics about how long it
+   * took. */
+  public static class Slice {
+    /** Start of the range, in milliseconds since the epoch, inclusive, or
+     * null. */
+    public final Long earliest;
+    /** End of the range, in milliseconds since the epoch, exclusive, or
+     * null. */
+    public final Long latest;
+    final String search;
+    final Map<String, String> args;
+
+    BlockingQueue<BatchProducer.Batch> queue;
+    /** Slice that must start before this one, or null. */
+    Slice previous;
+    /** Released when the scheduler has admitted this slice's search, or
+     * the slice has finished. */
+    final CountDownLatch admitted = new CountDownLatch(1);
+    volatile Enumerator enumerator;
+    volatile long submitNanos;
+    volatile long startNanos;
+    volatile long firstRowNanos;
+    volatile long endNanos;
+    volatile int rowCount;
+
+    Slice(
+        Long earliest, Long latest, String search, Map<String, String> args) {
+      this.earliest = earliest;
+      this.latest = latest;
+      this.search = search;
+      this.args = args;
+    }
+
+    /** Returns how long the slice waited for a thread, in milliseconds, or
+     * -1 if it has not started. */
+    public long getWaitMillis() {
+      return startNanos == 0 ? -1 : (startNanos - submitNanos) / 1000000;
+    }
+
+    /** Returns how long Splunk took to produce the slice's first row, in
+     * milliseconds, or -1 if it has produced none. */
+    public long getFirstRowMillis() {
+      return firstRowNanos == 0 ? -1 : (firstRowNanos - startNanos) / 1000000;
+    }
+
+    /** Returns how long the slice took to read, in milliseconds, or -1 if
+     * it has not finished. */
+    public long getElapsedMillis() {
+      return endNanos == 0 ? -1 : (endNanos - startNanos) / 1000000;
+    }
+
+    /** Returns the number of rows read. */
+    public int getRowCount() {
+      return rowCount;
+    }
+
+    public String toString() {
+      return "Slice {earliest: " + earliest + ", latest: " + latest
+          + ", rows: " + rowCount + ", wait: " + getWaitMillis()
+          + "ms, firstRow: " + getFirstRowMillis() + "ms, elapsed: "
+          + getElapsedMillis() + "ms}";
+    }
+  }
+
+  /** Task that reads a slice and passes its rows to the consumer. */
+  private class SliceTask implements Runnable {
+    private final Slice slice;
+
+    SliceTask(Slice slice) {
+      this.slice = slice;
+    }
+
+    public void run() {
+      slice.startNanos = System.nanoTime();
+      try {
+        if (slice.previous != null) {
+          slice.previous.admitted.await();
+        }
+        if (batchProducer.isClosed()) {
+          return;
+        }
+        slice.enumerator =
+            connection.openSearch(
+                slice.search, slice.args, fieldList,
+                new Runnable() {
+                  public void run() {
+                    slice.admitted.countDown();
+                  }
+                });
+        slice.admitted.countDown();
+        batchProducer.produce(
+            slice.enumerator, slice.queue,
+            new Runnable() {
+              public void run() {
+                if (slice.rowCount++ == 0) {
+                  slice.firstRowNanos = System.nanoTime();
+                }
+              }
+            });
+      } catch (InterruptedException e) {
+        // closed by the consumer
+      } catch (Throwable e) {
+        // The search failed before it returned rows; it must not look as
+        // if it returned none.
+        batchProducer.end(slice.queue, e);
+      } finally {
+        slice.admitted.countDown();
+        slice.endNanos = System.nanoTime();
+        // Clear the interrupt, if any, so that it does not disturb closing.
+        Thread.interrupted();
+        if (slice.enumerator != null) {
+          slice.enumerator.close();
+        }
+      }
+    }
+  }
+
+  /** Position in a stream of batches, and the time of its current row. */
+  private class Cursor implements Comparable<Cursor> {
+    final BlockingQueue<BatchProducer.Batch> queue;
+    BatchProducer.Batch batch;
+    int index = -1;
+    Object row;
+    Long time;
+
+    /** Creates a cursor, and waits for the first batch from a queue. */
+    Cursor(BlockingQueue<BatchProducer.Batch> queue) {
+      this.queue = queue;
+      this.batch = BatchProducer.take(queue);
+    }
+
+    /** Moves to the next row; returns false at the end of the batch, if
+     * the order does not matter, or else at the end of the slice. */
+    boolean advance() {
+      for (;;) {
+        if (++index < batch.count) {
+          row = batch.rows[index];
+          batch.rows[index] = null;
+          if (timeOrder != 0) {
+            time = time(row);
+          }
+          return true;
+        }
+        batch.rethrow();
+        if (batch.end || timeOrder == 0) {
+          if (!batch.end) {
+            // The cursor is finished with this batch.
+            batchProducer.recycle(batch);
+          }
+          return false;
+        }
+        batchProducer.recycle(batch);
+        batch = BatchProducer.take(queue);
+        index = -1;
+      }
+    }
+
+    public int compareTo(Cursor o) {
+      if (time == null) {
+        return o.time == null ? 0 : 1;
+      }
+      if (o.time == null) {
+        return -1;
+      }
+      final int c = time.compareTo(o.time);
+      return timeOrder > 0 ? c : -c;
+    }
+  }
+}
+
+// End SlicedEnumerator.java
@@ -19,15 +19,25 @@ package net.hydromatic.optiq.impl.splunk.search;
 
 import net.hydromatic.linq4j.Enumerator;
 import net.hydromatic.linq4j.Linq4j;
+import net.hydromatic.optiq.impl.splunk.util.HttpConnectionPool;
+import net.hydromatic.optiq.impl.splunk.util.HttpStatusException;
 import net.hydromatic.optiq.impl.splunk.util.HttpUtils;
+import net.hydromatic.optiq.impl.splunk.util.NioHttpClient;
 import net.hydromatic.optiq.impl.splunk.util.StringUtils;
-
-import au.com.bytecode.opencsv.CSVReader;
+import net.hydromatic.optiq.impl.splunk.util.TransferStats;
 
 import java.io.*;
+import java.math.BigDecimal;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -41,14 +51,100 @@ public class SplunkConnection {
   private static final Logger LOGGER =
       Logger.getLogger(SplunkConnection.class.getName());
 
+  /** Format in which Splunk is asked to send "_time": seconds since the
+   * epoch, with milliseconds. */
+  private static final String TIME_FORMAT = "%s.%Q";
+
+  /** Searches that compute {@link EventStatistics}, in order of
+   * preference. Each returns the fields "count", "earliest" and "latest".
+   * "tstats" reads only index metadata; "metadata" works on servers that
+   * do not have "tstats". */
+  private static final String[] STATISTICS_SEARCHES = {
+    "| tstats count, min(_time) AS earliest, max(_time) AS latest"
+    + " where index=*",
+    "| metadata type=sourcetypes"
+    + " | stats sum(totalCount) AS count, min(firstTime) AS earliest,"
+    + " max(lastTime) AS latest",
+  };
+
+  /** How long {@link #getEventStatistics()} caches statistics. */
+  private static final long STATISTICS_TTL_MILLIS = 10 * 60 * 1000;
+
+  private static final AtomicInteger SLICE_THREAD_ID = new AtomicInteger();
+
+  private static final AtomicInteger PAGE_THREAD_ID = new AtomicInteger();
+
+  /** Maximum number of finished search jobs remembered for reuse. */
+  private static final int MAX_JOBS = 100;
+
+  /** Longest interval between polls of the status of a search job. */
+  private static final long MAX_POLL_MILLIS = 1000;
+
+  private static final Pattern JOB_SID =
+      Pattern.compile("<sid>\\s*([^<\\s]+)\\s*</sid>");
+
+  private static final Pattern DISPATCH_STATE =
+      Pattern.compile("\"dispatchState\"\\s*:\\s*\"(\\w+)\"");
+
+  private static final Pattern RESULT_COUNT =
+      Pattern.compile("\"resultCount\"\\s*:\\s*(\\d+)");
+
+  private static final Pattern TTL =
+      Pattern.compile("\"ttl\"\\s*:\\s*(\\d+)");
+
+  /** Commands that process each event independently of the others, and
+   * therefore give the same results whether a search is run over a time
+   * range or over each slice of it. */
+  private static final Set<String> STREAMING_COMMANDS =
+      new HashSet<String>(
+          Arrays.asList("search", "where", "eval", "rename", "fields", "bin"));
+
   private static final Pattern SESSION_KEY =
       Pattern.compile(
           "<response>\\s*<sessionKey>([0-9a-f]+)</sessionKey>\\s*</response>");
 
-  final URL url;
+  /** Search heads; usually one, or several if Splunk runs a search head
+   * cluster. */
+  private final List<SearchHead> heads;
   final String username, password;
-  String sessionKey;
-  final Map<String, String> requestHeaders = new HashMap<String, String>();
+  final HttpConnectionPool pool;
+  private NioHttpClient nioClient;
+  private final TransferStats transferStats = new TransferStats();
+  private final SessionKeyCache sessionKeyCache;
+  private SearchResultDecoder decoder = SearchResultDecoders.CSV;
+  private int prefetchDepth;
+  private int prefetchBatchSize;
+  final Map<String, String> requestHeaders =
+      new ConcurrentHashMap<String, String>();
+  private volatile EventStatistics statistics;
+  private volatile long statisticsTime;
+  /** Held while fetching statistics, so that only one thread fetches them;
+   * not the connection's monitor, which other calls need meanwhile. */
+  private final Object statisticsLock = new Object();
+  /** Whether a thread is fetching statistics for
+   * {@link #getCachedEventStatistics()}. */
+  private final AtomicBoolean statisticsRefreshing = new AtomicBoolean();
+  private int maxSlices = 1;
+  private long minSliceMillis;
+  private ExecutorService sliceExecutor;
+  private int jobPageSize;
+  private int jobParallelism;
+  private long jobTimeoutMillis;
+  private ExecutorService pageExecutor;
+  /** Finished search jobs, keyed by the body of the request that created
+   * them, oldest first. */
+  private final Map<String, Job> jobs =
+      new LinkedHashMap<String, Job>() {
+        protected boolean removeEldestEntry(Map.Entry<String, Job> eldest) {
+          return size() > MAX_JOBS;
+        }
+      };
+  private SearchScheduler scheduler = new SearchScheduler(0);
+  SearchScheduler.Priority priority = SearchScheduler.Priority.INTERACTIVE;
+  int maxActiveSearches;
+  long queueTimeoutMillis;
+  /** Number of exports running; guarded by the scheduler. */
+  int activeSearchCount;
 
   public SplunkConnection(String url, String username, String password)
       throws MalformedURLException {
@@ -56,10 +152,336 @@ public class SplunkConnection {
   }
 
   public SplunkConnection(URL url, String username, String password) {
-    this.url      = url;
+    this(url, username, password, HttpConnectionPool.getDefault());
+  }
+
+  /**
+   * Creates a SplunkConnection that sends its requests over connections
+   * from a given pool.
+   */
+  public SplunkConnection(
+      URL url, String username, String password, HttpConnectionPool pool) {
+    this(url, username, password, pool, SessionKeyCache.getDefault());
+  }
+
+  /**
+   * Creates a SplunkConnection that sends its requests over connections
+   * from a given pool, and obtains session keys from a given cache.
+   *
+   * <p>Logs in only if the cache does not already have a session key for
+   * this server, user and password.</p>
+   */
+  public SplunkConnection(
+      URL url,
+      String username,
+      String password,
+      HttpConnectionPool pool,
+      SessionKeyCache sessionKeyCache) {
+    this(
+        Collections.singletonList(url), username, password, pool,
+        sessionKeyCache);
+  }
+
+  /**
+   * Creates a SplunkConnection to several search heads, such as the members
+   * of a search head cluster.
+   *
+   * <p>Each search goes to the healthy head that is least loaded, taking
+   * into account how quickly each head has responded recently. If a head
+   * fails before it starts to return results, the search goes to another
+   * head. Each head has its own session key; the connection logs in to the
+   * first head now, and to the others when it first uses them.</p>
+   *
+   * @see SearchHead
+   */
+  public SplunkConnection(
+      List<URL> urls,
+      String username,
+      String password,
+      HttpConnectionPool pool,
+      SessionKeyCache sessionKeyCache) {
+    assert !urls.isEmpty();
     this.username = username;
     this.password = password;
-    connect();
+    this.pool     = pool;
+    this.sessionKeyCache = sessionKeyCache;
+    final List<SearchHead> list = new ArrayList<SearchHead>();
+    for (URL url : urls) {
+      list.add(
+          new SearchHead(
+              url,
+              sessionKeyCache.entry(
+                  SessionKeyCache.key(
+                      url.getProtocol() + "://" + url.getHost() + ":"
+                      + url.getPort(),
+                      username,
+                      password))));
+    }
+    this.heads = Collections.unmodifiableList(list);
+    connect(heads.get(0));
+    if (heads.get(0).sessionKey == null) {
+      heads.get(0).markDown();
+    }
+  }
+
+  /** Returns the search heads of this connection. */
+  public List<SearchHead> getSearchHeads() {
+    return heads;
+  }
+
+  /** Returns the pool of HTTP connections used by this connection. */
+  public HttpConnectionPool getPool() {
+    return pool;
+  }
+
+  /**
+   * Sets the non-blocking client used to run exports. If null (the default),
+   * exports use a blocking connection from the pool.
+   *
+   * @throws IllegalArgumentException if a search head's URL is not "http";
+   *     the NIO client does not speak TLS, and Splunk's management port is
+   *     HTTPS by default
+   */
+  public void setNioClient(NioHttpClient nioClient) {
+    if (nioClient != null) {
+      for (SearchHead head : heads) {
+        if (!head.url.getProtocol().equals("http")) {
+          throw new IllegalArgumentException(
+              "transport 'nio' requires an http URL, but got " + head.url);
+        }
+      }
+    }
+    this.nioClient = nioClient;
+  }
+
+  /**
+   * Sets whether to ask Splunk to compress search results. Compression
+   * reduces the number of bytes sent over the network, at the cost of some
+   * CPU on both sides; worthwhile if the network is slow.
+   */
+  public void setCompress(boolean compress) {
+    if (compress) {
+      requestHeaders.put("Accept-Encoding", "gzip, deflate");
+    } else {
+      requestHeaders.remove("Accept-Encoding");
+    }
+  }
+
+  /**
+   * Sets the decoder for search results, and hence the format in which
+   * Splunk sends them. The default is {@link SearchResultDecoders#CSV}.
+   */
+  public void setDecoder(SearchResultDecoder decoder) {
+    this.decoder = decoder;
+  }
+
+  /**
+   * Sets whether to read search results in a background thread, while the
+   * consumer is processing earlier rows.
+   *
+   * @param depth Maximum number of batches read ahead; 0 (the default)
+   *     to read on the consumer's thread
+   * @param batchSize Maximum number of rows in a batch
+   *
+   * @see PrefetchEnumerator
+   */
+  public void setPrefetch(int depth, int batchSize) {
+    this.prefetchDepth = depth;
+    this.prefetchBatchSize = batchSize;
+  }
+
+  /**
+   * Sets whether to split a search over a long time range into several
+   * searches over consecutive slices of the range, and run them
+   * concurrently.
+   *
+   * <p>The number of slices grows with the length of the range, so that
+   * each slice is at least {@code minSliceMillis} long, up to
+   * {@code maxSlices}. Each search runs its slices on threads of its own,
+   * taken from a pool that grows as needed, so that a search whose slices
+   * are waiting for its consumer never keeps another search's slices from
+   * starting; {@link SearchScheduler} limits how many searches run at a
+   * time.</p>
+   *
+   * @param maxSlices Maximum number of slices; 1 (the default) to run each
+   *     search as one search
+   * @param minSliceMillis Minimum length of a slice, in milliseconds
+   *
+   * @see SlicedEnumerator
+   */
+  public synchronized void setSlicing(int maxSlices, long minSliceMillis) {
+    assert maxSlices > 0 && minSliceMillis > 0;
+    this.maxSlices = maxSlices;
+    this.minSliceMillis = minSliceMillis;
+  }
+
+  /**
+   * Sets whether to run searches as search jobs, rather than by export.
+   *
+   * <p>In job mode, a search creates a job, polls its status until it is
+   * done, then reads its results in pages of {@code pageSize} rows, up to
+   * {@code parallelism} pages at a time, on threads shared by all searches
+   * on this connection. A page that fails can be read again, and so can
+   * the whole result ({@link Enumerator#reset()}). A search identical to
+   * one whose job has finished, and has not yet expired on the server,
+   * reads that job's results rather than running again.</p>
+   *
+   * <p>Export (the default) returns the first rows sooner; job mode reads
+   * large results faster, and repeated searches much faster.</p>
+   *
+   * @param pageSize Number of rows per page; 0 (the default) to use export
+   * @param parallelism Maximum number of pages read at a time
+   *
+   * @see PagedEnumerator
+   */
+  public synchronized void setJobMode(int pageSize, int parallelism) {
+    assert pageSize >= 0 && parallelism > 0;
+    this.jobPageSize = pageSize;
+    this.jobParallelism = parallelism;
+    if (pageExecutor != null) {
+      pageExecutor.shutdown();
+      pageExecutor = null;
+    }
+  }
+
+  /**
+   * Sets how long a search job may run before it is cancelled and the
+   * search fails with {@link JobTimeoutException}, in milliseconds; 0 (the
+   * default) to wait indefinitely.
+   */
+  public void setJobTimeout(long jobTimeoutMillis) {
+    this.jobTimeoutMillis = jobTimeoutMillis;
+  }
+
+  /**
+   * Sets the scheduler that decides when this connection's searches may
+   * start. Connections that share a scheduler share its limit on the
+   * searches running on each search head. By default, each connection has
+   * its own scheduler, without a limit.
+   */
+  public void setScheduler(SearchScheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  /** Returns the scheduler that decides when this connection's searches may
+   * start, and whose statistics show how long they waited. */
+  public SearchScheduler getScheduler() {
+    return scheduler;
+  }
+
+  /**
+   * Sets the maximum number of searches that this connection runs at a
+   * time, including each slice of a sliced search; 0 (the default) for no
+   * limit. Further searches wait until one finishes.
+   */
+  public void setMaxActiveSearches(int maxActiveSearches) {
+    this.maxActiveSearches = maxActiveSearches;
+  }
+
+  /**
+   * Sets the priority of this connection's searches. A waiting interactive
+   * search (the default) starts before any waiting batch search.
+   */
+  public void setPriority(SearchScheduler.Priority priority) {
+    this.priority = priority;
+  }
+
+  /**
+   * Sets how long a search may wait to start before it fails with
+   * {@link SearchScheduler.QueueTimeoutException}, in milliseconds; 0 (the
+   * default) to wait indefinitely.
+   */
+  public void setQueueTimeout(long queueTimeoutMillis) {
+    this.queueTimeoutMillis = queueTimeoutMillis;
+  }
+
+  /** Returns the number of bytes of search results received by this
+   * connection, over the wire and after decompression. */
+  public TransferStats getTransferStats() {
+    return transferStats;
+  }
+
+  /**
+   * Returns statistics about the events on this server, or null if they
+   * are not available.
+   *
+   * <p>Runs a search the first time, and again if the statistics are more
+   * than 10 minutes old; the search reads only index metadata, so it is
+   * quick even on a large server. Meanwhile, other callers of this method
+   * wait for the result, but the connection's other methods do not.</p>
+   */
+  public EventStatistics getEventStatistics() {
+    synchronized (statisticsLock) {
+      final long now = System.currentTimeMillis();
+      if (statisticsTime == 0
+          || now - statisticsTime > STATISTICS_TTL_MILLIS) {
+        statistics = fetchEventStatistics();
+        statisticsTime = now;
+        LOGGER.fine("statistics: " + statistics);
+      }
+      return statistics;
+    }
+  }
+
+  /**
+   * Returns the statistics that {@link #getEventStatistics()} last fetched,
+   * or null if it has not fetched any; never waits for a search.
+   *
+   * <p>If the statistics are missing or more than 10 minutes old, starts
+   * fetching them in the background, so that a later call, such as when
+   * planning the next query, has them. The planner calls this method, and
+   * uses default estimates until statistics arrive.</p>
+   */
+  public EventStatistics getCachedEventStatistics() {
+    final long time = statisticsTime;
+    if ((time == 0
+        || System.currentTimeMillis() - time > STATISTICS_TTL_MILLIS)
+        && statisticsRefreshing.compareAndSet(false, true)) {
+      final Thread thread =
+          new Thread(
+              new Runnable() {
+                public void run() {
+                  try {
+                    getEventStatistics();
+                  } finally {
+                    statisticsRefreshing.set(false);
+                  }
+                }
+              },
+              "splunk-statistics");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    return statistics;
+  }
+
+  private EventStatistics fetchEventStatistics() {
+    for (String search : STATISTICS_SEARCHES) {
+      Enumerator enumerator = null;
+      try {
+        enumerator =
+            getSearchResultIterator(
+                search,
+                new HashMap<String, String>(),
+                Arrays.asList("count", "earliest", "latest"));
+        if (enumerator.moveNext()) {
+          final Object[] row = (Object[]) enumerator.current();
+          final Long earliest = toMillis((String) row[1]);
+          final Long latest = toMillis((String) row[2]);
+          if (row[0] != null && earliest != null && latest != null) {
+            return new EventStatistics(
+                Double.parseDouble((String) row[0]), earliest, latest);
+          }
+        }
+      } catch (RuntimeException e) {
+        LOGGER.fine("statistics search failed: " + search + ": " + e);
+      } finally {
+        if (enumerator != null) {
+          enumerator.close();
+        }
+      }
+    }
+    return null;
   }
 
   private static void close(Closeable c) {
@@ -70,16 +492,41 @@ public class SplunkConnection {
     }
   }
 
-  private void connect() {
+  private void connect(SearchHead head) {
+    final SessionKeyCache.Entry entry = head.sessionKeyEntry;
+    synchronized (entry) {
+      final boolean reused = entry.sessionKey != null;
+      sessionKeyCache.recordLookup(reused);
+      if (!reused) {
+        entry.sessionKey = login(head);
+      }
+      head.sessionKey = entry.sessionKey;
+    }
+  }
+
+  /**
+   * Logs in to a search head again, because it has rejected a session key
+   * (perhaps it expired). If another connection has already obtained a new
+   * key, uses that.
+   */
+  private void reauthenticate(SearchHead head, String staleKey) {
+    final SessionKeyCache.Entry entry = head.sessionKeyEntry;
+    synchronized (entry) {
+      if (entry.sessionKey == null || entry.sessionKey.equals(staleKey)) {
+        entry.sessionKey = login(head);
+      }
+      head.sessionKey = entry.sessionKey;
+    }
+  }
+
+  /** Logs in to a search head, and returns a session key, or null if login
+   * fails. */
+  private String login(SearchHead head) {
     BufferedReader rd = null;
+    final long start = System.nanoTime();
 
     try {
-      String loginUrl =
-          String.format(
-              "%s://%s:%d/services/auth/login",
-              url.getProtocol(),
-              url.getHost(),
-              url.getPort());
+      String loginUrl = head.url("/services/auth/login");
 
       StringBuilder data = new StringBuilder();
       appendURLEncodedArgs(
@@ -88,9 +535,12 @@ public class SplunkConnection {
       rd = new BufferedReader(
           new InputStreamReader(
               post(
+                  pool,
                   loginUrl,
                   data,
-                  requestHeaders)));
+                  Collections.<String, String>emptyMap(),
+                  10000,
+                  60000)));
 
       String line;
       StringBuilder reply = new StringBuilder();
@@ -101,23 +551,98 @@ public class SplunkConnection {
 
       Matcher m = SESSION_KEY.matcher(reply);
       if (m.find()) {
-        sessionKey = m.group(1);
-        requestHeaders.put("Authorization", "Splunk " + sessionKey);
+        return m.group(1);
       }
     } catch (Exception e) {
       e.printStackTrace();
     } finally {
-      close(rd);
+      if (rd != null) {
+        close(rd);
+      }
+      sessionKeyCache.recordLogin(System.nanoTime() - start);
+    }
+    return null;
+  }
+
+  /**
+   * Posts a search to the export endpoint of the best search head. If the
+   * head fails before it returns the first byte of results, marks it down
+   * and tries another. If it rejects the session key, logs in again and
+   * retries once.
+   *
+   * @param onAdmit Called when the scheduler first admits the export, or
+   *     null
+   */
+  private InputStream export(
+      CharSequence data, TransferStats stats, Runnable onAdmit)
+      throws IOException {
+    final ExportInputStream in = new ExportInputStream(data, stats, onAdmit);
+    in.open();
+    return in;
+  }
+
+  /** Probes the heads that are down, not excluded, and due to be
+   * probed. */
+  private void probeHeads(Set<SearchHead> excluded) {
+    for (SearchHead head : heads) {
+      if (!excluded.contains(head) && !head.isUp() && head.claimProbe()) {
+        probe(head);
+      }
+    }
+  }
+
+  /** Checks whether a search head that is down has recovered, by logging
+   * in if necessary and asking for its server information. */
+  private boolean probe(SearchHead head) {
+    try {
+      if (head.sessionKey == null) {
+        connect(head);
+      }
+      final InputStream in =
+          HttpUtils.executeMethod(
+              pool, "GET", head.url("/services/server/info"), null,
+              head.headers(requestHeaders), 5000, 5000);
+      try {
+        while (in.read() >= 0) {
+          // drain, so that the connection can be reused
+        }
+      } finally {
+        in.close();
+      }
+      LOGGER.fine("search head is up: " + head.url);
+      head.markUp();
+      return true;
+    } catch (IOException e) {
+      LOGGER.fine("search head is still down: " + head.url + ": " + e);
+      head.markDown();
+      return false;
     }
   }
 
+  /** Sends an export request to a search head. If the NIO client is used,
+   * errors arrive on the first read. */
+  private InputStream execute(
+      SearchHead head, CharSequence data, TransferStats stats)
+      throws IOException {
+    final String searchUrl = head.url("/services/search/jobs/export");
+    final Map<String, String> headers = head.headers(requestHeaders);
+    if (nioClient != null) {
+      return nioClient.execute(
+          "POST", searchUrl, data, headers, 10000, 1800000, stats);
+    }
+    return HttpUtils.executeMethod(
+        pool, "POST", searchUrl, data, headers, 10000, 1800000, stats);
+  }
+
   public void getSearchResults(
       String search,
       Map<String, String> otherArgs,
       List<String> fieldList,
       SearchResultListener srl) {
     assert srl != null;
-    Enumerator x = getSearchResults_(search, otherArgs, fieldList, srl);
+    Enumerator x =
+        getSearchResults_(
+            search, otherArgs, fieldList, srl, false, false, null);
     assert x == null;
   }
 
@@ -125,21 +650,189 @@ public class SplunkConnection {
       String search,
       Map<String, String> otherArgs,
       List<String> fieldList) {
-    return getSearchResults_(search, otherArgs, fieldList, null);
+    return getSearchResults_(
+        search, otherArgs, fieldList, null, true, false, null);
+  }
+
+  /**
+   * Returns an enumerator over the results of a search over a time range,
+   * splitting the range into slices if slicing is enabled (see
+   * {@link #setSlicing(int, long)}) and the range is long enough.
+   *
+   * <p>The search must be one whose results over a range are the union of
+   * its results over the slices of the range (see
+   * {@link #isStreaming(String)}), or end in a "| stats" that
+   * {@link PartialStats} can split into partial aggregates of each slice
+   * and a merge. If the results are wanted in "_time" order, the search
+   * sorts each slice, and the enumerator merges them.</p>
+   *
+   * @param earliest Start of the range, in milliseconds since the epoch,
+   *     inclusive, or null
+   * @param latest End of the range, in milliseconds since the epoch,
+   *     exclusive, or null
+   * @param timeOrder 1 to return rows in ascending "_time" order, -1
+   *     descending, 0 in any order
+   */
+  public Enumerator getSearchResultIterator(
+      String search,
+      Map<String, String> otherArgs,
+      List<String> fieldList,
+      Long earliest,
+      Long latest,
+      int timeOrder) {
+    final String sort =
+        timeOrder == 0 ? ""
+            : timeOrder > 0 ? " | sort 0 +_time"
+            : " | sort 0 -_time";
+    final List<Long> bounds = sliceBounds(earliest, latest);
+    final PartialStats stats =
+        bounds.size() > 2 && timeOrder == 0 ? PartialStats.of(search) : null;
+    final String sliceSearch = stats == null ? search : stats.getSearch();
+    final List<SlicedEnumerator.Slice> slices =
+        new ArrayList<SlicedEnumerator.Slice>();
+    for (int i = 0; i < bounds.size() - 1; i++) {
+      final Long from = bounds.get(i);
+      final Long to = bounds.get(i + 1);
+      final Map<String, String> args = new HashMap<String, String>();
+      if (otherArgs != null) {
+        args.putAll(otherArgs);
+      }
+      args.remove("earliest_time");
+      args.remove("latest_time");
+      if (from != null) {
+        args.put("earliest_time", BigDecimal.valueOf(from, 3).toPlainString());
+      }
+      if (to != null) {
+        args.put("latest_time", BigDecimal.valueOf(to, 3).toPlainString());
+      }
+      slices.add(
+          new SlicedEnumerator.Slice(from, to, sliceSearch + sort, args));
+    }
+    if (slices.size() == 1) {
+      return getSearchResultIterator(
+          search + sort, slices.get(0).args, fieldList);
+    }
+    if (timeOrder <= 0) {
+      // Read the latest events first, unless they are wanted in ascending
+      // order.
+      Collections.reverse(slices);
+    }
+    LOGGER.fine("search in " + slices.size() + " slices: " + sliceSearch);
+    final SlicedEnumerator enumerator =
+        new SlicedEnumerator(
+            this,
+            getSliceExecutor(),
+            stats == null ? fieldList : stats.getFieldList(),
+            slices,
+            timeOrder,
+            prefetchBatchSize > 0 ? prefetchBatchSize : 256,
+            Math.max(prefetchDepth, 4));
+    return stats == null ? enumerator : stats.merge(enumerator, fieldList);
+  }
+
+  /** Returns whether a search consists of commands that process each event
+   * independently. */
+  public static boolean isStreaming(String search) {
+    if (search.startsWith("|")) {
+      // Starts with a generating command, such as "| tstats".
+      return false;
+    }
+    final String[] commands = search.split(" \\| ");
+    for (int i = 1; i < commands.length; i++) {
+      final String name = commands[i].trim().split(" ", 2)[0];
+      if (!STREAMING_COMMANDS.contains(name)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the bounds of the slices of a time range: the start of the
+   * first slice, the start of each subsequent slice, and the end of the
+   * last slice. If the range has one slice, returns its start and end.
+   * Does not hold the connection's monitor while it fetches statistics. */
+  public List<Long> sliceBounds(Long earliest, Long latest) {
+    final int maxSlices;
+    final long minSliceMillis;
+    synchronized (this) {
+      maxSlices = this.maxSlices;
+      minSliceMillis = this.minSliceMillis;
+    }
+    final List<Long> bounds = new ArrayList<Long>();
+    bounds.add(earliest);
+    if (maxSlices > 1) {
+      // If the range is open, slice the range of the events on the
+      // server; the first and last slices remain open.
+      long from;
+      long to;
+      if (earliest != null && latest != null) {
+        from = earliest;
+        to = latest;
+      } else {
+        final EventStatistics statistics = getEventStatistics();
+        if (statistics == null) {
+          bounds.add(latest);
+          return bounds;
+        }
+        from = earliest != null
+            ? Math.max(earliest, statistics.earliest)
+            : statistics.earliest;
+        to = latest != null
+            ? Math.min(latest, statistics.latest + 1)
+            : statistics.latest + 1;
+      }
+      final long n =
+          to <= from
+              ? 1
+              : Math.min(
+                  maxSlices, (to - from + minSliceMillis - 1) / minSliceMillis);
+      for (long i = 1; i < n; i++) {
+        bounds.add(from + (to - from) * i / n);
+      }
+    }
+    bounds.add(latest);
+    return bounds;
+  }
+
+  private synchronized ExecutorService getSliceExecutor() {
+    if (sliceExecutor == null) {
+      sliceExecutor =
+          Executors.newCachedThreadPool(
+              new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                  final Thread thread =
+                      new Thread(
+                          r,
+                          "splunk-slice-" + SLICE_THREAD_ID.incrementAndGet());
+                  thread.setDaemon(true);
+                  return thread;
+                }
+              });
+    }
+    return sliceExecutor;
+  }
+
+  /** Returns an enumerator over the results of a search, read on the
+   * caller's thread; calls {@code onAdmit}, if not null, as soon as the
+   * scheduler admits the search. If the search fails, throws, and so does
+   * the enumerator, rather than ending early. */
+  Enumerator openSearch(
+      String search,
+      Map<String, String> otherArgs,
+      List<String> fieldList,
+      Runnable onAdmit) {
+    return getSearchResults_(
+        search, otherArgs, fieldList, null, false, true, onAdmit);
   }
 
   private Enumerator getSearchResults_(
       String search,
       Map<String, String> otherArgs,
       List<String> wantedFields,
-      SearchResultListener srl) {
-    String searchUrl =
-        String.format(
-            "%s://%s:%d/services/search/jobs/export",
-            url.getProtocol(),
-            url.getHost(),
-            url.getPort());
-
+      SearchResultListener srl,
+      boolean prefetch,
+      boolean strict,
+      Runnable onAdmit) {
     StringBuilder data = new StringBuilder();
     Map<String, String> args = new LinkedHashMap<String, String>();
     if (otherArgs != null) {
@@ -147,26 +840,48 @@ public class SplunkConnection {
     }
     args.put("search", search);
     // override these args
-    args.put("output_mode", "csv");
+    decoder.setArgs(args);
+    args.put("output_time_format", TIME_FORMAT);
     args.put("preview", "0");
 
-    // TODO: remove this once the csv parser can handle leading spaces
-    args.put("check_connection", "0");
-
     appendURLEncodedArgs(data, args);
+    final TransferStats stats = new TransferStats(transferStats);
     try {
+      if (srl == null && jobPageSize > 0) {
+        return openJob(args, wantedFields, stats, onAdmit);
+      }
       // wait at most 30 minutes for first result
-      InputStream in =
-          post(searchUrl, data, requestHeaders, 10000, 1800000);
+      InputStream in = export(data, stats, onAdmit);
       if (srl == null) {
-        return new SplunkResultIterator(in, wantedFields);
+        final Enumerator enumerator =
+            new SplunkResultIterator(
+                decoder.open(in), wantedFields, stats, strict);
+        if (prefetch && prefetchDepth > 0) {
+          return new PrefetchEnumerator<Object>(
+              enumerator, prefetchBatchSize, prefetchDepth);
+        }
+        return enumerator;
       } else {
         parseResults(
-            in,
+            decoder.open(in),
             srl);
+        LOGGER.fine("search results: " + stats);
         return null;
       }
+    } catch (SearchScheduler.QueueTimeoutException e) {
+      // Unlike a failed search, a search that never started must not look
+      // as if it returned no rows.
+      throw e;
+    } catch (JobTimeoutException e) {
+      // Nor must a search that never finished.
+      throw e;
     } catch (Exception e) {
+      if (strict) {
+        // Nor, if the caller asks, must a search that failed.
+        throw e instanceof RuntimeException
+            ? (RuntimeException) e
+            : new RuntimeException(e);
+      }
       StringWriter sw = new StringWriter();
       e.printStackTrace(new PrintWriter(sw));
       LOGGER.warning(e.getMessage() + "\n"
@@ -175,22 +890,330 @@ public class SplunkConnection {
     }
   }
 
-  private static void parseResults(InputStream in, SearchResultListener srl)
+  /** Returns an enumerator over the results of a search job, reusing a
+   * finished job of the same search if it has not expired. */
+  private Enumerator openJob(
+      Map<String, String> args,
+      final List<String> wantedFields,
+      final TransferStats stats,
+      Runnable onAdmit) throws IOException {
+    final Map<String, String> jobArgs = new LinkedHashMap<String, String>(args);
+    jobArgs.remove("output_mode");
+    final StringBuilder data = new StringBuilder();
+    appendURLEncodedArgs(data, jobArgs);
+    final String key = data.toString();
+    Job job;
+    synchronized (jobs) {
+      job = jobs.remove(key);
+      if (job != null) {
+        // Another reader that abandons the job must not cancel it now.
+        ++job.readerCount;
+      }
+    }
+    if (job != null) {
+      boolean reusable = job.isValid();
+      if (reusable) {
+        try {
+          // The server may have deleted the job; checking also extends its
+          // life.
+          final Job status = pollJob(job.head, job.sid);
+          reusable = status != null;
+          if (reusable) {
+            job.expiryTime = status.expiryTime;
+          }
+          LOGGER.fine(
+              (reusable ? "reusing search job " : "cannot reuse search job ")
+              + job.sid);
+        } catch (IOException e) {
+          LOGGER.fine("cannot reuse search job: " + e);
+          reusable = false;
+        }
+      }
+      if (!reusable) {
+        synchronized (jobs) {
+          --job.readerCount;
+        }
+        job = null;
+      }
+    }
+    if (job == null) {
+      job = runJob(data, onAdmit);
+      job.readerCount = 1;
+    }
+    synchronized (jobs) {
+      jobs.put(key, job);
+    }
+    final Job finalJob = job;
+    final Map<String, String> pageArgs = new LinkedHashMap<String, String>();
+    decoder.setArgs(pageArgs);
+    return new PagedEnumerator(
+        new PagedEnumerator.PageReader() {
+          public List<Object> read(int page) throws IOException {
+            return readPage(finalJob, pageArgs, page, wantedFields, stats);
+          }
+
+          public void close(boolean abandoned) {
+            synchronized (jobs) {
+              if (--finalJob.readerCount > 0 || !abandoned) {
+                return;
+              }
+              // Nobody is reading the job, and the last reader did not
+              // want the rest of the results; do not keep the job.
+              if (jobs.get(key) == finalJob) {
+                jobs.remove(key);
+              }
+            }
+            cancelJob(finalJob.head, finalJob.sid);
+          }
+        },
+        getPageExecutor(),
+        (finalJob.resultCount + jobPageSize - 1) / jobPageSize,
+        jobParallelism);
+  }
+
+  /** Creates a search job on the head that the scheduler chooses, and waits
+   * until it is done. The job occupies the head's place meanwhile. If the
+   * job takes longer than the job timeout, or the wait is interrupted or
+   * fails, cancels the job. */
+  private Job runJob(CharSequence data, Runnable onAdmit)
+      throws IOException {
+    final SearchScheduler admitter = scheduler;
+    final SearchHead head =
+        admitter.acquire(this, Collections.<SearchHead>emptySet());
+    try {
+      if (onAdmit != null) {
+        onAdmit.run();
+      }
+      if (head == null) {
+        throw new IOException("no search head is available");
+      }
+      head.activeCount.incrementAndGet();
+      String sid = null;
+      try {
+        final String response =
+            readString(request(head, "POST", "/services/search/jobs", data));
+        final Matcher matcher = JOB_SID.matcher(response);
+        if (!matcher.find()) {
+          throw new IOException("no sid in response: " + response);
+        }
+        sid = matcher.group(1);
+        LOGGER.fine("created search job " + sid);
+        final long timeoutMillis = jobTimeoutMillis;
+        final long startMillis = System.currentTimeMillis();
+        long pollMillis = 50;
+        for (;;) {
+          final Job job = pollJob(head, sid);
+          if (job != null) {
+            sid = null;
+            return job;
+          }
+          long sleepMillis = pollMillis;
+          if (timeoutMillis > 0) {
+            final long remainingMillis =
+                startMillis + timeoutMillis - System.currentTimeMillis();
+            if (remainingMillis <= 0) {
+              throw new JobTimeoutException(
+                  "search job " + sid + " did not finish in "
+                  + timeoutMillis + "ms");
+            }
+            sleepMillis = Math.min(sleepMillis, remainingMillis);
+          }
+          Thread.sleep(sleepMillis);
+          pollMillis = Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      } finally {
+        if (sid != null) {
+          cancelJob(head, sid);
+        }
+        head.activeCount.decrementAndGet();
+      }
+    } finally {
+      admitter.release(this, head);
+    }
+  }
+
+  /** Asks a search head to cancel a job, so that it stops using the
+   * head's resources and deletes its results. Logs, but otherwise ignores,
+   * a failure. */
+  private void cancelJob(SearchHead head, String sid) {
+    try {
+      readString(
+          request(
+              head, "POST",
+              "/services/search/jobs/" + URLEncoder.encode(sid, "UTF-8")
+              + "/control",
+              "action=cancel"));
+      LOGGER.fine("cancelled search job " + sid);
+    } catch (IOException e) {
+      LOGGER.fine("cannot cancel search job " + sid + ": " + e);
+    }
+  }
+
+  /** Returns a job if it is done, or null if it is still running. */
+  private Job pollJob(SearchHead head, String sid) throws IOException {
+    final String status =
+        readString(
+            request(
+                head, "GET",
+                "/services/search/jobs/" + URLEncoder.encode(sid, "UTF-8")
+                + "?output_mode=json",
+                null));
+    final Matcher state = DISPATCH_STATE.matcher(status);
+    if (!state.find()) {
+      throw new IOException("no dispatchState in status of job " + sid);
+    }
+    if (state.group(1).equals("FAILED")) {
+      throw new IOException("search job " + sid + " failed: " + status);
+    }
+    if (!state.group(1).equals("DONE")) {
+      return null;
+    }
+    final Matcher count = RESULT_COUNT.matcher(status);
+    final Matcher ttl = TTL.matcher(status);
+    return new Job(
+        head, sid, count.find() ? Integer.parseInt(count.group(1)) : 0,
+        System.currentTimeMillis()
+        + 1000L * (ttl.find() ? Integer.parseInt(ttl.group(1)) : 0));
+  }
+
+  /** Reads a page of the results of a job. If the request fails, tries
+   * once more. */
+  private List<Object> readPage(
+      Job job,
+      Map<String, String> pageArgs,
+      int page,
+      List<String> wantedFields,
+      TransferStats stats) throws IOException {
+    final Map<String, String> args =
+        new LinkedHashMap<String, String>(pageArgs);
+    args.put("offset", Integer.toString(page * jobPageSize));
+    args.put("count", Integer.toString(jobPageSize));
+    final StringBuilder path =
+        new StringBuilder("/services/search/jobs/")
+            .append(URLEncoder.encode(job.sid, "UTF-8"))
+            .append("/results?");
+    appendURLEncodedArgs(path, args);
+    for (int attempt = 0;; attempt++) {
+      final List<Object> rows = new ArrayList<Object>(jobPageSize);
+      try {
+        final Enumerator enumerator =
+            new SplunkResultIterator(
+                decoder.open(
+                    request(job.head, "GET", path.toString(), null, stats)),
+                wantedFields,
+                stats,
+                true);
+        try {
+          while (enumerator.moveNext()) {
+            rows.add(enumerator.current());
+          }
+        } finally {
+          enumerator.close();
+        }
+        return rows;
+      } catch (IOException e) {
+        if (attempt > 0
+            || e instanceof HttpStatusException
+               && ((HttpStatusException) e).getStatus() < 500) {
+          throw e;
+        }
+        LOGGER.fine("retrying page " + page + " of job " + job.sid + ": "
+            + e);
+      } catch (RuntimeException e) {
+        // The iterator wraps errors while reading.
+        if (attempt > 0) {
+          throw e;
+        }
+        LOGGER.fine("retrying page " + page + " of job " + job.sid + ": "
+            + e);
+      }
+    }
+  }
+
+  private InputStream request(
+      SearchHead head, String method, String path, CharSequence data)
+      throws IOException {
+    return request(head, method, path, data, null);
+  }
+
+  /** Sends a request to a search head, logging in first if necessary. If
+   * the head rejects the session key, logs in again and retries once. */
+  private InputStream request(
+      SearchHead head,
+      String method,
+      String path,
+      CharSequence data,
+      TransferStats stats) throws IOException {
+    if (head.sessionKey == null) {
+      connect(head);
+    }
+    for (boolean reauthenticated = false;; reauthenticated = true) {
+      final String key = head.sessionKey;
+      try {
+        return HttpUtils.executeMethod(
+            pool, method, head.url(path), data, head.headers(requestHeaders),
+            10000, 60000, stats);
+      } catch (HttpStatusException e) {
+        if (e.getStatus() != 401 || reauthenticated) {
+          throw e;
+        }
+        reauthenticate(head, key);
+      }
+    }
+  }
+
+  private static String readString(InputStream in) throws IOException {
+    final Reader reader = new InputStreamReader(in, "UTF-8");
+    try {
+      final StringBuilder buf = new StringBuilder();
+      final char[] chars = new char[4096];
+      int n;
+      while ((n = reader.read(chars)) >= 0) {
+        buf.append(chars, 0, n);
+      }
+      return buf.toString();
+    } finally {
+      reader.close();
+    }
+  }
+
+  private synchronized ExecutorService getPageExecutor() {
+    if (pageExecutor == null) {
+      pageExecutor =
+          Executors.newFixedThreadPool(
+              jobParallelism,
+              new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                  final Thread thread =
+                      new Thread(
+                          r,
+                          "splunk-page-" + PAGE_THREAD_ID.incrementAndGet());
+                  thread.setDaemon(true);
+                  return thread;
+                }
+              });
+    }
+    return pageExecutor;
+  }
+
+  private static void parseResults(
+      SearchResultDecoder.Cursor cursor, SearchResultListener srl)
       throws IOException {
-    CSVReader csvr = new CSVReader(new InputStreamReader(in));
     try {
-      String [] header = csvr.readNext();
+      String [] header = cursor.getFieldNames();
 
-      if (header != null
-          && header.length > 0
-          && !(header.length == 1 && header[0].isEmpty())) {
+      if (header != null) {
         srl.setFieldNames(header);
 
-        String[] line;
-        while ((line = csvr.readNext()) != null) {
-          if (line.length == header.length) {
-            srl.processSearchResult(line);
+        while (cursor.next()) {
+          String[] line = new String[header.length];
+          for (int i = 0; i < line.length; i++) {
+            line[i] = cursor.get(i);
           }
+          srl.processSearchResult(line);
         }
       }
     } catch (IOException ignore) {
@@ -199,7 +1222,20 @@ public class SplunkConnection {
       LOGGER.warning(ignore.getMessage() + "\n"
           + sw);
     } finally {
-      HttpUtils.close(csvr); // CSVReader closes the inputstream too
+      HttpUtils.close(cursor); // closes the inputstream too
+    }
+  }
+
+  /** Converts a time in {@link #TIME_FORMAT} to milliseconds since the
+   * epoch. Returns null if the value is missing or invalid. */
+  static Long toMillis(String s) {
+    if (s == null || s.isEmpty()) {
+      return null;
+    }
+    try {
+      return new BigDecimal(s).movePointRight(3).longValue();
+    } catch (NumberFormatException e) {
+      return null;
     }
   }
 
@@ -320,10 +1356,226 @@ public class SplunkConnection {
         (System.currentTimeMillis() - start));
   }
 
+  /** Thrown when a search job runs longer than the connection's job
+   * timeout. */
+  public static class JobTimeoutException extends RuntimeException {
+    public JobTimeoutException(String message) {
+      super(message);
+    }
+  }
+
+  /** Search job that has finished, and whose results can be read until it
+   * expires. */
+  private static class Job {
+    final SearchHead head;
+    final String sid;
+    final int resultCount;
+    /** Time (as {@link System#currentTimeMillis()}) at which the server
+     * may delete the job. */
+    volatile long expiryTime;
+    /** Number of enumerators reading the job, or about to; guarded by the
+     * connection's cache of jobs. Only the last may cancel the job. */
+    int readerCount;
+
+    Job(SearchHead head, String sid, int resultCount, long expiryTime) {
+      this.head = head;
+      this.sid = sid;
+      this.resultCount = resultCount;
+      this.expiryTime = expiryTime;
+    }
+
+    /** Returns whether the job can probably still be read: it has not
+     * expired, allowing a margin for the time taken to read it, and its
+     * head is up. */
+    boolean isValid() {
+      return System.currentTimeMillis() + 10000 < expiryTime
+          && head.isUp();
+    }
+  }
+
+  /**
+   * Stream of the results of an export, from whichever search head is
+   * chosen to run it.
+   *
+   * <p>Until the first byte arrives, an error from the head is not yet
+   * visible to the consumer, so the stream can send the request to another
+   * head. Holds its place in the {@link SearchScheduler}, and counts the
+   * export as active on its head, until the stream reaches its end or is
+   * closed; records how long the head took to start returning
+   * results.</p>
+   */
+  private class ExportInputStream extends FilterInputStream {
+    private final CharSequence data;
+    private final TransferStats stats;
+    private final Set<SearchHead> failed = new HashSet<SearchHead>();
+    /** Scheduler that admitted the export; the connection's scheduler may
+     * change while the export runs. */
+    private final SearchScheduler admitter = scheduler;
+    /** Called when the scheduler first admits the export; then null. */
+    private Runnable onAdmit;
+    private SearchHead head;
+    private boolean admitted;
+    private String key;
+    private long startNanos;
+    private boolean started;
+    private boolean reauthenticated;
+    private boolean closed;
+
+    ExportInputStream(
+        CharSequence data, TransferStats stats, Runnable onAdmit) {
+      super(null);
+      this.data = data;
+      this.stats = stats;
+      this.onAdmit = onAdmit;
+    }
+
+    /** Waits until the scheduler admits the export, then sends the
+     * request to the head that it chose; if the head does not accept the
+     * request, tries again. */
+    void open() throws IOException {
+      IOException lastException = null;
+      for (;;) {
+        probeHeads(failed);
+        head = admitter.acquire(SplunkConnection.this, failed);
+        admitted = true;
+        if (onAdmit != null) {
+          onAdmit.run();
+          onAdmit = null;
+        }
+        if (head == null) {
+          release();
+          throw lastException != null
+              ? lastException
+              : new IOException("no search head is available");
+        }
+        head.activeCount.incrementAndGet();
+        if (head.sessionKey == null) {
+          connect(head);
+          if (head.sessionKey == null) {
+            LOGGER.warning("cannot log in to search head " + head.url);
+            release();
+            head.markDown();
+            failed.add(head);
+            continue;
+          }
+        }
+        key = head.sessionKey;
+        startNanos = System.nanoTime();
+        try {
+          in = execute(head, data, stats);
+          return;
+        } catch (IOException e) {
+          release();
+          if (!retry(e)) {
+            throw e;
+          }
+          lastException = e;
+        }
+      }
+    }
+
+    /** Records that the export is no longer running on its head, so that
+     * another export may start. */
+    private void release() {
+      if (admitted) {
+        admitted = false;
+        if (head != null) {
+          head.activeCount.decrementAndGet();
+        }
+        admitter.release(SplunkConnection.this, head);
+      }
+    }
+
+    /** Decides whether to retry after an error that occurred before the
+     * first byte arrived; marks the head down if the error was its
+     * fault. */
+    private boolean retry(IOException e) {
+      if (e instanceof HttpStatusException) {
+        final int status = ((HttpStatusException) e).getStatus();
+        if (status == 401 && !reauthenticated) {
+          LOGGER.fine("session key rejected; logging in again");
+          reauthenticated = true;
+          reauthenticate(head, key);
+          return true;
+        }
+        if (status < 500) {
+          // The search is wrong, not the head.
+          return false;
+        }
+      }
+      LOGGER.warning("search head " + head.url + " failed: " + e);
+      head.markDown();
+      failed.add(head);
+      return true;
+    }
+
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int n = read(b, 0, 1);
+      return n < 0 ? -1 : b[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      while (!started) {
+        try {
+          final int n = in.read(b, off, len);
+          started = true;
+          head.recordLatency(System.nanoTime() - startNanos);
+          head.markUp();
+          return checkEnd(n);
+        } catch (IOException e) {
+          release();
+          SplunkConnection.close(in);
+          if (closed || !retry(e)) {
+            closed = true;
+            throw e;
+          }
+          open();
+        }
+      }
+      return checkEnd(in.read(b, off, len));
+    }
+
+    /** If a read has reached the end of the results, releases the export's
+     * place, so that another search can start before the consumer closes
+     * this stream. */
+    private int checkEnd(int n) {
+      if (n < 0) {
+        release();
+      }
+      return n;
+    }
+
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      release();
+      if (in != null) {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * Enumerator over search results.
+   *
+   * <p>Decodes only the fields that are wanted. If reading fails, logs the
+   * error and ends, unless it is strict, in which case it throws.</p>
+   */
   private static class SplunkResultIterator implements Enumerator {
-    private final CSVReader csvReader;
+    private final SearchResultDecoder.Cursor cursor;
+    private final List<String> wantedFields;
+    private final TransferStats stats;
+    private final boolean strict;
+    private boolean started;
+    private volatile boolean closed;
     private String[] fieldNames;
     private int[] sources;
+    /** Position of "_time" among the wanted fields, or -1. Its values are
+     * converted to milliseconds since the epoch. */
+    private int timeIndex = -1;
     private Object current;
 
     /**
@@ -338,14 +1590,25 @@ public class SplunkConnection {
      */
     private int source;
 
-    public SplunkResultIterator(InputStream in, List<String> wantedFields) {
-      csvReader = new CSVReader(new InputStreamReader(in));
+    public SplunkResultIterator(
+        SearchResultDecoder.Cursor cursor,
+        List<String> wantedFields,
+        TransferStats stats,
+        boolean strict) {
+      this.cursor = cursor;
+      this.wantedFields = wantedFields;
+      this.stats = stats;
+      this.strict = strict;
+    }
+
+    /** Reads the header line. Called on the first call to
+     * {@link #moveNext()}, so that creating the iterator does not wait for
+     * Splunk to produce results. */
+    private void start() {
       try {
-        fieldNames = csvReader.readNext();
-        if (fieldNames == null
-            || fieldNames.length == 0
-            || fieldNames.length == 1 && fieldNames[0].isEmpty()) {
-        } else {
+        fieldNames = cursor.getFieldNames();
+        if (fieldNames != null) {
+          timeIndex = wantedFields.indexOf("_time");
           final List<String> headerList = Arrays.asList(fieldNames);
           if (wantedFields.size() == 1) {
             // Yields 0 or higher if wanted field exists.
@@ -364,54 +1627,79 @@ public class SplunkConnection {
             }
           }
         }
-      } catch (IOException ignore) {
-        StringWriter sw = new StringWriter();
-        ignore.printStackTrace(new PrintWriter(sw));
-        LOGGER.warning(ignore.getMessage() + "\n"
-            + sw);
+      } catch (IOException e) {
+        fail(e);
       } finally {
       }
     }
 
+    /** Handles an error reading results: throws it if strict, otherwise
+     * logs it. An error caused by closing the iterator is ignored. */
+    private void fail(IOException e) {
+      if (closed) {
+        return;
+      }
+      if (strict) {
+        throw new RuntimeException(e);
+      }
+      StringWriter sw = new StringWriter();
+      e.printStackTrace(new PrintWriter(sw));
+      LOGGER.warning(e.getMessage() + "\n"
+          + sw);
+    }
+
     public Object current() {
       return current;
     }
 
     public boolean moveNext() {
+      if (!started) {
+        started = true;
+        start();
+      }
+      if (fieldNames == null || closed) {
+        return false;
+      }
       try {
-        String[] line;
-        while ((line = csvReader.readNext()) != null) {
-          if (line.length == fieldNames.length) {
-            switch (source) {
-            case -3:
-              // Re-map using sources
-              String[] mapped = new String[sources.length];
-              for (int i = 0; i < sources.length; i++) {
-                int source1 = sources[i];
-                mapped[i] = source1 < 0 ? null : line[source1];
-              }
-              this.current = mapped;
-              break;
-            case -2:
-              // Return line as is. No need to re-map.
-              current = line;
-              break;
-            case -1:
-              // Singleton null
-              this.current = null;
-              break;
-            default:
-              this.current = line[source];
-              break;
+        if (cursor.next()) {
+          switch (source) {
+          case -3:
+            // Re-map using sources
+            Object[] mapped = new Object[sources.length];
+            for (int i = 0; i < sources.length; i++) {
+              int source1 = sources[i];
+              mapped[i] = source1 < 0 ? null : cursor.get(source1);
+            }
+            if (timeIndex >= 0) {
+              mapped[timeIndex] = toMillis((String) mapped[timeIndex]);
             }
-            return true;
+            this.current = mapped;
+            break;
+          case -2:
+            // Return line as is. No need to re-map.
+            Object[] line = new Object[fieldNames.length];
+            for (int i = 0; i < line.length; i++) {
+              line[i] = cursor.get(i);
+            }
+            if (timeIndex >= 0) {
+              line[timeIndex] = toMillis((String) line[timeIndex]);
+            }
+            current = line;
+            break;
+          case -1:
+            // Singleton null
+            this.current = null;
+            break;
+          default:
+            this.current = timeIndex == 0
+                ? toMillis(cursor.get(source))
+                : cursor.get(source);
+            break;
           }
+          return true;
         }
-      } catch (IOException ignore) {
-        StringWriter sw = new StringWriter();
-        ignore.printStackTrace(new PrintWriter(sw));
-        LOGGER.warning(ignore.getMessage() + "\n"
-            + sw);
+      } catch (IOException e) {
+        fail(e);
       }
       return false;
     }
@@ -420,9 +1708,18 @@ public class SplunkConnection {
       throw new UnsupportedOperationException();
     }
 
+    /** Closes the iterator. If the results have not been read to the end,
+     * closes the HTTP connection, which tells Splunk to stop the search.
+     * May be called from a thread other than the one that is reading, to
+     * abort a read that is waiting for Splunk. */
     public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      LOGGER.fine("search results: " + stats);
       try {
-        csvReader.close();
+        cursor.close();
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
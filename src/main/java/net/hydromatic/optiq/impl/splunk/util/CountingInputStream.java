@@ -0,0 +1,83 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.util;
+
+import java.io.*;
+
+/**
+ * Input stream that adds the number of bytes read to a
+ * {@link TransferStats}.
+ */
+class CountingInputStream extends FilterInputStream {
+  private final TransferStats stats;
+  private final boolean wire;
+  private final boolean decoded;
+
+  /**
+   * Creates a CountingInputStream.
+   *
+   * @param in Underlying stream
+   * @param stats Statistics
+   * @param wire Whether to count bytes as received over the wire
+   * @param decoded Whether to count bytes as decompressed
+   */
+  CountingInputStream(
+      InputStream in, TransferStats stats, boolean wire, boolean decoded) {
+    super(in);
+    this.stats = stats;
+    this.wire = wire;
+    this.decoded = decoded;
+  }
+
+  private void count(long n) {
+    if (n > 0) {
+      if (wire) {
+        stats.addWire(n);
+      }
+      if (decoded) {
+        stats.add(n);
+      }
+    }
+  }
+
+  public int read() throws IOException {
+    final int c = in.read();
+    if (c >= 0) {
+      count(1);
+    }
+    return c;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    final int n = in.read(b, off, len);
+    count(n);
+    return n;
+  }
+
+  public long skip(long n) throws IOException {
+    final long skipped = in.skip(n);
+    count(skipped);
+    return skipped;
+  }
+
+  public boolean markSupported() {
+    return false;
+  }
+}
+
+// End CountingInputStream.java
@@ -0,0 +1,293 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.util;
+
+import java.io.*;
+import java.nio.charset.Charset;
+
+/**
+ * Streaming parser for CSV encoded in UTF-8.
+ *
+ * <p>Works directly on bytes in a reusable buffer. {@link #next()} finds the
+ * boundaries of the fields of the next record without creating any objects;
+ * the caller then calls {@link #get(int)} to decode only the fields it
+ * needs.</p>
+ *
+ * <p>Follows RFC 4180: fields are separated by commas and records by LF or
+ * CRLF; a field may be enclosed in double quotes, in which case it may
+ * contain commas, line breaks and doubled double quotes.</p>
+ *
+ * <p>Skips white space before the first record. (Splunk's export sends
+ * spaces and line breaks while a search is starting, to check that the
+ * client is still connected.)</p>
+ */
+public class CsvParser implements Closeable {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Returned by {@link #parseRecord} if the buffer does not contain a
+   * complete record. */
+  private static final int NEED_MORE = -2;
+
+  private final InputStream in;
+  private byte[] buf;
+  private int pos;
+  private int limit;
+  private boolean eof;
+  private boolean started;
+
+  // Boundaries of the fields of the current record.
+  private int fieldCount;
+  private int[] starts = new int[16];
+  private int[] ends = new int[16];
+  private boolean[] escaped = new boolean[16];
+  private byte[] scratch = new byte[256];
+
+  /** Creates a CsvParser with a 64KB buffer. */
+  public CsvParser(InputStream in) {
+    this(in, 65536);
+  }
+
+  /** Creates a CsvParser with a given initial buffer size. The buffer grows
+   * if a record is larger. */
+  public CsvParser(InputStream in, int bufferSize) {
+    this.in = in;
+    this.buf = new byte[bufferSize];
+  }
+
+  /**
+   * Moves to the next record.
+   *
+   * @return Number of fields in the record, or -1 at end of input
+   */
+  public int next() throws IOException {
+    if (!started) {
+      skipWhitespace();
+      started = true;
+    }
+    for (;;) {
+      final int n = parseRecord(eof);
+      if (n != NEED_MORE) {
+        return n;
+      }
+      fill();
+    }
+  }
+
+  /** Returns the number of fields in the current record. */
+  public int getFieldCount() {
+    return fieldCount;
+  }
+
+  /** Decodes the {@code i}th field of the current record. */
+  public String get(int i) {
+    final int start = starts[i];
+    final int length = ends[i] - start;
+    if (!escaped[i]) {
+      return new String(buf, start, length, UTF8);
+    }
+    // Field contains doubled quotes. Copy, removing every second one.
+    if (scratch.length < length) {
+      scratch = new byte[Math.max(length, scratch.length * 2)];
+    }
+    int n = 0;
+    for (int j = start; j < start + length; j++) {
+      final byte b = buf[j];
+      scratch[n++] = b;
+      if (b == '"') {
+        ++j;
+      }
+    }
+    return new String(scratch, 0, n, UTF8);
+  }
+
+  /** Reads the next record and decodes all of its fields; returns null at
+   * end of input. */
+  public String[] readAll() throws IOException {
+    final int n = next();
+    if (n < 0) {
+      return null;
+    }
+    final String[] values = new String[n];
+    for (int i = 0; i < n; i++) {
+      values[i] = get(i);
+    }
+    return values;
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /** Moves unparsed bytes to the start of the buffer, growing it if it is
+   * full, and reads more input. */
+  private void fill() throws IOException {
+    if (pos > 0) {
+      System.arraycopy(buf, pos, buf, 0, limit - pos);
+      limit -= pos;
+      pos = 0;
+    }
+    if (limit == buf.length) {
+      final byte[] newBuf = new byte[buf.length * 2];
+      System.arraycopy(buf, 0, newBuf, 0, limit);
+      buf = newBuf;
+    }
+    final int n = in.read(buf, limit, buf.length - limit);
+    if (n < 0) {
+      eof = true;
+    } else {
+      limit += n;
+    }
+  }
+
+  /** Skips spaces, tabs and line breaks, reading more input if
+   * necessary. */
+  private void skipWhitespace() throws IOException {
+    for (;;) {
+      while (pos < limit
+          && (buf[pos] == ' ' || buf[pos] == '\t' || buf[pos] == '\r'
+              || buf[pos] == '\n')) {
+        ++pos;
+      }
+      if (pos < limit || eof) {
+        return;
+      }
+      fill();
+    }
+  }
+
+  private void addField(int start, int end, boolean escaped) {
+    if (fieldCount == starts.length) {
+      final int n = fieldCount * 2;
+      final int[] newStarts = new int[n];
+      final int[] newEnds = new int[n];
+      final boolean[] newEscaped = new boolean[n];
+      System.arraycopy(starts, 0, newStarts, 0, fieldCount);
+      System.arraycopy(ends, 0, newEnds, 0, fieldCount);
+      System.arraycopy(this.escaped, 0, newEscaped, 0, fieldCount);
+      starts = newStarts;
+      ends = newEnds;
+      this.escaped = newEscaped;
+    }
+    starts[fieldCount] = start;
+    ends[fieldCount] = end;
+    this.escaped[fieldCount] = escaped;
+    ++fieldCount;
+  }
+
+  /**
+   * Finds the fields of the record starting at {@link #pos}.
+   *
+   * @param atEof Whether there is no more input after {@link #limit}
+   * @return Number of fields, -1 at end of input, or {@link #NEED_MORE} if
+   *     the buffer does not contain the whole record
+   */
+  private int parseRecord(boolean atEof) {
+    final byte[] buf = this.buf;
+    final int limit = this.limit;
+    int i = pos;
+    fieldCount = 0;
+    if (i == limit && atEof) {
+      return -1;
+    }
+    for (;;) {
+      // Start of a field.
+      if (i == limit) {
+        if (!atEof) {
+          return NEED_MORE;
+        }
+        addField(i, i, false);
+        pos = i;
+        return fieldCount;
+      }
+      if (buf[i] == '"') {
+        final int start = ++i;
+        boolean esc = false;
+        int end;
+        for (;;) {
+          if (i == limit) {
+            if (!atEof) {
+              return NEED_MORE;
+            }
+            // Unterminated quote; take what we have.
+            end = i;
+            break;
+          }
+          if (buf[i] == '"') {
+            if (i + 1 == limit && !atEof) {
+              return NEED_MORE;
+            }
+            if (i + 1 < limit && buf[i + 1] == '"') {
+              esc = true;
+              i += 2;
+              continue;
+            }
+            end = i++;
+            break;
+          }
+          ++i;
+        }
+        addField(start, end, esc);
+        // Ignore anything between the closing quote and the delimiter.
+        while (i < limit && buf[i] != ',' && buf[i] != '\n'
+            && buf[i] != '\r') {
+          ++i;
+        }
+      } else {
+        final int start = i;
+        while (i < limit && buf[i] != ',' && buf[i] != '\n'
+            && buf[i] != '\r') {
+          ++i;
+        }
+        if (i == limit && !atEof) {
+          return NEED_MORE;
+        }
+        addField(start, i, false);
+      }
+
+      // Delimiter.
+      if (i == limit) {
+        if (!atEof) {
+          return NEED_MORE;
+        }
+        pos = i;
+        return fieldCount;
+      }
+      switch (buf[i]) {
+      case ',':
+        ++i;
+        break;
+      case '\r':
+        if (i + 1 == limit && !atEof) {
+          return NEED_MORE;
+        }
+        ++i;
+        if (i < limit && buf[i] == '\n') {
+          ++i;
+        }
+        pos = i;
+        return fieldCount;
+      default:
+        // '\n'
+        pos = i + 1;
+        return fieldCount;
+      }
+    }
+  }
+}
+
+// End CsvParser.java
@@ -0,0 +1,416 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.util;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Pool of persistent (HTTP/1.1 keep-alive) connections, keyed by protocol,
+ * host and port.
+ *
+ * <p>A connection is leased by {@link #acquire}, and must be returned by
+ * calling either {@link #release} (if the response has been read completely
+ * and the server did not ask to close the connection) or {@link #discard}.
+ * </p>
+ *
+ * <p>There are at most {@code maxPerHost} connections (leased plus idle) to
+ * each host; a caller that finds none available waits up to the connect
+ * timeout. Idle connections older than {@code maxIdleMillis} are evicted the
+ * next time the pool is used, and an idle connection that the server has
+ * closed is detected before it is leased.</p>
+ */
+public class HttpConnectionPool {
+  private static final Logger LOGGER =
+      StringUtils.getClassTracer(HttpConnectionPool.class);
+
+  private static final HttpConnectionPool DEFAULT =
+      new HttpConnectionPool(32, 30000);
+
+  private final int maxPerHost;
+  private final long maxIdleMillis;
+  private final SSLSocketFactory sslSocketFactory;
+  /** Whether to check that a server's certificate is for its host name;
+   * false if the factory trusts any certificate anyway. */
+  private final boolean verifyHostname;
+  private final Map<String, HostPool> hostPools =
+      new HashMap<String, HostPool>();
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /**
+   * Creates an HttpConnectionPool.
+   *
+   * @param maxPerHost Maximum number of connections to each host
+   * @param maxIdleMillis How long a connection may be idle before it is closed
+   */
+  public HttpConnectionPool(int maxPerHost, long maxIdleMillis) {
+    this(
+        maxPerHost, maxIdleMillis,
+        TrustAllSslSocketFactory.getDefaultSSLSocketFactory());
+  }
+
+  /**
+   * Creates an HttpConnectionPool that makes HTTPS connections using a given
+   * SSL socket factory.
+   *
+   * @param maxPerHost Maximum number of connections to each host
+   * @param maxIdleMillis How long a connection may be idle before it is closed
+   * @param sslSocketFactory Factory for HTTPS connections; its TLS session
+   *     cache is shared by all connections in this pool. Unless it is the
+   *     factory that trusts all certificates, each server's certificate
+   *     must match its host name
+   */
+  public HttpConnectionPool(
+      int maxPerHost, long maxIdleMillis, SSLSocketFactory sslSocketFactory) {
+    this(
+        maxPerHost, maxIdleMillis, sslSocketFactory,
+        sslSocketFactory
+        != TrustAllSslSocketFactory.getDefaultSSLSocketFactory());
+  }
+
+  /**
+   * Creates an HttpConnectionPool that makes HTTPS connections using a given
+   * SSL socket factory, and says whether to check host names.
+   *
+   * @param maxPerHost Maximum number of connections to each host
+   * @param maxIdleMillis How long a connection may be idle before it is closed
+   * @param sslSocketFactory Factory for HTTPS connections
+   * @param verifyHostname Whether each server's certificate must match its
+   *     host name; false only if the factory trusts all certificates
+   */
+  public HttpConnectionPool(
+      int maxPerHost, long maxIdleMillis, SSLSocketFactory sslSocketFactory,
+      boolean verifyHostname) {
+    if (maxPerHost <= 0) {
+      throw new IllegalArgumentException("maxPerHost must be positive");
+    }
+    this.maxPerHost = maxPerHost;
+    this.maxIdleMillis = maxIdleMillis;
+    this.sslSocketFactory = sslSocketFactory;
+    this.verifyHostname = verifyHostname;
+  }
+
+  /** Returns the pool shared by all connections that do not have their
+   * own. */
+  public static HttpConnectionPool getDefault() {
+    return DEFAULT;
+  }
+
+  /** Returns the number of times a request was served by an idle pooled
+   * connection. */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns the number of times a request had to open a new connection. */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /** Returns the number of idle connections closed because they had been
+   * idle too long or because the pool was closed. */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /** Returns the number of idle connections currently in the pool. */
+  public synchronized int getIdleCount() {
+    int n = 0;
+    for (HostPool hostPool : hostPools.values()) {
+      n += hostPool.idle.size();
+    }
+    return n;
+  }
+
+  private synchronized HostPool hostPool(String key) {
+    HostPool hostPool = hostPools.get(key);
+    if (hostPool == null) {
+      hostPool = new HostPool(maxPerHost);
+      hostPools.put(key, hostPool);
+    }
+    return hostPool;
+  }
+
+  static String key(URL url) {
+    return url.getProtocol() + "://" + url.getHost() + ":" + port(url);
+  }
+
+  static int port(URL url) {
+    final int port = url.getPort();
+    if (port >= 0) {
+      return port;
+    }
+    return url.getDefaultPort();
+  }
+
+  /**
+   * Leases a connection to the host and port of a URL. Reuses an idle
+   * connection if there is one, otherwise opens a new one.
+   *
+   * @param url URL
+   * @param connectTimeout Connect timeout, also the maximum time to wait for
+   *     a connection to become available, in milliseconds
+   * @param readTimeout Read timeout, in milliseconds
+   * @return Leased connection
+   */
+  public Connection acquire(URL url, int connectTimeout, int readTimeout)
+      throws IOException {
+    final String key = key(url);
+    final HostPool hostPool = hostPool(key);
+    try {
+      if (!hostPool.permits.tryAcquire(
+          connectTimeout > 0 ? connectTimeout : Long.MAX_VALUE,
+          TimeUnit.MILLISECONDS)) {
+        throw new SocketTimeoutException(
+            "Timed out waiting for a connection to " + key);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(
+          "Interrupted waiting for a connection to " + key);
+    }
+    boolean success = false;
+    try {
+      Connection connection = pollIdle(hostPool);
+      if (connection != null) {
+        hitCount.incrementAndGet();
+      } else {
+        missCount.incrementAndGet();
+        connection = open(url, key, hostPool, connectTimeout);
+      }
+      connection.socket.setSoTimeout(readTimeout);
+      success = true;
+      return connection;
+    } finally {
+      if (!success) {
+        hostPool.permits.release();
+      }
+    }
+  }
+
+  private Connection pollIdle(HostPool hostPool) {
+    final long now = System.currentTimeMillis();
+    for (;;) {
+      final Connection connection;
+      synchronized (this) {
+        connection = hostPool.idle.pollFirst();
+      }
+      if (connection == null) {
+        return null;
+      }
+      if (now - connection.lastUsed > maxIdleMillis
+          || connection.socket.isClosed()
+          || isStale(connection)) {
+        evict(connection);
+        continue;
+      }
+      connection.leased = true;
+      connection.reused = true;
+      return connection;
+    }
+  }
+
+  /** Returns whether the server has closed an idle connection (or, in
+   * violation of the protocol, sent something on it), by reading with a
+   * very short timeout. A request sent on such a connection would fail, or
+   * worse, fail after the server had acted on it. */
+  private static boolean isStale(Connection connection) {
+    try {
+      connection.socket.setSoTimeout(1);
+      connection.in.mark(1);
+      final int b = connection.in.read();
+      if (b >= 0) {
+        connection.in.reset();
+      }
+      return true;
+    } catch (SocketTimeoutException e) {
+      // Nothing to read: the connection is open.
+      return false;
+    } catch (IOException e) {
+      return true;
+    }
+  }
+
+  private Connection open(
+      URL url, String key, HostPool hostPool, int connectTimeout)
+      throws IOException {
+    final Socket socket;
+    final String host = url.getHost();
+    final int port = port(url);
+    if (url.getProtocol().equals("https")) {
+      Socket plain = new Socket();
+      plain.setTcpNoDelay(true);
+      plain.connect(new InetSocketAddress(host, port), connectTimeout);
+      // Passing host and port allows the TLS session to be resumed.
+      final SSLSocket sslSocket =
+          (SSLSocket) sslSocketFactory.createSocket(plain, host, port, true);
+      if (verifyHostname) {
+        // Trusting the certificate's issuer is not enough; the certificate
+        // must also be for this host.
+        final SSLParameters parameters = sslSocket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        sslSocket.setSSLParameters(parameters);
+      }
+      socket = sslSocket;
+    } else {
+      socket = new Socket();
+      socket.setTcpNoDelay(true);
+      socket.connect(new InetSocketAddress(host, port), connectTimeout);
+    }
+    socket.setKeepAlive(true);
+    LOGGER.fine("opened connection to " + key);
+    return new Connection(key, hostPool, socket);
+  }
+
+  /**
+   * Returns a connection to the pool so that it can be reused. The caller
+   * must have read the whole of the previous response.
+   */
+  public void release(Connection connection) {
+    if (!unlease(connection)) {
+      return;
+    }
+    connection.lastUsed = System.currentTimeMillis();
+    synchronized (this) {
+      connection.hostPool.idle.addFirst(connection);
+    }
+    connection.hostPool.permits.release();
+    evictIdle();
+  }
+
+  /**
+   * Closes a leased connection rather than returning it to the pool; for
+   * example, because the response was not read completely, or an error
+   * occurred.
+   */
+  public void discard(Connection connection) {
+    if (!unlease(connection)) {
+      return;
+    }
+    HttpUtils.close(connection.socket);
+    connection.hostPool.permits.release();
+  }
+
+  /** Marks a connection as no longer leased; returns false if it was
+   * already returned. A consumer that closes a stream may race with a
+   * thread that is reading from it, and both try to return the
+   * connection. */
+  private static boolean unlease(Connection connection) {
+    synchronized (connection) {
+      if (!connection.leased) {
+        return false;
+      }
+      connection.leased = false;
+      return true;
+    }
+  }
+
+  /** Closes connections that have been idle for longer than the maximum
+   * idle time. */
+  public void evictIdle() {
+    final long now = System.currentTimeMillis();
+    final List<Connection> expired = new ArrayList<Connection>();
+    synchronized (this) {
+      for (HostPool hostPool : hostPools.values()) {
+        for (Iterator<Connection> iterator = hostPool.idle.iterator();
+             iterator.hasNext();) {
+          Connection connection = iterator.next();
+          if (now - connection.lastUsed > maxIdleMillis) {
+            iterator.remove();
+            expired.add(connection);
+          }
+        }
+      }
+    }
+    for (Connection connection : expired) {
+      evict(connection);
+    }
+  }
+
+  /** Closes all idle connections. Leased connections are closed when they
+   * are released. */
+  public void close() {
+    final List<Connection> idle = new ArrayList<Connection>();
+    synchronized (this) {
+      for (HostPool hostPool : hostPools.values()) {
+        idle.addAll(hostPool.idle);
+        hostPool.idle.clear();
+      }
+    }
+    for (Connection connection : idle) {
+      evict(connection);
+    }
+  }
+
+  private void evict(Connection connection) {
+    evictionCount.incrementAndGet();
+    HttpUtils.close(connection.socket);
+    LOGGER.fine("evicted idle connection to " + connection.key);
+  }
+
+  /** Connections to a particular host and port. */
+  private static class HostPool {
+    final Semaphore permits;
+    final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+
+    HostPool(int maxPerHost) {
+      this.permits = new Semaphore(maxPerHost, true);
+    }
+  }
+
+  /** Persistent connection to a host. */
+  public static class Connection {
+    final String key;
+    private final HostPool hostPool;
+    final Socket socket;
+    final InputStream in;
+    final OutputStream out;
+    long lastUsed;
+    boolean leased = true;
+    boolean reused;
+
+    Connection(String key, HostPool hostPool, Socket socket)
+        throws IOException {
+      this.key = key;
+      this.hostPool = hostPool;
+      this.socket = socket;
+      this.in = new BufferedInputStream(socket.getInputStream(), 8192);
+      this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+    }
+
+    /** Returns whether this connection had been used for a previous
+     * request. */
+    public boolean isReused() {
+      return reused;
+    }
+  }
+}
+
+// End HttpConnectionPool.java
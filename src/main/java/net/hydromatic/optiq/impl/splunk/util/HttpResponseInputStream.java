@@ -0,0 +1,187 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.util;
+
+import java.io.*;
+
+/**
+ * Body of an HTTP response.
+ *
+ * <p>Handles "chunked" transfer encoding, a fixed "Content-Length", and
+ * bodies delimited by the server closing the connection. When the body has
+ * been read to the end, the connection can be reused (for example, it goes
+ * back to the pool); if the stream is closed before then, the connection is
+ * closed, which also tells the server to stop sending.</p>
+ */
+public class HttpResponseInputStream extends InputStream {
+  private final InputStream in;
+  private final Callback callback;
+  private final boolean chunked;
+  private final boolean keepAlive;
+
+  /** Bytes remaining in the current chunk, or in the body if not chunked;
+   * -1 if the body is delimited by end of stream. */
+  private long remaining;
+  private boolean eof;
+  private boolean closed;
+
+  HttpResponseInputStream(
+      InputStream in,
+      Callback callback,
+      boolean chunked,
+      long contentLength,
+      boolean keepAlive) throws IOException {
+    this.in = in;
+    this.callback = callback;
+    this.chunked = chunked;
+    this.keepAlive = keepAlive && (chunked || contentLength >= 0);
+    if (chunked) {
+      this.remaining = 0;
+      nextChunk();
+    } else {
+      this.remaining = contentLength;
+      if (contentLength == 0) {
+        finish();
+      }
+    }
+  }
+
+  private void nextChunk() throws IOException {
+    if (remaining == 0 && chunked) {
+      final String line = HttpUtils.readLine(in);
+      if (line == null) {
+        throw new EOFException("Unexpected end of chunked stream");
+      }
+      int semi = line.indexOf(';');
+      final String size = semi >= 0 ? line.substring(0, semi) : line;
+      try {
+        remaining = Long.parseLong(size.trim(), 16);
+      } catch (NumberFormatException e) {
+        throw new IOException("Bad chunk size: " + line);
+      }
+      if (remaining == 0) {
+        // Skip trailers, up to and including the empty line.
+        String trailer;
+        while ((trailer = HttpUtils.readLine(in)) != null
+            && trailer.length() > 0) {
+          // ignore
+        }
+        finish();
+      }
+    }
+  }
+
+  private void endChunk() throws IOException {
+    if (chunked && remaining == 0) {
+      // Each chunk is followed by CRLF.
+      HttpUtils.readLine(in);
+      nextChunk();
+    }
+  }
+
+  private void finish() {
+    eof = true;
+    callback.end(keepAlive);
+  }
+
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int n = read(b, 0, 1);
+    return n < 0 ? -1 : b[0] & 0xff;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (eof) {
+      return -1;
+    }
+    if (len == 0) {
+      return 0;
+    }
+    if (remaining >= 0 && len > remaining) {
+      len = (int) remaining;
+    }
+    final int n;
+    try {
+      n = in.read(b, off, len);
+    } catch (IOException e) {
+      eof = true;
+      callback.end(false);
+      throw e;
+    }
+    if (n < 0) {
+      if (remaining > 0) {
+        eof = true;
+        callback.end(false);
+        throw new EOFException("Unexpected end of HTTP response");
+      }
+      finish();
+      return -1;
+    }
+    if (remaining > 0) {
+      remaining -= n;
+      if (remaining == 0) {
+        if (chunked) {
+          endChunk();
+        } else {
+          finish();
+        }
+      }
+    }
+    return n;
+  }
+
+  public int available() throws IOException {
+    if (closed || eof) {
+      return 0;
+    }
+    final int available = in.available();
+    return remaining >= 0 && available > remaining
+        ? (int) remaining
+        : available;
+  }
+
+  /**
+   * Closes the stream. If the response has not been read to the end, the
+   * underlying connection is closed rather than returned to the pool.
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (!eof) {
+      eof = true;
+      callback.end(false);
+    }
+  }
+
+  /** Receives notification that a response has been read to the end or
+   * abandoned. */
+  interface Callback {
+    /** Called once, when the body has been read or the stream closed.
+     *
+     * @param reusable Whether the connection can be used for another
+     *     request */
+    void end(boolean reusable);
+  }
+}
+
+// End HttpResponseInputStream.java
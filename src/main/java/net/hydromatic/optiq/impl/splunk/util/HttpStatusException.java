@@ -0,0 +1,40 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.util;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when an HTTP server returns an error status.
+ */
+public class HttpStatusException extends IOException {
+  private final int status;
+
+  public HttpStatusException(int status, String url) {
+    super("Server returned HTTP response code: " + status
+        + " for URL: " + url);
+    this.status = status;
+  }
+
+  /** Returns the HTTP status code, for example 401. */
+  public int getStatus() {
+    return status;
+  }
+}
+
+// End HttpStatusException.java
@@ -19,9 +19,12 @@ package net.hydromatic.optiq.impl.splunk.util;
 
 import java.io.*;
 import java.net.*;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.*;
 
@@ -43,7 +46,7 @@ public class HttpUtils {
     if (httpConn instanceof HttpsURLConnection) {
       HttpsURLConnection httpsConn = (HttpsURLConnection) httpConn;
       httpsConn.setSSLSocketFactory(
-          TrustAllSslSocketFactory.createSSLSocketFactory());
+          TrustAllSslSocketFactory.getDefaultSSLSocketFactory());
       httpsConn.setHostnameVerifier(
           new HostnameVerifier() {
             public boolean verify(String arg0, SSLSession arg1) {
@@ -120,40 +123,292 @@ public class HttpUtils {
     return executeMethod("POST", url, data, headers, cTimeout, rTimeout);
   }
 
+  public static InputStream post(
+      HttpConnectionPool pool,
+      String url,
+      CharSequence data,
+      Map<String, String> headers,
+      int cTimeout,
+      int rTimeout) throws IOException {
+    return executeMethod(
+        pool, "POST", url, data, headers, cTimeout, rTimeout);
+  }
+
   public static InputStream executeMethod(
       String method, String url,
       CharSequence data, Map<String, String> headers,
       int ctimeout, int rtimeout) throws IOException {
-    HttpURLConnection conn;
-    OutputStreamWriter wr = null;
+    return executeMethod(
+        HttpConnectionPool.getDefault(), method, url, data, headers,
+        ctimeout, rtimeout);
+  }
 
-    try {
-      conn = getURLConnection(url);
-      conn.setRequestMethod(method);
-      conn.setReadTimeout(rtimeout);
-      conn.setConnectTimeout(ctimeout);
-
-      if (headers != null) {
-        for (Map.Entry<String, String> me : headers.entrySet()) {
-          conn.setRequestProperty(me.getKey(), me.getValue());
+  public static InputStream executeMethod(
+      HttpConnectionPool pool, String method, String url,
+      CharSequence data, Map<String, String> headers,
+      int ctimeout, int rtimeout) throws IOException {
+    return executeMethod(
+        pool, method, url, data, headers, ctimeout, rtimeout, null);
+  }
+
+  /**
+   * Executes an HTTP request over a connection leased from a pool, and
+   * returns the body of the response.
+   *
+   * <p>The connection goes back to the pool when the caller has read the
+   * body to the end; closing the stream before then closes the connection.
+   * </p>
+   *
+   * <p>If a pooled connection turns out to have been closed by the server
+   * while it was idle, the request is retried on another connection; but if
+   * the request had been sent, only if its method is idempotent, because
+   * the server may have acted on it (for example, created a search
+   * job).</p>
+   *
+   * <p>If the response has a "Content-Encoding" of "gzip" or "deflate"
+   * (which the server will only send if the request has an
+   * "Accept-Encoding" header), the body is decompressed transparently.</p>
+   *
+   * @param stats Statistics to which to add the size of the response body,
+   *     or null
+   */
+  public static InputStream executeMethod(
+      final HttpConnectionPool pool, String method, String url,
+      CharSequence data, Map<String, String> headers,
+      int ctimeout, int rtimeout, TransferStats stats) throws IOException {
+    final URL u = new URL(url);
+    final byte[] body =
+        data == null ? null : data.toString().getBytes("UTF-8");
+    for (;;) {
+      final HttpConnectionPool.Connection connection =
+          pool.acquire(u, ctimeout, rtimeout);
+      final String statusLine;
+      boolean sent = false;
+      try {
+        connection.out.write(requestBytes(method, u, body, headers));
+        connection.out.flush();
+        sent = true;
+        statusLine = readLine(connection.in);
+        if (statusLine == null) {
+          throw new EOFException("Connection closed by server");
         }
+      } catch (IOException e) {
+        pool.discard(connection);
+        if (connection.isReused() && (!sent || isIdempotent(method))) {
+          LOGGER.fine("stale pooled connection to " + connection.key
+              + "; retrying");
+          continue;
+        }
+        throw e;
       }
-      if (data != null) {
-        conn.setDoOutput(true);
-        wr = new OutputStreamWriter(conn.getOutputStream());
-        wr.write(data.toString());
-        wr.flush(); // Get the response
-      }
-      InputStream in = conn.getInputStream();
-      wr.close();
-
       if (LOGGER.isLoggable(Level.FINE)) {
         LOGGER.fine("url: " + url + ", data: " + String.valueOf(data));
       }
-      return in;
-    } finally {
-      close(wr);
+      try {
+        return readResponse(
+            connection.in,
+            new HttpResponseInputStream.Callback() {
+              public void end(boolean reusable) {
+                if (reusable) {
+                  pool.release(connection);
+                } else {
+                  pool.discard(connection);
+                }
+              }
+            },
+            method,
+            url,
+            statusLine,
+            stats);
+      } catch (IOException e) {
+        pool.discard(connection);
+        throw e;
+      }
+    }
+  }
+
+  /** Returns whether a request with a given method may be sent again if
+   * it fails after it has been sent; the server may have acted on it. */
+  static boolean isIdempotent(String method) {
+    return method.equals("GET")
+        || method.equals("HEAD")
+        || method.equals("PUT")
+        || method.equals("DELETE")
+        || method.equals("OPTIONS");
+  }
+
+  /** Formats an HTTP/1.1 request, including the body if any. */
+  static byte[] requestBytes(
+      String method,
+      URL url,
+      byte[] body,
+      Map<String, String> headers) throws IOException {
+    final StringBuilder buf = new StringBuilder();
+    final String file = url.getFile();
+    buf.append(method).append(' ')
+        .append(file.isEmpty() ? "/" : file)
+        .append(" HTTP/1.1\r\n");
+    buf.append("Host: ").append(url.getHost());
+    if (url.getPort() >= 0 && url.getPort() != url.getDefaultPort()) {
+      buf.append(':').append(url.getPort());
+    }
+    buf.append("\r\n");
+    boolean contentType = false;
+    if (headers != null) {
+      for (Map.Entry<String, String> me : headers.entrySet()) {
+        buf.append(me.getKey()).append(": ").append(me.getValue())
+            .append("\r\n");
+        contentType |= me.getKey().equalsIgnoreCase("Content-Type");
+      }
+    }
+    if (body != null) {
+      if (!contentType) {
+        buf.append("Content-Type: application/x-www-form-urlencoded\r\n");
+      }
+      buf.append("Content-Length: ").append(body.length).append("\r\n");
+    }
+    buf.append("\r\n");
+    final byte[] head = buf.toString().getBytes("ISO-8859-1");
+    if (body == null) {
+      return head;
+    }
+    final byte[] bytes = new byte[head.length + body.length];
+    System.arraycopy(head, 0, bytes, 0, head.length);
+    System.arraycopy(body, 0, bytes, head.length, body.length);
+    return bytes;
+  }
+
+  /**
+   * Reads the status line and headers of an HTTP response, and returns a
+   * stream that reads the body.
+   *
+   * @param in Stream positioned after the status line
+   * @param callback Notified when the body has been read or abandoned
+   * @param method HTTP method of the request
+   * @param url URL of the request, for error messages
+   * @param statusLine Status line of the response
+   * @param stats Statistics to which to add the size of the body, or null
+   */
+  static InputStream readResponse(
+      InputStream in,
+      HttpResponseInputStream.Callback callback,
+      String method,
+      String url,
+      String statusLine,
+      TransferStats stats) throws IOException {
+    int status;
+    Map<String, String> responseHeaders;
+    for (;;) {
+      // Status line is "HTTP/1.1 200 OK".
+      final String[] parts = statusLine.split(" ", 3);
+      if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+        throw new IOException("Bad HTTP status line: " + statusLine);
+      }
+      try {
+        status = Integer.parseInt(parts[1]);
+      } catch (NumberFormatException e) {
+        throw new IOException("Bad HTTP status line: " + statusLine);
+      }
+      responseHeaders = readHeaders(in);
+      if (status >= 200) {
+        break;
+      }
+      // Skip "100 Continue" and other interim responses.
+      statusLine = readLine(in);
+      if (statusLine == null) {
+        throw new EOFException("Connection closed by server");
+      }
+    }
+
+    final String connectionHeader = responseHeaders.get("connection");
+    final boolean keepAlive =
+        statusLine.startsWith("HTTP/1.1")
+            ? !"close".equalsIgnoreCase(connectionHeader)
+            : "keep-alive".equalsIgnoreCase(connectionHeader);
+    final boolean chunked =
+        "chunked".equalsIgnoreCase(
+            responseHeaders.get("transfer-encoding"));
+    long contentLength = -1;
+    if (method.equals("HEAD") || status == 204 || status == 304) {
+      contentLength = 0;
+    } else if (!chunked && responseHeaders.containsKey("content-length")) {
+      contentLength =
+          Long.parseLong(responseHeaders.get("content-length").trim());
+    }
+    final InputStream body =
+        new HttpResponseInputStream(
+            in, callback, chunked, contentLength, keepAlive);
+    if (status >= 400) {
+      close(body);
+      throw new HttpStatusException(status, url);
+    }
+    try {
+      return decode(body, responseHeaders.get("content-encoding"), stats);
+    } catch (IOException e) {
+      close(body);
+      throw e;
+    }
+  }
+
+  /** Wraps the body of a response in a stream that decompresses it
+   * according to its content encoding, and counts bytes. */
+  private static InputStream decode(
+      InputStream in, String encoding, TransferStats stats)
+      throws IOException {
+    if (encoding == null || encoding.equalsIgnoreCase("identity")) {
+      return stats == null
+          ? in
+          : new CountingInputStream(in, stats, true, true);
+    }
+    final InputStream wire =
+        stats == null
+            ? in
+            : new CountingInputStream(in, stats, true, false);
+    final InputStream decoded;
+    if (encoding.equalsIgnoreCase("gzip")
+        || encoding.equalsIgnoreCase("x-gzip")) {
+      decoded = new GZIPInputStream(wire, 8192);
+    } else if (encoding.equalsIgnoreCase("deflate")) {
+      decoded = new InflaterInputStream(wire);
+    } else {
+      throw new IOException("Unsupported Content-Encoding: " + encoding);
+    }
+    return stats == null
+        ? decoded
+        : new CountingInputStream(decoded, stats, false, true);
+  }
+
+  private static Map<String, String> readHeaders(InputStream in)
+      throws IOException {
+    final Map<String, String> map = new HashMap<String, String>();
+    String line;
+    while ((line = readLine(in)) != null && line.length() > 0) {
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        map.put(
+            line.substring(0, colon).trim().toLowerCase(),
+            line.substring(colon + 1).trim());
+      }
+    }
+    return map;
+  }
+
+  /** Reads a line terminated by LF or CRLF, without the terminator. Returns
+   * null if the stream is at end. */
+  static String readLine(InputStream in) throws IOException {
+    final StringBuilder buf = new StringBuilder();
+    int c;
+    while ((c = in.read()) >= 0) {
+      if (c == '\n') {
+        final int n = buf.length();
+        if (n > 0 && buf.charAt(n - 1) == '\r') {
+          buf.setLength(n - 1);
+        }
+        return buf.toString();
+      }
+      buf.append((char) c);
     }
+    return buf.length() == 0 ? null : buf.toString();
   }
 }
 
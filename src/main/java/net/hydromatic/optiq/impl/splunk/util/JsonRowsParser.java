@@ -0,0 +1,549 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.util;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming parser for search results in Splunk's "json_rows" output mode.
+ *
+ * <p>The input is a sequence of JSON objects. Each object may have a
+ * "fields" member, an array of field names (or of objects with a "name"
+ * member), and a "rows" member, an array of rows, each an array of values.
+ * Other members, such as "preview" and "messages", are skipped.</p>
+ *
+ * <p>Like {@link CsvParser}, works directly on bytes in a reusable buffer,
+ * and does not build a document tree: {@link #next()} finds the boundaries
+ * of the values of the next row, and {@link #get(int)} decodes only the
+ * values the caller needs. A value that is an array (a multi-value field)
+ * is available as a list of its elements ({@link #getValues(int)}); and,
+ * for callers that want one string per field, such as the SQL adapter,
+ * whose columns are all VARCHAR, as its elements separated by line breaks,
+ * as Splunk does in CSV ({@link #get(int)}).</p>
+ */
+public class JsonRowsParser implements Closeable {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Thrown when the buffer does not contain the whole of the current
+   * step. Pre-allocated, and without a stack trace, because it is thrown
+   * every time the buffer runs out. */
+  private static final NeedMore NEED_MORE = new NeedMore();
+
+  // States.
+  private static final int OUTSIDE = 0;
+  private static final int FIRST_MEMBER = 1;
+  private static final int MEMBER = 2;
+  private static final int FIRST_ROW = 3;
+  private static final int ROW = 4;
+
+  /** Returned by {@link #step()} if it has not reached a row. */
+  private static final int CONTINUE = -2;
+
+  // Kinds of value.
+  private static final byte NULL = 0;
+  private static final byte LITERAL = 1;
+  private static final byte STRING = 2;
+  private static final byte ESCAPED_STRING = 3;
+  private static final byte ARRAY = 4;
+
+  private final InputStream in;
+  private byte[] buf;
+  private int pos;
+  private int limit;
+  private boolean eof;
+  private int state = OUTSIDE;
+  private String[] fields = new String[0];
+
+  // Boundaries of the values of the current row.
+  private int valueCount;
+  private int[] starts = new int[16];
+  private int[] ends = new int[16];
+  private byte[] kinds = new byte[16];
+  private final StringBuilder sb = new StringBuilder();
+
+  /** Creates a JsonRowsParser with a 64KB buffer. */
+  public JsonRowsParser(InputStream in) {
+    this(in, 65536);
+  }
+
+  /** Creates a JsonRowsParser with a given initial buffer size. The buffer
+   * grows if a row is larger. */
+  public JsonRowsParser(InputStream in, int bufferSize) {
+    this.in = in;
+    this.buf = new byte[bufferSize];
+  }
+
+  /**
+   * Moves to the next row.
+   *
+   * @return Number of values in the row, or -1 at end of input
+   */
+  public int next() throws IOException {
+    for (;;) {
+      final int savePos = pos;
+      final int saveState = state;
+      try {
+        final int n = step();
+        if (n != CONTINUE) {
+          return n;
+        }
+      } catch (NeedMore e) {
+        pos = savePos;
+        state = saveState;
+        if (eof) {
+          throw new EOFException("Unexpected end of JSON");
+        }
+        fill();
+      }
+    }
+  }
+
+  /** Returns the field names that apply to the current row; that is, the
+   * most recent "fields" member. A new array is created each time the
+   * field names change. */
+  public String[] getFields() {
+    return fields;
+  }
+
+  /** Returns the number of values in the current row. */
+  public int getValueCount() {
+    return valueCount;
+  }
+
+  /** Decodes the {@code i}th value of the current row. Returns null if the
+   * value is JSON null. */
+  public String get(int i) {
+    final int start = starts[i];
+    final int end = ends[i];
+    switch (kinds[i]) {
+    case NULL:
+      return null;
+    case STRING:
+      return new String(buf, start, end - start, UTF8);
+    case ESCAPED_STRING:
+      sb.setLength(0);
+      unescape(start, end, sb);
+      return sb.toString();
+    case ARRAY:
+      // Multi-value field. Join the elements with line breaks.
+      sb.setLength(0);
+      final List<String> values = getValues(i);
+      for (int k = 0; k < values.size(); k++) {
+        if (k > 0) {
+          sb.append('\n');
+        }
+        sb.append(values.get(k));
+      }
+      return sb.toString();
+    default:
+      return new String(buf, start, end - start, UTF8);
+    }
+  }
+
+  /** Returns whether the {@code i}th value of the current row is an array;
+   * that is, the value of a multi-value field. */
+  public boolean isMultiValue(int i) {
+    return kinds[i] == ARRAY;
+  }
+
+  /** Returns the elements of the {@code i}th value of the current row, if
+   * it is an array, otherwise null. Unlike {@link #get(int)}, keeps the
+   * elements apart, even if they contain line breaks. A JSON null element
+   * becomes null. */
+  public List<String> getValues(int i) {
+    if (kinds[i] != ARRAY) {
+      return null;
+    }
+    final List<String> list = new ArrayList<String>();
+    final StringBuilder element = new StringBuilder();
+    int j = ws(starts[i] + 1);
+    while (buf[j] != ']') {
+      final int e;
+      if (buf[j] == '"') {
+        e = scanString(j);
+        element.setLength(0);
+        unescape(j + 1, e - 1, element);
+        list.add(element.toString());
+      } else {
+        e = skipValue(j);
+        final String literal = new String(buf, j, e - j, UTF8);
+        list.add(literal.equals("null") ? null : literal);
+      }
+      j = ws(e);
+      if (buf[j] == ',') {
+        j = ws(j + 1);
+      }
+    }
+    return list;
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /** Moves unparsed bytes to the start of the buffer, growing it if it is
+   * full, and reads more input. */
+  private void fill() throws IOException {
+    if (pos > 0) {
+      System.arraycopy(buf, pos, buf, 0, limit - pos);
+      limit -= pos;
+      pos = 0;
+    }
+    if (limit == buf.length) {
+      final byte[] newBuf = new byte[buf.length * 2];
+      System.arraycopy(buf, 0, newBuf, 0, limit);
+      buf = newBuf;
+    }
+    final int n = in.read(buf, limit, buf.length - limit);
+    if (n < 0) {
+      eof = true;
+    } else {
+      limit += n;
+    }
+  }
+
+  /**
+   * Parses the next member, row, or start or end of an object or array.
+   * Moves {@link #pos} and {@link #state} only if it succeeds.
+   *
+   * @return Number of values if it parsed a row, -1 at end of input, or
+   *     {@link #CONTINUE}
+   * @throws NeedMore if the buffer does not contain the whole step
+   */
+  private int step() throws IOException {
+    int i;
+    switch (state) {
+    case OUTSIDE:
+      i = pos;
+      while (i < limit && isWhitespace(buf[i])) {
+        ++i;
+      }
+      if (i == limit) {
+        if (eof) {
+          pos = i;
+          return -1;
+        }
+        throw NEED_MORE;
+      }
+      expect(i, '{');
+      pos = i + 1;
+      state = FIRST_MEMBER;
+      return CONTINUE;
+
+    case FIRST_MEMBER:
+    case MEMBER:
+      i = ws(pos);
+      if (buf[i] == '}') {
+        pos = i + 1;
+        state = OUTSIDE;
+        return CONTINUE;
+      }
+      if (state == MEMBER) {
+        expect(i, ',');
+        i = ws(i + 1);
+      }
+      expect(i, '"');
+      final int nameEnd = scanString(i);
+      final String name = new String(buf, i + 1, nameEnd - i - 2, UTF8);
+      i = ws(nameEnd);
+      expect(i, ':');
+      i = ws(i + 1);
+      if (name.equals("rows") && buf[i] == '[') {
+        pos = i + 1;
+        state = FIRST_ROW;
+        return CONTINUE;
+      }
+      if (name.equals("fields") && buf[i] == '[') {
+        i = parseFields(i);
+      } else {
+        i = skipValue(i);
+      }
+      pos = i;
+      state = MEMBER;
+      return CONTINUE;
+
+    case FIRST_ROW:
+    case ROW:
+      i = ws(pos);
+      if (buf[i] == ']') {
+        pos = i + 1;
+        state = MEMBER;
+        return CONTINUE;
+      }
+      if (state == ROW) {
+        expect(i, ',');
+        i = ws(i + 1);
+      }
+      expect(i, '[');
+      valueCount = 0;
+      i = ws(i + 1);
+      if (buf[i] != ']') {
+        for (;;) {
+          i = parseValue(i);
+          i = ws(i);
+          if (buf[i] == ']') {
+            break;
+          }
+          expect(i, ',');
+          i = ws(i + 1);
+        }
+      }
+      pos = i + 1;
+      state = ROW;
+      return valueCount;
+
+    default:
+      throw new AssertionError(state);
+    }
+  }
+
+  /** Parses the array of field names that starts at {@code i}; returns the
+   * position after it. */
+  private int parseFields(int i) throws IOException {
+    final List<String> list = new ArrayList<String>();
+    i = ws(i + 1);
+    while (buf[i] != ']') {
+      if (buf[i] == '"') {
+        final int e = scanString(i);
+        list.add(decodeString(i, e));
+        i = e;
+      } else {
+        // An object such as {"name": "host", "groupby_rank": "0"}
+        expect(i, '{');
+        String name = null;
+        i = ws(i + 1);
+        while (buf[i] != '}') {
+          expect(i, '"');
+          final int e = scanString(i);
+          final String memberName = decodeString(i, e);
+          i = ws(e);
+          expect(i, ':');
+          i = ws(i + 1);
+          final int e2 = skipValue(i);
+          if (memberName.equals("name") && buf[i] == '"') {
+            name = decodeString(i, e2);
+          }
+          i = ws(e2);
+          if (buf[i] == ',') {
+            i = ws(i + 1);
+          }
+        }
+        list.add(name);
+        ++i;
+      }
+      i = ws(i);
+      if (buf[i] == ',') {
+        i = ws(i + 1);
+      }
+    }
+    fields = list.toArray(new String[list.size()]);
+    return i + 1;
+  }
+
+  /** Finds the boundaries of the value that starts at {@code i}, and adds
+   * it to the current row; returns the position after it. */
+  private int parseValue(int i) {
+    final int end;
+    switch (buf[i]) {
+    case '"':
+      end = scanString(i);
+      boolean escaped = false;
+      for (int j = i + 1; j < end - 1; j++) {
+        if (buf[j] == '\\') {
+          escaped = true;
+          break;
+        }
+      }
+      addValue(i + 1, end - 1, escaped ? ESCAPED_STRING : STRING);
+      return end;
+    case '[':
+      end = skipValue(i);
+      addValue(i, end, ARRAY);
+      return end;
+    case 'n':
+      end = skipValue(i);
+      addValue(i, end, NULL);
+      return end;
+    default:
+      end = skipValue(i);
+      addValue(i, end, LITERAL);
+      return end;
+    }
+  }
+
+  private void addValue(int start, int end, byte kind) {
+    if (valueCount == starts.length) {
+      final int n = valueCount * 2;
+      final int[] newStarts = new int[n];
+      final int[] newEnds = new int[n];
+      final byte[] newKinds = new byte[n];
+      System.arraycopy(starts, 0, newStarts, 0, valueCount);
+      System.arraycopy(ends, 0, newEnds, 0, valueCount);
+      System.arraycopy(kinds, 0, newKinds, 0, valueCount);
+      starts = newStarts;
+      ends = newEnds;
+      kinds = newKinds;
+    }
+    starts[valueCount] = start;
+    ends[valueCount] = end;
+    kinds[valueCount] = kind;
+    ++valueCount;
+  }
+
+  /** Returns the position after the value that starts at {@code i}. */
+  private int skipValue(int i) {
+    switch (at(i)) {
+    case '"':
+      return scanString(i);
+    case '[':
+    case '{':
+      int depth = 0;
+      for (;;) {
+        final byte b = at(i);
+        if (b == '"') {
+          i = scanString(i);
+          continue;
+        }
+        if (b == '[' || b == '{') {
+          ++depth;
+        } else if (b == ']' || b == '}') {
+          if (--depth == 0) {
+            return i + 1;
+          }
+        }
+        ++i;
+      }
+    default:
+      // Number, true, false or null. Ends at a delimiter; at end of input,
+      // a literal is incomplete, because a row or object must follow.
+      for (;;) {
+        final byte b = at(i);
+        if (b == ',' || b == ']' || b == '}' || isWhitespace(b)) {
+          return i;
+        }
+        ++i;
+      }
+    }
+  }
+
+  /** Returns the position after the string whose opening quote is at
+   * {@code i}. */
+  private int scanString(int i) {
+    ++i;
+    for (;;) {
+      final byte b = at(i);
+      if (b == '"') {
+        return i + 1;
+      }
+      i += b == '\\' ? 2 : 1;
+    }
+  }
+
+  /** Decodes the string between {@code start} (the opening quote) and
+   * {@code end} (after the closing quote). */
+  private String decodeString(int start, int end) {
+    sb.setLength(0);
+    unescape(start + 1, end - 1, sb);
+    return sb.toString();
+  }
+
+  /** Appends the decoded contents of a string, between its quotes, to a
+   * buffer. */
+  private void unescape(int start, int end, StringBuilder sb) {
+    int s = start;
+    for (int i = start; i < end; i++) {
+      if (buf[i] != '\\') {
+        continue;
+      }
+      if (i > s) {
+        sb.append(new String(buf, s, i - s, UTF8));
+      }
+      final byte b = buf[++i];
+      switch (b) {
+      case 'b':
+        sb.append('\b');
+        break;
+      case 'f':
+        sb.append('\f');
+        break;
+      case 'n':
+        sb.append('\n');
+        break;
+      case 'r':
+        sb.append('\r');
+        break;
+      case 't':
+        sb.append('\t');
+        break;
+      case 'u':
+        sb.append(
+            (char) Integer.parseInt(new String(buf, i + 1, 4, UTF8), 16));
+        i += 4;
+        break;
+      default:
+        // '"', '\\', '/'
+        sb.append((char) b);
+        break;
+      }
+      s = i + 1;
+    }
+    if (end > s) {
+      sb.append(new String(buf, s, end - s, UTF8));
+    }
+  }
+
+  /** Returns the position of the first non-whitespace byte at or after
+   * {@code i}. */
+  private int ws(int i) {
+    while (isWhitespace(at(i))) {
+      ++i;
+    }
+    return i;
+  }
+
+  private byte at(int i) {
+    if (i >= limit) {
+      throw NEED_MORE;
+    }
+    return buf[i];
+  }
+
+  private void expect(int i, char c) throws IOException {
+    if (buf[i] != c) {
+      throw new IOException(
+          "Expected '" + c + "' but found '" + (char) buf[i]
+          + "' in JSON search results");
+    }
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+  }
+
+  /** Signals that the buffer needs more input. */
+  private static class NeedMore extends RuntimeException {
+    public Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+}
+
+// End JsonRowsParser.java
@@ -0,0 +1,498 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.util;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HTTP client that multiplexes many concurrent requests over a small number
+ * of selector threads, using non-blocking I/O.
+ *
+ * <p>Unlike {@link HttpUtils#executeMethod}, a request does not occupy a
+ * thread while it is waiting for the server; this matters for long-running
+ * exports, which may not produce their first result for many minutes.
+ * Selector threads read response bytes into a bounded per-request buffer;
+ * the consumer reads from the buffer via an {@link InputStream}. When a
+ * buffer is full, the selector stops reading that connection until the
+ * consumer catches up, so a slow consumer pushes back on the server rather
+ * than consuming unbounded memory.</p>
+ *
+ * <p>Supports "http" URLs only, and rejects others; there is no TLS engine
+ * here. Requests to "https" URLs go through {@link HttpConnectionPool},
+ * which verifies the server's certificate and host name. Each request uses
+ * its own connection.</p>
+ */
+public class NioHttpClient {
+  private static final Logger LOGGER =
+      StringUtils.getClassTracer(NioHttpClient.class);
+
+  private final Worker[] workers;
+  private final int maxBufferedBytes;
+  private final AtomicInteger next = new AtomicInteger();
+  private final AtomicInteger openCount = new AtomicInteger();
+
+  /**
+   * Creates an NioHttpClient and starts its selector threads.
+   *
+   * @param threadCount Number of selector threads
+   * @param maxBufferedBytes Maximum number of bytes to buffer for each
+   *     request before pausing reading
+   */
+  public NioHttpClient(int threadCount, int maxBufferedBytes)
+      throws IOException {
+    if (threadCount <= 0) {
+      throw new IllegalArgumentException("threadCount must be positive");
+    }
+    this.maxBufferedBytes = maxBufferedBytes;
+    this.workers = new Worker[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      workers[i] = new Worker("splunk-nio-" + i);
+      workers[i].start();
+    }
+  }
+
+  /** Returns the number of requests whose connection is open. */
+  public int getOpenCount() {
+    return openCount.get();
+  }
+
+  /**
+   * Sends an HTTP request, and returns a stream that reads the body of the
+   * response.
+   *
+   * <p>Does not wait for the response; the first read from the stream waits
+   * for the status line and headers, and throws if the server returned an
+   * error.</p>
+   */
+  public InputStream execute(
+      String method, String url,
+      CharSequence data, Map<String, String> headers,
+      int ctimeout, int rtimeout) throws IOException {
+    return execute(method, url, data, headers, ctimeout, rtimeout, null);
+  }
+
+  /**
+   * Sends an HTTP request, and returns a stream that reads the body of the
+   * response, decompressing it if necessary.
+   *
+   * @param stats Statistics to which to add the size of the response body,
+   *     or null
+   */
+  public InputStream execute(
+      final String method, final String url,
+      CharSequence data, Map<String, String> headers,
+      int ctimeout, int rtimeout, final TransferStats stats)
+      throws IOException {
+    final URL u = new URL(url);
+    if (!u.getProtocol().equals("http")) {
+      throw new IOException("Protocol not supported: " + url);
+    }
+    final Map<String, String> headers2 = new LinkedHashMap<String, String>();
+    if (headers != null) {
+      headers2.putAll(headers);
+    }
+    headers2.put("Connection", "close");
+    final byte[] request =
+        HttpUtils.requestBytes(
+            method, u,
+            data == null ? null : data.toString().getBytes("UTF-8"),
+            headers2);
+    // Resolve the host on the caller's thread; selector threads must not
+    // block.
+    final InetSocketAddress address =
+        new InetSocketAddress(u.getHost(), HttpConnectionPool.port(u));
+    if (address.isUnresolved()) {
+      throw new UnknownHostException(u.getHost());
+    }
+    final Exchange exchange =
+        new Exchange(address, request, ctimeout, rtimeout);
+    final int i = (next.getAndIncrement() & Integer.MAX_VALUE)
+        % workers.length;
+    workers[i].submit(exchange);
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("url: " + url + ", data: " + String.valueOf(data));
+    }
+    return new InputStream() {
+      private InputStream body;
+
+      private InputStream body() throws IOException {
+        if (body == null) {
+          final String statusLine = HttpUtils.readLine(exchange);
+          if (statusLine == null) {
+            exchange.close();
+            throw new EOFException("Connection closed by server");
+          }
+          try {
+            body = HttpUtils.readResponse(
+                exchange,
+                new HttpResponseInputStream.Callback() {
+                  public void end(boolean reusable) {
+                    exchange.close();
+                  }
+                },
+                method,
+                url,
+                statusLine,
+                stats);
+          } catch (IOException e) {
+            exchange.close();
+            throw e;
+          }
+        }
+        return body;
+      }
+
+      public int read() throws IOException {
+        return body().read();
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException {
+        return body().read(b, off, len);
+      }
+
+      public int available() throws IOException {
+        return body == null ? 0 : body.available();
+      }
+
+      public void close() throws IOException {
+        if (body != null) {
+          body.close();
+        }
+        exchange.close();
+      }
+    };
+  }
+
+  /** Stops the selector threads and closes all connections. */
+  public void close() {
+    for (Worker worker : workers) {
+      worker.shutdown();
+    }
+  }
+
+  /** A selector thread. */
+  private class Worker extends Thread {
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks =
+        new ConcurrentLinkedQueue<Runnable>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(65536);
+    private volatile boolean shutdown;
+
+    Worker(String name) throws IOException {
+      super(name);
+      setDaemon(true);
+      this.selector = Selector.open();
+    }
+
+    /** Runs a task on this worker's thread. */
+    void post(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    void submit(final Exchange exchange) {
+      exchange.worker = this;
+      post(
+          new Runnable() {
+            public void run() {
+              open(exchange);
+            }
+          });
+    }
+
+    void shutdown() {
+      shutdown = true;
+      selector.wakeup();
+    }
+
+    public void run() {
+      try {
+        while (!shutdown) {
+          selector.select(1000);
+          Runnable task;
+          while ((task = tasks.poll()) != null) {
+            task.run();
+          }
+          final Iterator<SelectionKey> iterator =
+              selector.selectedKeys().iterator();
+          while (iterator.hasNext()) {
+            final SelectionKey key = iterator.next();
+            iterator.remove();
+            handle(key);
+          }
+          checkTimeouts();
+        }
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "selector failed", e);
+      } finally {
+        for (SelectionKey key : selector.keys()) {
+          ((Exchange) key.attachment()).fail(
+              new IOException("Client closed"));
+        }
+        try {
+          selector.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+
+    private void open(Exchange exchange) {
+      if (exchange.closed) {
+        return;
+      }
+      try {
+        final SocketChannel channel = SocketChannel.open();
+        exchange.channel = channel;
+        openCount.incrementAndGet();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        final boolean connected = channel.connect(exchange.address);
+        exchange.key =
+            channel.register(
+                selector,
+                connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT,
+                exchange);
+      } catch (IOException e) {
+        exchange.fail(e);
+      }
+    }
+
+    private void handle(SelectionKey key) {
+      final Exchange exchange = (Exchange) key.attachment();
+      try {
+        if (!key.isValid()) {
+          return;
+        }
+        if (key.isConnectable()) {
+          if (exchange.channel.finishConnect()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+          }
+        } else if (key.isWritable()) {
+          exchange.channel.write(exchange.request);
+          if (!exchange.request.hasRemaining()) {
+            exchange.lastRead = System.currentTimeMillis();
+            key.interestOps(SelectionKey.OP_READ);
+          }
+        } else if (key.isReadable()) {
+          readBuffer.clear();
+          final int n = exchange.channel.read(readBuffer);
+          if (n < 0) {
+            exchange.end();
+          } else if (n > 0) {
+            readBuffer.flip();
+            final byte[] bytes = new byte[n];
+            readBuffer.get(bytes);
+            if (!exchange.offer(bytes)) {
+              // Buffer is full. Stop reading until the consumer has
+              // drained it.
+              key.interestOps(0);
+            }
+          }
+        }
+      } catch (IOException e) {
+        exchange.fail(e);
+      } catch (CancelledKeyException e) {
+        // Consumer closed the exchange.
+      }
+    }
+
+    private void checkTimeouts() {
+      final long now = System.currentTimeMillis();
+      for (SelectionKey key : selector.keys()) {
+        final Exchange exchange = (Exchange) key.attachment();
+        if (key.isValid()
+            && (key.interestOps() & SelectionKey.OP_CONNECT) != 0
+            && exchange.connectTimeout > 0
+            && now - exchange.created > exchange.connectTimeout) {
+          exchange.fail(new SocketTimeoutException("connect timed out"));
+        }
+      }
+    }
+  }
+
+  /** A request and its response. As an input stream, returns the raw bytes
+   * of the response, including status line and headers. */
+  private class Exchange extends InputStream {
+    final InetSocketAddress address;
+    final ByteBuffer request;
+    final int connectTimeout;
+    final int readTimeout;
+    final long created = System.currentTimeMillis();
+    Worker worker;
+    SocketChannel channel;
+    SelectionKey key;
+
+    // The following fields are guarded by "this".
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+    private byte[] chunk;
+    private int pos;
+    private int buffered;
+    private boolean paused;
+    private boolean eof;
+    private IOException error;
+    volatile boolean closed;
+    volatile long lastRead;
+
+    Exchange(
+        InetSocketAddress address,
+        byte[] request,
+        int connectTimeout,
+        int readTimeout) {
+      this.address = address;
+      this.request = ByteBuffer.wrap(request);
+      this.connectTimeout = connectTimeout;
+      this.readTimeout = readTimeout;
+    }
+
+    /** Called by the selector thread when bytes arrive. Returns false if the
+     * buffer is full and reading should pause. */
+    synchronized boolean offer(byte[] bytes) {
+      lastRead = System.currentTimeMillis();
+      if (closed) {
+        return true;
+      }
+      chunks.add(bytes);
+      buffered += bytes.length;
+      notifyAll();
+      if (buffered >= maxBufferedBytes) {
+        paused = true;
+        return false;
+      }
+      return true;
+    }
+
+    /** Called by the selector thread at end of stream. */
+    synchronized void end() {
+      eof = true;
+      closeChannel();
+      notifyAll();
+    }
+
+    /** Called by the selector thread if an error occurs. */
+    synchronized void fail(IOException e) {
+      if (error == null) {
+        error = e;
+      }
+      closeChannel();
+      notifyAll();
+    }
+
+    private void closeChannel() {
+      if (key != null) {
+        key.cancel();
+      }
+      if (channel != null && channel.isOpen()) {
+        HttpUtils.close(channel);
+        openCount.decrementAndGet();
+      }
+    }
+
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int n = read(b, 0, 1);
+      return n < 0 ? -1 : b[0] & 0xff;
+    }
+
+    public synchronized int read(byte[] b, int off, int len)
+        throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+      while (chunk == null || pos == chunk.length) {
+        chunk = chunks.poll();
+        pos = 0;
+        if (chunk != null) {
+          break;
+        }
+        if (error != null) {
+          throw error;
+        }
+        if (eof) {
+          return -1;
+        }
+        try {
+          if (readTimeout > 0) {
+            final long wait =
+                readTimeout - (System.currentTimeMillis() - lastRead);
+            if (wait <= 0 && lastRead > 0) {
+              throw new SocketTimeoutException("Read timed out");
+            }
+            wait(wait > 0 ? wait : readTimeout);
+          } else {
+            wait();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+      final int n = Math.min(len, chunk.length - pos);
+      System.arraycopy(chunk, pos, b, off, n);
+      pos += n;
+      buffered -= n;
+      if (paused && buffered <= maxBufferedBytes / 2) {
+        paused = false;
+        worker.post(
+            new Runnable() {
+              public void run() {
+                if (key != null && key.isValid()) {
+                  key.interestOps(SelectionKey.OP_READ);
+                }
+              }
+            });
+      }
+      return n;
+    }
+
+    public synchronized int available() {
+      return buffered;
+    }
+
+    /** Abandons the exchange and closes its connection. */
+    public void close() {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        chunks.clear();
+        chunk = null;
+        notifyAll();
+      }
+      worker.post(
+          new Runnable() {
+            public void run() {
+              synchronized (Exchange.this) {
+                closeChannel();
+              }
+            }
+          });
+    }
+  }
+}
+
+// End NioHttpClient.java
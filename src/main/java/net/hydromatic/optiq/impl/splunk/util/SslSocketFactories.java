@@ -0,0 +1,89 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.util;
+
+import javax.net.ssl.*;
+
+import java.io.*;
+import java.security.*;
+
+/**
+ * Utilities for creating SSL socket factories.
+ *
+ * <p>A factory owns an {@link SSLContext}, and the context owns a cache of
+ * client TLS sessions. Create one factory and share it between connections
+ * (it is thread-safe); then only the first connection to each server pays
+ * for a full handshake, and later ones resume the cached session.</p>
+ */
+public class SslSocketFactories {
+  /** Maximum number of TLS sessions to cache per factory. */
+  public static final int SESSION_CACHE_SIZE = 256;
+
+  /** How long a cached TLS session may be resumed, in seconds. */
+  public static final int SESSION_TIMEOUT_SECONDS = 3600;
+
+  private SslSocketFactories() {
+  }
+
+  /**
+   * Creates an SSL socket factory that uses the given trust managers and
+   * caches sessions for resumption.
+   *
+   * @param trustManagers Trust managers, or null to use the JVM's default
+   *     trust store
+   * @return SSL socket factory
+   */
+  public static SSLSocketFactory create(TrustManager[] trustManagers)
+      throws GeneralSecurityException {
+    final SSLContext context = SSLContext.getInstance("TLS");
+    context.init(null, trustManagers, new SecureRandom());
+    final SSLSessionContext sessionContext =
+        context.getClientSessionContext();
+    if (sessionContext != null) {
+      sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+      sessionContext.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+    }
+    return context.getSocketFactory();
+  }
+
+  /**
+   * Creates an SSL socket factory that trusts the certificates in a trust
+   * store.
+   *
+   * @param path Path of trust store file
+   * @param password Trust store password, or null
+   * @return SSL socket factory
+   */
+  public static SSLSocketFactory fromTrustStore(String path, String password)
+      throws GeneralSecurityException, IOException {
+    final KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+    final InputStream in = new FileInputStream(path);
+    try {
+      keyStore.load(in, password == null ? null : password.toCharArray());
+    } finally {
+      HttpUtils.close(in);
+    }
+    final TrustManagerFactory trustManagerFactory =
+        TrustManagerFactory.getInstance(
+            TrustManagerFactory.getDefaultAlgorithm());
+    trustManagerFactory.init(keyStore);
+    return create(trustManagerFactory.getTrustManagers());
+  }
+}
+
+// End SslSocketFactories.java
@@ -17,6 +17,9 @@
 */
 package net.hydromatic.optiq.impl.splunk.util;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.logging.Logger;
@@ -141,6 +144,37 @@ public class StringUtils {
     System.out.println("=============");
   }
 
+  /** Returns a SHA-256 digest of a list of strings, in hexadecimal, for
+   * use as a cache key that must not hold a secret such as a password. */
+  public static String digest(String... values) {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM supports SHA-256.
+      throw new RuntimeException(e);
+    }
+    for (String s : values) {
+      // Prefix each value with its length, so that values containing the
+      // separator cannot collide.
+      final byte[] bytes;
+      try {
+        bytes = s.getBytes("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        throw new RuntimeException(e);
+      }
+      digest.update(Integer.toString(bytes.length).getBytes());
+      digest.update((byte) 0);
+      digest.update(bytes);
+    }
+    final StringBuilder buf = new StringBuilder();
+    for (byte b : digest.digest()) {
+      buf.append(Character.forDigit((b >> 4) & 0xf, 16))
+          .append(Character.forDigit(b & 0xf, 16));
+    }
+    return buf.toString();
+  }
+
   public static Logger getClassTracer(Class clazz) {
     return Logger.getLogger(clazz.getName());
   }
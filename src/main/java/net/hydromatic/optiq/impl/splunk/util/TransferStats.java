@@ -0,0 +1,73 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes of HTTP response bodies, as sent over the wire (possibly
+ * compressed) and after decompression.
+ *
+ * <p>Statistics may have a parent, for example statistics for one query
+ * whose parent accumulates statistics for all queries on a connection.</p>
+ */
+public class TransferStats {
+  private final TransferStats parent;
+  private final AtomicLong wireByteCount = new AtomicLong();
+  private final AtomicLong byteCount = new AtomicLong();
+
+  /** Creates a TransferStats with no parent. */
+  public TransferStats() {
+    this(null);
+  }
+
+  /** Creates a TransferStats whose counts are also added to a parent. */
+  public TransferStats(TransferStats parent) {
+    this.parent = parent;
+  }
+
+  void addWire(long n) {
+    wireByteCount.addAndGet(n);
+    if (parent != null) {
+      parent.addWire(n);
+    }
+  }
+
+  void add(long n) {
+    byteCount.addAndGet(n);
+    if (parent != null) {
+      parent.add(n);
+    }
+  }
+
+  /** Returns the number of bytes received over the wire. */
+  public long getWireByteCount() {
+    return wireByteCount.get();
+  }
+
+  /** Returns the number of bytes after decompression. */
+  public long getByteCount() {
+    return byteCount.get();
+  }
+
+  public String toString() {
+    return byteCount + " bytes (" + wireByteCount + " on wire)";
+  }
+}
+
+// End TransferStats.java
@@ -21,7 +21,7 @@ import javax.net.ssl.*;
 
 import java.io.*;
 import java.net.*;
-import java.security.SecureRandom;
+import java.security.GeneralSecurityException;
 import java.security.cert.X509Certificate;
 
 /**
@@ -34,16 +34,7 @@ public class TrustAllSslSocketFactory extends SocketFactoryImpl {
   private final SSLSocketFactory sslSocketFactory;
 
   protected TrustAllSslSocketFactory() {
-    TrustManager[] trustAllCerts = {new DummyTrustManager()};
-    SSLSocketFactory factory = null;
-    try {
-      SSLContext sc = SSLContext.getInstance("SSL");
-      sc.init(null, trustAllCerts, new SecureRandom());
-      factory = sc.getSocketFactory();
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
-    this.sslSocketFactory = factory;
+    this.sslSocketFactory = createSSLSocketFactory_();
   }
 
   @Override
@@ -90,24 +81,39 @@ public class TrustAllSslSocketFactory extends SocketFactoryImpl {
   }
 
   /**
-   * Creates an "accept-all" SSLSocketFactory - ssl sockets will accept ANY
+   * Returns an "accept-all" SSLSocketFactory - ssl sockets will accept ANY
    * certificate sent to them - thus effectively just securing the
    * communications. This could be set in a HttpsURLConnection using
    * HttpsURLConnection.setSSLSocketFactory(.....)
    *
+   * <p>The factory is shared, so that TLS sessions are cached and resumed
+   * across connections.</p>
+   *
    * @return SSLSocketFactory
    */
   public static SSLSocketFactory createSSLSocketFactory() {
-    SSLSocketFactory sslsocketfactory = null;
+    return DEFAULT.sslSocketFactory;
+  }
+
+  /**
+   * Creates a new "accept-all" SSLSocketFactory, with its own TLS session
+   * cache, for an owner that does not want to share the JVM-wide one.
+   *
+   * @return SSLSocketFactory
+   */
+  public static SSLSocketFactory newSSLSocketFactory()
+      throws GeneralSecurityException {
     TrustManager[] trustAllCerts = {new DummyTrustManager()};
+    return SslSocketFactories.create(trustAllCerts);
+  }
+
+  private static SSLSocketFactory createSSLSocketFactory_() {
     try {
-      SSLContext sc = SSLContext.getInstance("SSL");
-      sc.init(null, trustAllCerts, new java.security.SecureRandom());
-      sslsocketfactory = sc.getSocketFactory();
-    } catch (Exception e) {
-      e.printStackTrace();
+      return newSSLSocketFactory();
+    } catch (GeneralSecurityException e) {
+      // The JVM has no TLS; nothing can connect to Splunk over HTTPS.
+      throw new RuntimeException("cannot create SSL socket factory", e);
     }
-    return sslsocketfactory;
   }
 
   private static class DummyTrustManager implements X509TrustManager {
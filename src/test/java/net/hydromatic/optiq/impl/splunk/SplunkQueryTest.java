@@ -0,0 +1,89 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk;
+
+import net.hydromatic.linq4j.Enumerable;
+import net.hydromatic.linq4j.Linq4j;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+/**
+ * Unit test of how {@link SplunkQuery} adds the keys of a semi-join to a
+ * search. Does not need a Splunk instance.
+ */
+public class SplunkQueryTest extends TestCase {
+  private static Enumerable<Object> keys(Object... keys) {
+    return Linq4j.asEnumerable(Arrays.asList(keys));
+  }
+
+  /** Tests that keys are read as values or as the first element of arrays,
+   * and that nulls and duplicates are ignored. */
+  public void testReadKeys() {
+    assertEquals(
+        "[12, a b, 17]",
+        SplunkQuery.readKeys(
+            keys(12, null, "a b", new Object[] {17, "x"}, 12), 10)
+            .toString());
+    assertEquals(
+        "[]",
+        SplunkQuery.readKeys(keys(null, new Object[] {null}), 10).toString());
+  }
+
+  /** Tests that more than the maximum number of distinct keys yields null,
+   * so that the search returns every event. */
+  public void testReadKeysTooMany() {
+    final List<Object> list = new ArrayList<Object>();
+    for (int i = 0; i < SplunkSemiJoinRule.MAX_KEYS; i++) {
+      list.add(i);
+    }
+    final Enumerable<Object> exactly = Linq4j.asEnumerable(list);
+    assertEquals(
+        SplunkSemiJoinRule.MAX_KEYS,
+        SplunkQuery.readKeys(exactly, SplunkSemiJoinRule.MAX_KEYS).size());
+    list.add(0);
+    assertEquals(
+        SplunkSemiJoinRule.MAX_KEYS,
+        SplunkQuery.readKeys(
+            Linq4j.asEnumerable(list), SplunkSemiJoinRule.MAX_KEYS).size());
+    list.add(SplunkSemiJoinRule.MAX_KEYS);
+    assertNull(
+        SplunkQuery.readKeys(
+            Linq4j.asEnumerable(list), SplunkSemiJoinRule.MAX_KEYS));
+  }
+
+  /** Tests the condition added to a search, with and without a
+   * pipeline. */
+  public void testKeyFilter() {
+    final Set<String> keySet =
+        new LinkedHashSet<String>(Arrays.asList("12", "a b"));
+    assertEquals(
+        " (product_id=12 OR product_id=\"a b\")",
+        SplunkQuery.keyFilter("search action=buy", "product_id", keySet));
+    assertEquals(
+        " | search (product_id=12 OR product_id=\"a b\")",
+        SplunkQuery.keyFilter(
+            "search action=buy | head 10", "product_id", keySet));
+    assertEquals(
+        " (\"product id\"=12 OR \"product id\"=\"a b\")",
+        SplunkQuery.keyFilter("search", "product id", keySet));
+  }
+}
+
+// End SplunkQueryTest.java
@@ -0,0 +1,240 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.impl.splunk;
+
+import org.eigenbase.reltype.*;
+import org.eigenbase.rex.*;
+import org.eigenbase.sql.SqlOperator;
+import org.eigenbase.sql.fun.SqlStdOperatorTable;
+import org.eigenbase.sql.type.SqlTypeFactoryImpl;
+import org.eigenbase.sql.type.SqlTypeName;
+
+import junit.framework.TestCase;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * Unit test of {@link SplunkFilterTranslator} and
+ * {@link SplunkEvalTranslator}. Unlike
+ * {@link net.hydromatic.optiq.test.SplunkTest}, does not need a Splunk
+ * instance.
+ */
+public class SplunkTranslatorTest extends TestCase {
+  private final RelDataTypeFactory typeFactory = new SqlTypeFactoryImpl();
+  private final RexBuilder rexBuilder = new RexBuilder(typeFactory);
+  private final RelDataType varchar20 = nullable(varchar(20));
+  private final RelDataType decimal10 =
+      nullable(typeFactory.createSqlType(SqlTypeName.DECIMAL, 10, 2));
+  /** Fields "source" and "sourcetype", VARCHAR(20), and "amount",
+   * DECIMAL(10, 2). */
+  private final List<RelDataTypeField> fields =
+      Arrays.<RelDataTypeField>asList(
+          new RelDataTypeFieldImpl("source", 0, varchar20),
+          new RelDataTypeFieldImpl("sourcetype", 1, varchar20),
+          new RelDataTypeFieldImpl("amount", 2, decimal10));
+  private final RexNode source = rexBuilder.makeInputRef(varchar20, 0);
+  private final RexNode sourcetype = rexBuilder.makeInputRef(varchar20, 1);
+  private final RexNode amount = rexBuilder.makeInputRef(decimal10, 2);
+
+  private RelDataType varchar(int precision) {
+    return typeFactory.createSqlType(SqlTypeName.VARCHAR, precision);
+  }
+
+  private RelDataType type(SqlTypeName typeName) {
+    return typeFactory.createSqlType(typeName);
+  }
+
+  private RelDataType nullable(RelDataType type) {
+    return typeFactory.createTypeWithNullability(type, true);
+  }
+
+  private RexNode literal(String s) {
+    return rexBuilder.makeLiteral(s);
+  }
+
+  private RexNode call(SqlOperator op, RexNode... operands) {
+    return rexBuilder.makeCall(op, operands);
+  }
+
+  private String filter(RexNode node) {
+    return new SplunkFilterTranslator(
+        Arrays.asList("source", "sourcetype", "amount")).translate(node);
+  }
+
+  private String eval(RexNode node) {
+    return new SplunkEvalTranslator(fields).translate(node);
+  }
+
+  /** Tests comparisons, in either order, and LIKE. */
+  public void testFilterComparison() {
+    assertEquals(
+        "source=\"a.log\"",
+        filter(
+            call(
+                SqlStdOperatorTable.equalsOperator, source, literal("a.log"))));
+    assertEquals(
+        "source!=x",
+        filter(
+            call(
+                SqlStdOperatorTable.notEqualsOperator, literal("x"), source)));
+    assertEquals(
+        "amount>10",
+        filter(
+            call(
+                SqlStdOperatorTable.lessThanOperator,
+                rexBuilder.makeExactLiteral(BigDecimal.TEN),
+                amount)));
+    // Splunk compares strings that look like numbers numerically.
+    assertNull(
+        filter(
+            call(SqlStdOperatorTable.lessThanOperator, literal("x"), source)));
+    assertEquals(
+        "source=\"a*\"",
+        filter(call(SqlStdOperatorTable.likeOperator, source, literal("a%"))));
+    // Splunk has no single-character wildcard.
+    assertNull(
+        filter(call(SqlStdOperatorTable.likeOperator, source, literal("a_"))));
+  }
+
+  /** Tests that a negated comparison requires its field to be present, as
+   * SQL's NOT of an unknown value is unknown. */
+  public void testFilterNot() {
+    final RexNode eqX =
+        call(SqlStdOperatorTable.equalsOperator, source, literal("x"));
+    final RexNode eqY =
+        call(SqlStdOperatorTable.equalsOperator, sourcetype, literal("y"));
+    assertEquals(
+        "(source=*) AND NOT (source=x)",
+        filter(call(SqlStdOperatorTable.notOperator, eqX)));
+    assertEquals(
+        "source=x",
+        filter(
+            call(
+                SqlStdOperatorTable.notOperator,
+                call(SqlStdOperatorTable.notOperator, eqX))));
+    assertEquals(
+        "((source=*) AND NOT (source=x))"
+        + " AND ((sourcetype=*) AND NOT (sourcetype=y))",
+        filter(
+            call(
+                SqlStdOperatorTable.notOperator,
+                call(SqlStdOperatorTable.orOperator, eqX, eqY))));
+    assertEquals(
+        "NOT source=*",
+        filter(call(SqlStdOperatorTable.isNullOperator, source)));
+    assertEquals(
+        "source=*",
+        filter(
+            call(
+                SqlStdOperatorTable.notOperator,
+                call(SqlStdOperatorTable.isNullOperator, source))));
+  }
+
+  /** Tests that only casts that preserve every value are ignored. */
+  public void testFilterCast() {
+    assertEquals(
+        "source=x",
+        filter(
+            call(
+                SqlStdOperatorTable.equalsOperator,
+                rexBuilder.makeCast(nullable(varchar(30)), source),
+                literal("x"))));
+    assertNull(
+        filter(
+            call(
+                SqlStdOperatorTable.equalsOperator,
+                rexBuilder.makeCast(nullable(varchar(5)), source),
+                literal("x"))));
+    assertNull(
+        filter(
+            call(
+                SqlStdOperatorTable.greaterThanOperator,
+                rexBuilder.makeCast(
+                    nullable(type(SqlTypeName.INTEGER)), source),
+                rexBuilder.makeExactLiteral(BigDecimal.TEN))));
+  }
+
+  /** Tests {@link SplunkFilterTranslator#isValuePreserving}. */
+  public void testValuePreserving() {
+    final RelDataType integer = type(SqlTypeName.INTEGER);
+    final RelDataType bigint = type(SqlTypeName.BIGINT);
+    final RelDataType dbl = type(SqlTypeName.DOUBLE);
+    assertTrue(SplunkFilterTranslator.isValuePreserving(integer, bigint));
+    assertFalse(SplunkFilterTranslator.isValuePreserving(bigint, integer));
+    assertTrue(SplunkFilterTranslator.isValuePreserving(integer, dbl));
+    assertFalse(SplunkFilterTranslator.isValuePreserving(dbl, integer));
+    assertFalse(SplunkFilterTranslator.isValuePreserving(decimal10, integer));
+    assertTrue(
+        SplunkFilterTranslator.isValuePreserving(
+            integer, typeFactory.createSqlType(SqlTypeName.DECIMAL, 12, 2)));
+    assertFalse(
+        SplunkFilterTranslator.isValuePreserving(integer, decimal10));
+    assertTrue(
+        SplunkFilterTranslator.isValuePreserving(varchar(20), varchar20));
+    assertFalse(
+        SplunkFilterTranslator.isValuePreserving(varchar20, varchar(10)));
+  }
+
+  /** Tests expressions in "| eval" and "| where". */
+  public void testEval() {
+    assertEquals(
+        "upper(source)",
+        eval(call(SqlStdOperatorTable.upperFunc, source)));
+    assertEquals(
+        "(source . \"x\")",
+        eval(call(SqlStdOperatorTable.concatOperator, source, literal("x"))));
+    assertEquals(
+        "(source == \"x\")",
+        eval(call(SqlStdOperatorTable.equalsOperator, source, literal("x"))));
+    // Splunk compares strings that look like numbers numerically.
+    assertNull(
+        eval(call(SqlStdOperatorTable.lessThanOperator, source, sourcetype)));
+  }
+
+  /** Tests that a cast is ignored only if it widens, and that a narrowing
+   * numeric cast, or a cast of a string to an exact number, is not
+   * translated. */
+  public void testEvalCast() {
+    assertEquals(
+        "amount",
+        eval(
+            rexBuilder.makeCast(
+                nullable(typeFactory.createSqlType(SqlTypeName.DECIMAL, 12, 2)),
+                amount)));
+    assertEquals(
+        "amount",
+        eval(rexBuilder.makeCast(nullable(type(SqlTypeName.DOUBLE)), amount)));
+    assertNull(
+        eval(
+            rexBuilder.makeCast(nullable(type(SqlTypeName.INTEGER)), amount)));
+    assertEquals(
+        "substr(source, 1, 3)",
+        eval(rexBuilder.makeCast(nullable(varchar(3)), source)));
+    assertEquals(
+        "tonumber(source)",
+        eval(
+            rexBuilder.makeCast(nullable(type(SqlTypeName.DOUBLE)), source)));
+    // SQL would truncate "3.7", or fail cleanly; tonumber would give 3.7.
+    assertNull(
+        eval(
+            rexBuilder.makeCast(nullable(type(SqlTypeName.INTEGER)), source)));
+  }
+}
+
+// End SplunkTranslatorTest.java
@@ -0,0 +1,146 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.test;
+
+import net.hydromatic.optiq.impl.splunk.util.CsvParser;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Micro-benchmark that measures how fast search results in CSV format can be
+ * parsed.
+ *
+ * <p>Compares opencsv's {@code CSVReader}, which decodes every field of every
+ * row to a string, with {@link CsvParser}, which works on bytes and decodes
+ * only the fields that are asked for. Each row has 20 fields, of which the
+ * query wants 3, similar to a Splunk export with many default fields.</p>
+ *
+ * <p>Usage: <code>java SplunkCsvBenchmark [rows [iterations]]</code>;
+ * default is 200000 5.</p>
+ */
+public class SplunkCsvBenchmark {
+  private static final int FIELD_COUNT = 20;
+  private static final int[] WANTED = {0, 7, 13};
+
+  private SplunkCsvBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    final int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    final byte[] csv = generate(rows);
+    System.out.println(
+        "rows: " + rows + ", bytes: " + csv.length + ", fields: "
+        + FIELD_COUNT + ", wanted: " + WANTED.length);
+
+    // Warm up.
+    run(csv, false);
+    run(csv, true);
+
+    for (int i = 0; i < iterations; i++) {
+      System.out.println("opencsv:   " + run(csv, false));
+      System.out.println("CsvParser: " + run(csv, true));
+    }
+  }
+
+  private static byte[] generate(int rows) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final Writer w = new OutputStreamWriter(bytes, "UTF-8");
+    for (int j = 0; j < FIELD_COUNT; j++) {
+      w.write(j > 0 ? ",f" + j : "f" + j);
+    }
+    w.write("\n");
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < FIELD_COUNT; j++) {
+        if (j > 0) {
+          w.write(',');
+        }
+        switch (j % 4) {
+        case 0:
+          w.write(Integer.toString(i * 31 + j));
+          break;
+        case 1:
+          w.write("host-" + (i % 97) + ".example.com");
+          break;
+        case 2:
+          w.write("\"GET /a,b?q=" + i + " HTTP/1.1\"");
+          break;
+        default:
+          w.write("\"said \"\"ok\"\" " + j + "\"");
+          break;
+        }
+      }
+      w.write("\n");
+    }
+    w.close();
+    return bytes.toByteArray();
+  }
+
+  private static String run(byte[] csv, boolean parser) throws IOException {
+    final long gcCount0 = gcCount();
+    final long start = System.nanoTime();
+    int rows = 0;
+    long hash = 0;
+    if (parser) {
+      final CsvParser p = new CsvParser(new ByteArrayInputStream(csv));
+      p.next(); // header
+      while (p.next() >= 0) {
+        for (int i : WANTED) {
+          hash += p.get(i).hashCode();
+        }
+        ++rows;
+      }
+      p.close();
+    } else {
+      final CSVReader r =
+          new CSVReader(new InputStreamReader(new ByteArrayInputStream(csv)));
+      r.readNext(); // header
+      String[] line;
+      while ((line = r.readNext()) != null) {
+        for (int i : WANTED) {
+          hash += line[i].hashCode();
+        }
+        ++rows;
+      }
+      r.close();
+    }
+    final long nanos = System.nanoTime() - start;
+    return String.format(
+        "%d rows in %d ms, %.0f rows/s, %d GCs (hash %d)",
+        rows,
+        nanos / 1000000,
+        rows * 1e9 / nanos,
+        gcCount() - gcCount0,
+        hash);
+  }
+
+  private static long gcCount() {
+    long n = 0;
+    for (GarbageCollectorMXBean bean
+        : ManagementFactory.getGarbageCollectorMXBeans()) {
+      n += Math.max(bean.getCollectionCount(), 0);
+    }
+    return n;
+  }
+}
+
+// End SplunkCsvBenchmark.java
@@ -0,0 +1,173 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.test;
+
+import net.hydromatic.optiq.impl.splunk.search.SearchResultDecoder;
+import net.hydromatic.optiq.impl.splunk.search.SearchResultDecoders;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Micro-benchmark that compares the decoders for Splunk's "csv" and
+ * "json_rows" output modes on the same synthetic search results.
+ *
+ * <p>Each row has 20 fields, of which the query wants 3; some values are
+ * quoted or escaped, and one field has multiple values. Reports the size
+ * of each encoding as well as the decoding rate, because on a slow network
+ * the smaller encoding may win even if it is slower to decode. Use the
+ * result to choose the "outputMode" connection property.</p>
+ *
+ * <p>Usage: <code>java SplunkDecoderBenchmark [rows [iterations]]</code>;
+ * default is 200000 5.</p>
+ */
+public class SplunkDecoderBenchmark {
+  private static final int FIELD_COUNT = 20;
+  private static final int[] WANTED = {0, 7, 13};
+
+  private SplunkDecoderBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    final int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    final byte[] csv = generate(rows, false);
+    final byte[] json = generate(rows, true);
+    System.out.println(
+        "rows: " + rows + ", csv bytes: " + csv.length + ", json_rows bytes: "
+        + json.length);
+
+    // Warm up.
+    run(SearchResultDecoders.CSV, csv);
+    run(SearchResultDecoders.JSON_ROWS, json);
+
+    for (int i = 0; i < iterations; i++) {
+      System.out.println("csv:       " + run(SearchResultDecoders.CSV, csv));
+      System.out.println(
+          "json_rows: " + run(SearchResultDecoders.JSON_ROWS, json));
+    }
+  }
+
+  /** Generates results in CSV or json_rows format. Splunk sends json_rows
+   * in batches, each with its own "fields" member. */
+  private static byte[] generate(int rows, boolean json) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final Writer w = new OutputStreamWriter(bytes, "UTF-8");
+    final StringBuilder header = new StringBuilder();
+    for (int j = 0; j < FIELD_COUNT; j++) {
+      if (j > 0) {
+        header.append(',');
+      }
+      header.append(json ? "\"f" + j + "\"" : "f" + j);
+    }
+    if (!json) {
+      w.write(header + "\n");
+    }
+    for (int i = 0; i < rows; i++) {
+      if (json) {
+        if (i % 1000 == 0) {
+          w.write(
+              i == 0
+                  ? "{\"preview\":false,\"fields\":["
+                  : "]}\n{\"fields\":[");
+          w.write(header + "],\"rows\":[\n");
+        } else {
+          w.write(",\n");
+        }
+        w.write('[');
+      }
+      for (int j = 0; j < FIELD_COUNT; j++) {
+        if (j > 0) {
+          w.write(',');
+        }
+        switch (j % 4) {
+        case 0:
+          final String s = Integer.toString(i * 31 + j);
+          w.write(json ? "\"" + s + "\"" : s);
+          break;
+        case 1:
+          w.write(json ? "\"host-" + (i % 97) + ".example.com\""
+              : "host-" + (i % 97) + ".example.com");
+          break;
+        case 2:
+          w.write(json ? "\"GET /a,b?q=" + i + " HTTP/1.1\""
+              : "\"GET /a,b?q=" + i + " HTTP/1.1\"");
+          break;
+        default:
+          if (j == 7) {
+            // Multi-value field.
+            w.write(json ? "[\"v1\",\"v2\"]" : "\"v1\nv2\"");
+          } else {
+            w.write(json ? "\"said \\\"ok\\\" " + j + "\""
+                : "\"said \"\"ok\"\" " + j + "\"");
+          }
+          break;
+        }
+      }
+      if (json) {
+        w.write(']');
+      } else {
+        w.write('\n');
+      }
+    }
+    if (json && rows > 0) {
+      w.write("]}\n");
+    }
+    w.close();
+    return bytes.toByteArray();
+  }
+
+  private static String run(SearchResultDecoder decoder, byte[] bytes)
+      throws IOException {
+    final long gcCount0 = gcCount();
+    final long start = System.nanoTime();
+    int rows = 0;
+    long hash = 0;
+    final SearchResultDecoder.Cursor cursor =
+        decoder.open(new ByteArrayInputStream(bytes));
+    cursor.getFieldNames();
+    while (cursor.next()) {
+      for (int i : WANTED) {
+        hash += cursor.get(i).hashCode();
+      }
+      ++rows;
+    }
+    cursor.close();
+    final long nanos = System.nanoTime() - start;
+    return String.format(
+        "%d rows in %d ms, %.0f rows/s, %.1f MB/s, %d GCs (hash %d)",
+        rows,
+        nanos / 1000000,
+        rows * 1e9 / nanos,
+        bytes.length * 1e3 / nanos,
+        gcCount() - gcCount0,
+        hash);
+  }
+
+  private static long gcCount() {
+    long n = 0;
+    for (GarbageCollectorMXBean bean
+        : ManagementFactory.getGarbageCollectorMXBeans()) {
+      n += Math.max(bean.getCollectionCount(), 0);
+    }
+    return n;
+  }
+}
+
+// End SplunkDecoderBenchmark.java
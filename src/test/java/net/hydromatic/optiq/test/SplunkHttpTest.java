@@ -0,0 +1,1826 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.test;
+
+import net.hydromatic.linq4j.Enumerator;
+import net.hydromatic.optiq.impl.splunk.search.EventStatistics;
+import net.hydromatic.optiq.impl.splunk.search.PagedEnumerator;
+import net.hydromatic.optiq.impl.splunk.search.PartialStats;
+import net.hydromatic.optiq.impl.splunk.search.PrefetchEnumerator;
+import net.hydromatic.optiq.impl.splunk.search.SearchHead;
+import net.hydromatic.optiq.impl.splunk.search.SearchResultDecoder;
+import net.hydromatic.optiq.impl.splunk.search.SearchResultDecoders;
+import net.hydromatic.optiq.impl.splunk.search.SearchScheduler;
+import net.hydromatic.optiq.impl.splunk.search.SessionKeyCache;
+import net.hydromatic.optiq.impl.splunk.search.SlicedEnumerator;
+import net.hydromatic.optiq.impl.splunk.search.SplunkConnection;
+import net.hydromatic.optiq.impl.splunk.util.CsvParser;
+import net.hydromatic.optiq.impl.splunk.util.HttpConnectionPool;
+import net.hydromatic.optiq.impl.splunk.util.HttpUtils;
+import net.hydromatic.optiq.impl.splunk.util.JsonRowsParser;
+import net.hydromatic.optiq.impl.splunk.util.NioHttpClient;
+import net.hydromatic.optiq.impl.splunk.util.TransferStats;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Unit test of the HTTP layer of the Splunk adapter, against a stub HTTP
+ * server. Unlike {@link SplunkTest}, does not need a Splunk instance.
+ */
+public class SplunkHttpTest extends TestCase {
+  private StubServer server;
+
+  protected void setUp() throws Exception {
+    server = new StubServer();
+  }
+
+  protected void tearDown() throws Exception {
+    server.close();
+  }
+
+  private static String read(InputStream in) throws IOException {
+    final StringBuilder buf = new StringBuilder();
+    final Reader reader = new InputStreamReader(in, "UTF-8");
+    final char[] chars = new char[1024];
+    int n;
+    while ((n = reader.read(chars)) >= 0) {
+      buf.append(chars, 0, n);
+    }
+    reader.close();
+    return buf.toString();
+  }
+
+  /** Tests that a connection is reused once its response has been read. */
+  public void testPoolReusesConnection() throws IOException {
+    final HttpConnectionPool pool = new HttpConnectionPool(4, 30000);
+    for (int i = 0; i < 3; i++) {
+      final InputStream in =
+          HttpUtils.post(pool, server.url("/x"), "a=b", null, 1000, 1000);
+      assertEquals("POST /x a=b", read(in));
+    }
+    assertEquals(1, pool.getMissCount());
+    assertEquals(2, pool.getHitCount());
+    assertEquals(1, server.connectionCount.get());
+    assertEquals(3, server.requestCount.get());
+  }
+
+  /** Tests a response with "chunked" transfer encoding. */
+  public void testChunked() throws IOException {
+    server.chunked = true;
+    final HttpConnectionPool pool = new HttpConnectionPool(4, 30000);
+    for (int i = 0; i < 2; i++) {
+      final InputStream in =
+          HttpUtils.post(pool, server.url("/y"), "c=d", null, 1000, 1000);
+      assertEquals("POST /y c=d", read(in));
+    }
+    assertEquals(1, server.connectionCount.get());
+    assertEquals(1, pool.getHitCount());
+  }
+
+  /** Tests that closing a stream before the end closes the connection. */
+  public void testEarlyClose() throws IOException {
+    final HttpConnectionPool pool = new HttpConnectionPool(4, 30000);
+    InputStream in =
+        HttpUtils.post(pool, server.url("/z"), "e=f", null, 1000, 1000);
+    assertEquals('P', in.read());
+    in.close();
+    assertEquals(0, pool.getIdleCount());
+    in = HttpUtils.post(pool, server.url("/z"), "e=f", null, 1000, 1000);
+    assertEquals("POST /z e=f", read(in));
+    assertEquals(2, pool.getMissCount());
+    assertEquals(1, pool.getIdleCount());
+  }
+
+  /** Tests that an idle connection that the server has closed is detected
+   * before it is reused. */
+  public void testStaleConnection() throws Exception {
+    server.closeAfterResponse = true;
+    final HttpConnectionPool pool = new HttpConnectionPool(4, 30000);
+    read(HttpUtils.post(pool, server.url("/s"), "a=b", null, 1000, 1000));
+    Thread.sleep(50);
+    assertEquals(
+        "POST /s a=b",
+        read(HttpUtils.post(pool, server.url("/s"), "a=b", null, 1000, 1000)));
+    assertEquals(1, pool.getEvictionCount());
+    assertEquals(2, server.requestCount.get());
+  }
+
+  /** Tests that a request that fails on a reused connection after it was
+   * sent is sent again only if its method is idempotent. */
+  public void testNoReplayOfPost() throws Exception {
+    server.dropReused = true;
+    final HttpConnectionPool pool = new HttpConnectionPool(4, 30000);
+    read(HttpUtils.post(pool, server.url("/p"), "a=b", null, 1000, 1000));
+    try {
+      HttpUtils.post(pool, server.url("/p"), "a=b", null, 1000, 1000);
+      fail("expected error");
+    } catch (IOException e) {
+      // ok
+    }
+    assertEquals(2, server.requestCount.get());
+
+    for (int i = 0; i < 2; i++) {
+      assertEquals(
+          "GET /g ",
+          read(
+              HttpUtils.executeMethod(
+                  pool, "GET", server.url("/g"), null, null, 1000, 1000)));
+    }
+    // The second GET was sent on a reused connection, dropped, and sent
+    // again on a new one.
+    assertEquals(5, server.requestCount.get());
+  }
+
+  /** Tests that idle connections are evicted. */
+  public void testIdleEviction() throws Exception {
+    final HttpConnectionPool pool = new HttpConnectionPool(4, 10);
+    read(HttpUtils.post(pool, server.url("/a"), "g=h", null, 1000, 1000));
+    assertEquals(1, pool.getIdleCount());
+    Thread.sleep(50);
+    pool.evictIdle();
+    assertEquals(0, pool.getIdleCount());
+    assertEquals(1, pool.getEvictionCount());
+    read(HttpUtils.post(pool, server.url("/a"), "g=h", null, 1000, 1000));
+    assertEquals(2, pool.getMissCount());
+  }
+
+  /** Tests that a caller waits, then times out, when all connections to a
+   * host are in use. */
+  public void testMaxPerHost() throws IOException {
+    final HttpConnectionPool pool = new HttpConnectionPool(1, 30000);
+    final InputStream in =
+        HttpUtils.post(pool, server.url("/b"), "i=j", null, 1000, 1000);
+    try {
+      HttpUtils.post(pool, server.url("/b"), "i=j", null, 100, 1000);
+      fail("expected timeout");
+    } catch (SocketTimeoutException e) {
+      // ok
+    }
+    read(in);
+    read(HttpUtils.post(pool, server.url("/b"), "i=j", null, 100, 1000));
+    assertEquals(1, pool.getHitCount());
+  }
+
+  /** Tests that an error status becomes an exception. */
+  public void testErrorStatus() throws IOException {
+    server.status = 404;
+    final HttpConnectionPool pool = new HttpConnectionPool(4, 30000);
+    try {
+      HttpUtils.post(pool, server.url("/c"), "k=l", null, 1000, 1000);
+      fail("expected error");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("404"));
+    }
+  }
+
+  /** Tests many concurrent requests multiplexed over one selector
+   * thread. */
+  public void testNioConcurrent() throws IOException {
+    final NioHttpClient client = new NioHttpClient(1, 65536);
+    try {
+      final List<InputStream> streams = new ArrayList<InputStream>();
+      for (int i = 0; i < 50; i++) {
+        streams.add(
+            client.execute(
+                "POST", server.url("/n" + i), "m=" + i, null, 1000, 5000));
+      }
+      for (int i = streams.size() - 1; i >= 0; i--) {
+        assertEquals("POST /n" + i + " m=" + i, read(streams.get(i)));
+      }
+      assertEquals(50, server.requestCount.get());
+    } finally {
+      client.close();
+    }
+  }
+
+  /** Tests that a consumer that reads slowly does not cause the client to
+   * buffer the whole response. */
+  public void testNioBackPressure() throws Exception {
+    final StringBuilder buf = new StringBuilder();
+    for (int i = 0; buf.length() < 1000000; i++) {
+      buf.append(i).append('\n');
+    }
+    final String content = buf.toString();
+    server.close();
+    server = new StubServer() {
+      void respond(
+          String method,
+          String path,
+          Map<String, String> headers,
+          String body,
+          OutputStream out) throws IOException {
+        write(out, 200, content.getBytes("UTF-8"));
+      }
+    };
+    final NioHttpClient client = new NioHttpClient(1, 16384);
+    try {
+      final InputStream in =
+          client.execute("GET", server.url("/big"), null, null, 1000, 5000);
+      assertEquals('0', in.read());
+      Thread.sleep(200);
+      // Reading has paused, so at most a buffer's worth (plus one read) is
+      // held on the client.
+      assertTrue(in.available() < 16384 + 65536);
+      assertEquals(content.substring(1), read(in));
+      // The connection is closed asynchronously, by the selector thread.
+      Thread.sleep(100);
+      assertEquals(0, client.getOpenCount());
+    } finally {
+      client.close();
+    }
+  }
+
+  /** Tests that closing an NIO stream early closes its connection. */
+  public void testNioEarlyClose() throws Exception {
+    final NioHttpClient client = new NioHttpClient(1, 65536);
+    try {
+      final InputStream in =
+          client.execute("POST", server.url("/e"), "o=p", null, 1000, 5000);
+      assertEquals('P', in.read());
+      in.close();
+      Thread.sleep(100);
+      assertEquals(0, client.getOpenCount());
+    } finally {
+      client.close();
+    }
+  }
+
+  /** Tests a {@link SplunkConnection} that runs its export over the NIO
+   * transport. */
+  public void testSplunkConnectionNio() throws Exception {
+    server.close();
+    server = new SplunkStubServer("source,sourcetype\na,b\nc,d\n");
+    final NioHttpClient client = new NioHttpClient(1, 65536);
+    try {
+      final SplunkConnection connection =
+          new SplunkConnection(server.url(""), "admin", "changeme");
+      connection.setNioClient(client);
+      final Enumerator enumerator =
+          connection.getSearchResultIterator(
+              "search", new HashMap<String, String>(),
+              Arrays.asList("sourcetype", "source"));
+      assertTrue(enumerator.moveNext());
+      assertEquals("[b, a]", Arrays.toString((Object[]) enumerator.current()));
+      assertTrue(enumerator.moveNext());
+      assertEquals("[d, c]", Arrays.toString((Object[]) enumerator.current()));
+      assertFalse(enumerator.moveNext());
+      enumerator.close();
+    } finally {
+      client.close();
+    }
+  }
+
+  /** Tests that the NIO transport, which does not speak TLS, is refused for
+   * an https search head rather than silently not used. */
+  public void testNioRejectsHttps() throws Exception {
+    final NioHttpClient client = new NioHttpClient(1, 65536);
+    try {
+      final SplunkConnection connection =
+          new SplunkConnection(
+              new URL("https://localhost:8089"), "admin", "changeme");
+      try {
+        connection.setNioClient(client);
+        fail("expected error");
+      } catch (IllegalArgumentException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("https"));
+      }
+      connection.setNioClient(null);
+    } finally {
+      client.close();
+    }
+  }
+
+  /** Tests that a gzip-compressed response is decompressed, and that bytes
+   * are counted before and after decompression. */
+  public void testGzip() throws Exception {
+    final StringBuilder buf = new StringBuilder("source,sourcetype\n");
+    for (int i = 0; i < 1000; i++) {
+      buf.append("/var/log/messages,syslog\n");
+    }
+    final String csv = buf.toString();
+    server.close();
+    server = new SplunkStubServer(csv);
+    final Map<String, String> headers = new HashMap<String, String>();
+    headers.put("Accept-Encoding", "gzip");
+    for (boolean chunked : new boolean[] {false, true}) {
+      server.chunked = chunked;
+      final HttpConnectionPool pool = new HttpConnectionPool(4, 30000);
+      for (int i = 0; i < 2; i++) {
+        final TransferStats stats = new TransferStats();
+        final InputStream in =
+            HttpUtils.executeMethod(
+                pool, "POST", server.url("/services/search/jobs/export"),
+                "", headers, 1000, 1000, stats);
+        assertEquals(csv, read(in));
+        assertEquals(csv.length(), stats.getByteCount());
+        assertTrue(stats.getWireByteCount() < csv.length() / 10);
+      }
+      // Connection was reused, so the compressed body was read to the end.
+      assertEquals(1, pool.getHitCount());
+    }
+
+    final NioHttpClient client = new NioHttpClient(1, 65536);
+    try {
+      final TransferStats stats = new TransferStats();
+      final InputStream in =
+          client.execute(
+              "POST", server.url("/services/search/jobs/export"), "",
+              headers, 1000, 1000, stats);
+      assertEquals(csv, read(in));
+      assertEquals(csv.length(), stats.getByteCount());
+    } finally {
+      client.close();
+    }
+
+    final SplunkConnection connection =
+        new SplunkConnection(server.url(""), "admin", "changeme");
+    connection.setCompress(true);
+    final Enumerator enumerator =
+        connection.getSearchResultIterator(
+            "search", new HashMap<String, String>(),
+            Arrays.asList("source", "sourcetype"));
+    int n = 0;
+    while (enumerator.moveNext()) {
+      ++n;
+    }
+    enumerator.close();
+    assertEquals(1000, n);
+    final TransferStats stats = connection.getTransferStats();
+    assertEquals(csv.length(), stats.getByteCount());
+    assertTrue(stats.getWireByteCount() < csv.length() / 10);
+  }
+
+  /** Tests that connections to the same server as the same user share a
+   * session key. */
+  public void testSessionKeyCache() throws Exception {
+    server.close();
+    final SplunkStubServer splunkServer = new SplunkStubServer("a\n1\n");
+    server = splunkServer;
+    final SessionKeyCache cache = new SessionKeyCache();
+    final HttpConnectionPool pool = HttpConnectionPool.getDefault();
+    final URL url = new URL(server.url(""));
+    for (int i = 0; i < 3; i++) {
+      new SplunkConnection(url, "admin", "changeme", pool, cache);
+    }
+    // A different password does not share the key.
+    new SplunkConnection(url, "admin", "other", pool, cache);
+    assertEquals(2, splunkServer.loginCount.get());
+    assertEquals(2, cache.getLoginCount());
+    assertEquals(0.5d, cache.getReuseRatio(), 0.001d);
+    assertTrue(cache.getAverageLoginMillis() > 0d);
+  }
+
+  /** Tests that when Splunk rejects an expired session key, the connection
+   * logs in again and retries the search. */
+  public void testReauthenticate() throws Exception {
+    server.close();
+    final SplunkStubServer splunkServer =
+        new SplunkStubServer("source\nx\ny\n");
+    splunkServer.requireAuth = true;
+    server = splunkServer;
+    final NioHttpClient client = new NioHttpClient(1, 65536);
+    try {
+      final SplunkConnection connection =
+          new SplunkConnection(
+              new URL(server.url("")), "admin", "changeme",
+              HttpConnectionPool.getDefault(), new SessionKeyCache());
+      for (boolean nio : new boolean[] {false, true}) {
+        connection.setNioClient(nio ? client : null);
+        // Expire the session key.
+        splunkServer.sessionKey = null;
+        final Enumerator enumerator =
+            connection.getSearchResultIterator(
+                "search", new HashMap<String, String>(),
+                Arrays.asList("source"));
+        assertTrue(enumerator.moveNext());
+        assertEquals("x", enumerator.current());
+        assertTrue(enumerator.moveNext());
+        assertEquals("y", enumerator.current());
+        assertFalse(enumerator.moveNext());
+        enumerator.close();
+      }
+      assertEquals(3, splunkServer.loginCount.get());
+    } finally {
+      client.close();
+    }
+  }
+
+  /** Tests that a connection to several search heads skips a head that is
+   * down, logs in to each head, and sends a search to the head that is
+   * running fewer searches. */
+  public void testSearchHeads() throws Exception {
+    final StubServer dead = new StubServer();
+    final URL deadUrl = new URL(dead.url(""));
+    dead.close();
+    final SplunkStubServer server1 = new SplunkStubServer("source\nx\n");
+    final SplunkStubServer server2 = new SplunkStubServer("source\ny\n");
+    try {
+      final SplunkConnection connection =
+          new SplunkConnection(
+              Arrays.asList(
+                  deadUrl, new URL(server1.url("")), new URL(server2.url(""))),
+              "admin", "changeme", HttpConnectionPool.getDefault(),
+              new SessionKeyCache());
+      final List<SearchHead> heads = connection.getSearchHeads();
+      assertEquals(3, heads.size());
+
+      // The first search fails over from the dead head; while it is open,
+      // the second search goes to the other live head.
+      final Set<Object> values = new HashSet<Object>();
+      final List<Enumerator> enumerators = new ArrayList<Enumerator>();
+      for (int i = 0; i < 2; i++) {
+        final Enumerator enumerator =
+            connection.getSearchResultIterator(
+                "search", new HashMap<String, String>(),
+                Arrays.asList("source"));
+        assertTrue(enumerator.moveNext());
+        values.add(enumerator.current());
+        enumerators.add(enumerator);
+      }
+      assertEquals(new HashSet<Object>(Arrays.asList("x", "y")), values);
+      assertFalse(heads.get(0).isUp());
+      assertEquals(1, heads.get(1).getActiveCount());
+      assertEquals(1, heads.get(2).getActiveCount());
+      for (Enumerator enumerator : enumerators) {
+        enumerator.close();
+      }
+      assertEquals(0, heads.get(1).getActiveCount());
+      assertEquals(0, heads.get(2).getActiveCount());
+      assertTrue(heads.get(1).getLatencyMillis() > 0d);
+      assertEquals(1, server1.loginCount.get());
+      assertEquals(1, server2.loginCount.get());
+    } finally {
+      server1.close();
+      server2.close();
+    }
+  }
+
+  /** Tests that {@link SearchScheduler} limits the searches per connection
+   * and per search head, starts interactive searches before batch
+   * searches, and fails a search that waits too long. */
+  public void testScheduler() throws Exception {
+    final SplunkStubServer server = new SplunkStubServer("source\nx\n");
+    try {
+      final URL url = new URL(server.url(""));
+      final SessionKeyCache cache = new SessionKeyCache();
+      final SearchScheduler scheduler = new SearchScheduler(1);
+      final SplunkConnection interactive =
+          new SplunkConnection(
+              url, "admin", "changeme", HttpConnectionPool.getDefault(),
+              cache);
+      interactive.setScheduler(scheduler);
+      final SplunkConnection batch =
+          new SplunkConnection(
+              url, "admin", "changeme", HttpConnectionPool.getDefault(),
+              cache);
+      batch.setScheduler(scheduler);
+      batch.setPriority(SearchScheduler.Priority.BATCH);
+
+      // The first search takes the head's only place; a batch search, then
+      // an interactive search, wait for it.
+      final Enumerator first = search(interactive);
+      final List<String> order =
+          Collections.synchronizedList(new ArrayList<String>());
+      final List<Thread> threads = new ArrayList<Thread>();
+      for (final SplunkConnection connection
+          : Arrays.asList(batch, interactive)) {
+        final Thread thread =
+            new Thread(
+                new Runnable() {
+                  public void run() {
+                    final Enumerator enumerator = search(connection);
+                    order.add(connection == batch ? "batch" : "interactive");
+                    enumerator.close();
+                  }
+                });
+        thread.start();
+        threads.add(thread);
+        while (scheduler.getQueueLength() < threads.size()) {
+          Thread.sleep(10);
+        }
+      }
+      first.close();
+      for (Thread thread : threads) {
+        thread.join(5000);
+      }
+      assertEquals(Arrays.asList("interactive", "batch"), order);
+      assertEquals(3, scheduler.getAdmittedCount());
+      assertEquals(0, scheduler.getQueueLength());
+      assertTrue(scheduler.getMaxWaitMillis() > 0d);
+
+      // A connection limited to one search cannot start a second while the
+      // first is open.
+      final SplunkConnection limited =
+          new SplunkConnection(
+              url, "admin", "changeme", HttpConnectionPool.getDefault(),
+              cache);
+      limited.setMaxActiveSearches(1);
+      limited.setQueueTimeout(100);
+      final Enumerator open = search(limited);
+      try {
+        search(limited);
+        fail("expected timeout");
+      } catch (SearchScheduler.QueueTimeoutException e) {
+        // ok
+      }
+      assertEquals(1, limited.getScheduler().getTimeoutCount());
+      open.close();
+      search(limited).close();
+    } finally {
+      server.close();
+    }
+  }
+
+  /** Tests that a search that has returned all of its results gives up its
+   * place before it is closed, so that a connection limited to one search
+   * can run searches one after another. */
+  public void testSchedulerReleasesAtEnd() throws Exception {
+    server.close();
+    server = new SplunkStubServer("source\nx\ny\n");
+    final SplunkConnection connection =
+        new SplunkConnection(server.url(""), "admin", "changeme");
+    connection.setMaxActiveSearches(1);
+    connection.setQueueTimeout(1000);
+    final List<Enumerator> enumerators = new ArrayList<Enumerator>();
+    try {
+      for (int i = 0; i < 2; i++) {
+        final Enumerator enumerator =
+            connection.getSearchResultIterator(
+                "search", null, Arrays.asList("source"));
+        enumerators.add(enumerator);
+        assertEquals(Arrays.<Object>asList("x", "y"), toList(enumerator));
+      }
+    } finally {
+      for (Enumerator enumerator : enumerators) {
+        enumerator.close();
+      }
+    }
+    assertEquals(0, connection.getScheduler().getTimeoutCount());
+  }
+
+  private static Enumerator search(SplunkConnection connection) {
+    final Enumerator enumerator =
+        connection.getSearchResultIterator(
+            "search", new HashMap<String, String>(), Arrays.asList("source"));
+    assertTrue(enumerator.moveNext());
+    return enumerator;
+  }
+
+  /** Tests job mode: creates a job, polls it until it is done, reads its
+   * results in pages, reads them again after a reset, and reuses the job
+   * for an identical search. */
+  public void testJobMode() throws Exception {
+    server.close();
+    final JobStubServer jobServer = new JobStubServer(10);
+    server = jobServer;
+    final SplunkConnection connection =
+        new SplunkConnection(server.url(""), "admin", "changeme");
+    connection.setJobMode(3, 2);
+    final List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < 10; i++) {
+      expected.add("r" + i);
+    }
+    final Enumerator enumerator =
+        connection.getSearchResultIterator(
+            "search a", null, Arrays.asList("source"));
+    assertTrue(enumerator instanceof PagedEnumerator);
+    assertEquals(expected, toList(enumerator));
+    assertEquals(1, jobServer.createCount.get());
+    assertTrue(jobServer.pollCount.get() >= 2);
+    assertEquals(4, jobServer.pageCount.get());
+
+    // Read again, without running the search again.
+    enumerator.reset();
+    assertEquals(expected, toList(enumerator));
+    enumerator.close();
+    assertEquals(8, jobServer.pageCount.get());
+
+    // An identical search reuses the job; another search does not.
+    assertEquals(
+        expected,
+        toList(
+            connection.getSearchResultIterator(
+                "search a", null, Arrays.asList("source"))));
+    assertEquals(1, jobServer.createCount.get());
+    connection.getSearchResultIterator(
+        "search b", null, Arrays.asList("source")).close();
+    assertEquals(2, jobServer.createCount.get());
+  }
+
+  /** Tests that a job that runs longer than the job timeout is cancelled
+   * and fails the search, and that a job whose results are abandoned is
+   * cancelled and not reused. */
+  public void testJobCancel() throws Exception {
+    server.close();
+    final JobStubServer jobServer = new JobStubServer(10);
+    server = jobServer;
+    final SplunkConnection connection =
+        new SplunkConnection(server.url(""), "admin", "changeme");
+    connection.setJobMode(3, 2);
+    connection.setJobTimeout(200);
+    jobServer.slow = true;
+    try {
+      connection.getSearchResultIterator(
+          "search a", null, Arrays.asList("source"));
+      fail("expected timeout");
+    } catch (SplunkConnection.JobTimeoutException e) {
+      // ok
+    }
+    assertEquals(Arrays.asList("job1"), jobServer.cancelled);
+
+    // Closing before the end cancels the job; an identical search then
+    // runs a new job.
+    jobServer.slow = false;
+    Enumerator enumerator =
+        connection.getSearchResultIterator(
+            "search a", null, Arrays.asList("source"));
+    assertTrue(enumerator.moveNext());
+    enumerator.close();
+    enumerator.close();
+    assertEquals(Arrays.asList("job1", "job2"), jobServer.cancelled);
+    enumerator =
+        connection.getSearchResultIterator(
+            "search a", null, Arrays.asList("source"));
+    assertEquals(3, jobServer.createCount.get());
+
+    // Reading every row does not cancel the job.
+    assertEquals(10, toList(enumerator).size());
+    enumerator.close();
+    assertEquals(2, jobServer.cancelled.size());
+  }
+
+  /** Tests that a job that several enumerators are reading is cancelled
+   * only if the last of them abandons it. */
+  public void testJobShared() throws Exception {
+    server.close();
+    final JobStubServer jobServer = new JobStubServer(10);
+    server = jobServer;
+    final SplunkConnection connection =
+        new SplunkConnection(server.url(""), "admin", "changeme");
+    connection.setJobMode(3, 2);
+    final Enumerator first =
+        connection.getSearchResultIterator(
+            "search a", null, Arrays.asList("source"));
+    assertTrue(first.moveNext());
+    final Enumerator second =
+        connection.getSearchResultIterator(
+            "search a", null, Arrays.asList("source"));
+    assertEquals(1, jobServer.createCount.get());
+    first.close();
+    assertEquals(0, jobServer.cancelled.size());
+    assertEquals(10, toList(second).size());
+    second.close();
+    assertEquals(0, jobServer.cancelled.size());
+
+    // Now the only reader abandons the job.
+    final Enumerator third =
+        connection.getSearchResultIterator(
+            "search a", null, Arrays.asList("source"));
+    assertTrue(third.moveNext());
+    third.close();
+    assertEquals(1, jobServer.createCount.get());
+    assertEquals(Arrays.asList("job1"), jobServer.cancelled);
+  }
+
+  /** Tests that a page whose response breaks off is read again, and that
+   * if it breaks off again, the search fails rather than losing rows. */
+  public void testJobPageRetry() throws Exception {
+    server.close();
+    final JobStubServer jobServer = new JobStubServer(10);
+    server = jobServer;
+    final SplunkConnection connection =
+        new SplunkConnection(server.url(""), "admin", "changeme");
+    connection.setJobMode(3, 1);
+    jobServer.brokenPages.set(1);
+    Enumerator enumerator =
+        connection.getSearchResultIterator(
+            "search a", null, Arrays.asList("source"));
+    assertEquals(10, toList(enumerator).size());
+    enumerator.close();
+    assertEquals(5, jobServer.pageCount.get());
+
+    jobServer.brokenPages.set(2);
+    enumerator =
+        connection.getSearchResultIterator(
+            "search a", null, Arrays.asList("source"));
+    try {
+      toList(enumerator);
+      fail("expected error");
+    } catch (RuntimeException e) {
+      // ok
+    } finally {
+      enumerator.close();
+    }
+  }
+
+  private static List<Object> toList(Enumerator enumerator) {
+    final List<Object> list = new ArrayList<Object>();
+    while (enumerator.moveNext()) {
+      list.add(enumerator.current());
+    }
+    return list;
+  }
+
+  /** Tests {@link CsvParser} on quoted fields, doubled quotes, line breaks
+   * within quotes, CRLF, empty fields and a missing final line break. Uses
+   * buffers of several sizes, so that records straddle refills. */
+  public void testCsvParser() throws IOException {
+    final String csv =
+        "a,b,c\r\n"
+        + "1,\"x,y\",\"say \"\"hi\"\"\"\n"
+        + ",,\n"
+        + "\"two\nlines\",\u00e9t\u00e9,\"\"\r\n"
+        + "last,row,\"\"\"\"";
+    final String expected =
+        "[a, b, c]\n"
+        + "[1, x,y, say \"hi\"]\n"
+        + "[, , ]\n"
+        + "[two\nlines, \u00e9t\u00e9, ]\n"
+        + "[last, row, \"]\n";
+    for (int bufferSize : new int[] {1, 2, 3, 7, 65536}) {
+      final CsvParser parser =
+          new CsvParser(
+              new ByteArrayInputStream(csv.getBytes("UTF-8")), bufferSize);
+      final StringBuilder buf = new StringBuilder();
+      String[] line;
+      while ((line = parser.readAll()) != null) {
+        buf.append(Arrays.toString(line)).append("\n");
+      }
+      parser.close();
+      assertEquals("buffer size " + bufferSize, expected, buf.toString());
+    }
+  }
+
+  /** Tests that a CSV export may start with the white space that Splunk
+   * sends to check the connection, so the connection no longer asks Splunk
+   * not to send it. */
+  public void testCsvLeadingWhitespace() throws Exception {
+    server.close();
+    final SplunkStubServer splunkServer =
+        new SplunkStubServer(" \n  \r\n\tsource,sourcetype\na,b\nc,d\n");
+    server = splunkServer;
+    final SplunkConnection connection =
+        new SplunkConnection(server.url(""), "admin", "changeme");
+    final Enumerator enumerator =
+        connection.getSearchResultIterator(
+            "search", new HashMap<String, String>(),
+            Arrays.asList("sourcetype", "source"));
+    assertTrue(enumerator.moveNext());
+    assertEquals("[b, a]", Arrays.toString((Object[]) enumerator.current()));
+    assertTrue(enumerator.moveNext());
+    assertEquals("[d, c]", Arrays.toString((Object[]) enumerator.current()));
+    assertFalse(enumerator.moveNext());
+    enumerator.close();
+    assertTrue(
+        splunkServer.lastExportBody,
+        splunkServer.lastExportBody.contains("output_mode=csv"));
+    assertFalse(
+        splunkServer.lastExportBody,
+        splunkServer.lastExportBody.contains("check_connection"));
+
+    for (int bufferSize : new int[] {1, 2, 65536}) {
+      final CsvParser parser =
+          new CsvParser(
+              new ByteArrayInputStream("  \n \n".getBytes("UTF-8")),
+              bufferSize);
+      assertNull(parser.readAll());
+      parser.close();
+    }
+  }
+
+  /** Tests {@link JsonRowsParser} on field names given as strings and as
+   * objects, multi-value fields, escapes, nulls, numbers, members that are
+   * skipped, and batches with different fields. Uses buffers of several
+   * sizes, so that rows straddle refills. */
+  public void testJsonRowsParser() throws IOException {
+    final String json =
+        "{\"preview\":false,\"init_offset\":0,\"messages\":[{\"type\":"
+        + "\"INFO\",\"text\":\"a ] b\"}],\n"
+        + "\"fields\":[\"host\",{\"name\":\"x\",\"groupby_rank\":\"0\"}],\n"
+        + "\"rows\":[[\"h1\",\"a\\\"b\\n\\u00e9\"],\n"
+        + "[\"h2\",[\"v1\",\"v2\"]], [ null , 12.5 ],[]]}\n"
+        + "{\"fields\":[\"x\"],\"rows\":[[true]]}\n"
+        + "{\"preview\":false}";
+    final String expected =
+        "[host, x] [h1, a\"b\n\u00e9]\n"
+        + "[host, x] [h2, v1\nv2]\n"
+        + "[host, x] [null, 12.5]\n"
+        + "[host, x] []\n"
+        + "[x] [true]\n";
+    for (int bufferSize : new int[] {1, 2, 3, 7, 65536}) {
+      final JsonRowsParser parser =
+          new JsonRowsParser(
+              new ByteArrayInputStream(json.getBytes("UTF-8")), bufferSize);
+      final StringBuilder buf = new StringBuilder();
+      int n;
+      while ((n = parser.next()) >= 0) {
+        final String[] values = new String[n];
+        for (int i = 0; i < n; i++) {
+          values[i] = parser.get(i);
+        }
+        buf.append(Arrays.toString(parser.getFields())).append(' ')
+            .append(Arrays.toString(values)).append("\n");
+      }
+      parser.close();
+      assertEquals("buffer size " + bufferSize, expected, buf.toString());
+    }
+  }
+
+  /** Tests that the "json_rows" decoder keeps the values of a multi-value
+   * field apart, even if they contain line breaks, while {@code get}
+   * joins them with line breaks, as CSV does. */
+  public void testJsonRowsMultiValue() throws IOException {
+    final String json =
+        "{\"fields\":[\"host\",\"x\"],\n"
+        + "\"rows\":[[\"h1\",[\"a\\nb\", \"c\", null]],"
+        + "[\"h2\",\"d\"]]}";
+    final SearchResultDecoder.Cursor cursor =
+        SearchResultDecoders.JSON_ROWS.open(
+            new ByteArrayInputStream(json.getBytes("UTF-8")));
+    assertEquals(
+        Arrays.asList("host", "x"), Arrays.asList(cursor.getFieldNames()));
+    assertTrue(cursor.next());
+    assertNull(cursor.getValues(0));
+    assertEquals(Arrays.asList("a\nb", "c", null), cursor.getValues(1));
+    assertEquals("a\nb\nc\nnull", cursor.get(1));
+    assertTrue(cursor.next());
+    assertNull(cursor.getValues(1));
+    assertEquals("d", cursor.get(1));
+    assertFalse(cursor.next());
+    cursor.close();
+
+    // CSV cannot tell a multi-value field from a value with line breaks.
+    final SearchResultDecoder.Cursor csvCursor =
+        SearchResultDecoders.CSV.open(
+            new ByteArrayInputStream("x\n\"a\nb\"\n".getBytes("UTF-8")));
+    csvCursor.getFieldNames();
+    assertTrue(csvCursor.next());
+    assertNull(csvCursor.getValues(0));
+    assertEquals("a\nb", csvCursor.get(0));
+    csvCursor.close();
+  }
+
+  /** Tests that a connection that uses the "json_rows" decoder asks Splunk
+   * for that format, and maps values by field name across batches. */
+  public void testSplunkConnectionJsonRows() throws Exception {
+    server.close();
+    final SplunkStubServer splunkServer =
+        new SplunkStubServer(
+            "{\"fields\":[\"source\",\"sourcetype\"],"
+            + "\"rows\":[[\"a\",\"b\"],[\"c\",null]]}\n"
+            + "{\"fields\":[\"sourcetype\",\"host\"],"
+            + "\"rows\":[[\"e\",\"f\"]]}\n");
+    server = splunkServer;
+    final SplunkConnection connection =
+        new SplunkConnection(server.url(""), "admin", "changeme");
+    connection.setDecoder(SearchResultDecoders.get("json_rows"));
+    final Enumerator enumerator =
+        connection.getSearchResultIterator(
+            "search", new HashMap<String, String>(),
+            Arrays.asList("sourcetype", "source"));
+    assertTrue(enumerator.moveNext());
+    assertEquals("[b, a]", Arrays.toString((Object[]) enumerator.current()));
+    assertTrue(enumerator.moveNext());
+    assertEquals(
+        "[null, c]", Arrays.toString((Object[]) enumerator.current()));
+    assertTrue(enumerator.moveNext());
+    assertEquals(
+        "[e, null]", Arrays.toString((Object[]) enumerator.current()));
+    assertFalse(enumerator.moveNext());
+    enumerator.close();
+    assertTrue(
+        splunkServer.lastExportBody,
+        splunkServer.lastExportBody.contains("output_mode=json_rows"));
+    assertFalse(
+        splunkServer.lastExportBody,
+        splunkServer.lastExportBody.contains("check_connection"));
+  }
+
+  /** Tests that a connection fetches event statistics once, and caches
+   * them, and that it can fetch them in the background. */
+  public void testEventStatistics() throws Exception {
+    server.close();
+    final SplunkStubServer splunkServer =
+        new SplunkStubServer("count,earliest,latest\n1000,1000.000,1999.999\n");
+    server = splunkServer;
+    final SplunkConnection connection =
+        new SplunkConnection(server.url(""), "admin", "changeme");
+    final EventStatistics statistics = connection.getEventStatistics();
+    assertNotNull(statistics);
+    assertEquals(1000d, statistics.count, 0d);
+    assertEquals(1000000L, statistics.earliest);
+    assertEquals(1999999L, statistics.latest);
+    assertTrue(
+        splunkServer.lastExportBody,
+        splunkServer.lastExportBody.contains("tstats"));
+
+    assertEquals(1d, statistics.fraction(null, null), 0d);
+    assertEquals(0.5d, statistics.fraction(1500000L, null), 0d);
+    assertEquals(0.25d, statistics.fraction(1250000L, 1500000L), 0d);
+    assertEquals(0d, statistics.fraction(3000000L, null), 0d);
+
+    splunkServer.lastExportBody = null;
+    assertSame(statistics, connection.getEventStatistics());
+    assertNull(splunkServer.lastExportBody);
+
+    // The planner's call does not wait; it starts a fetch, whose result a
+    // later call sees.
+    final SplunkConnection connection2 =
+        new SplunkConnection(server.url(""), "admin", "changeme");
+    EventStatistics statistics2 = connection2.getCachedEventStatistics();
+    for (int i = 0; statistics2 == null && i < 100; i++) {
+      Thread.sleep(50);
+      statistics2 = connection2.getCachedEventStatistics();
+    }
+    assertNotNull(statistics2);
+    assertEquals(1000d, statistics2.count, 0d);
+  }
+
+  /** Tests that fetching statistics, here to slice an open time range,
+   * does not lock the connection: while the search runs, the connection's
+   * other methods return at once. */
+  public void testEventStatisticsDoNotLock() throws Exception {
+    server.close();
+    final SplunkStubServer splunkServer =
+        new SplunkStubServer("count,earliest,latest\n1000,1000.000,1999.999\n");
+    server = splunkServer;
+    final CountDownLatch gate = new CountDownLatch(1);
+    splunkServer.exportGate = gate;
+    final SplunkConnection connection =
+        new SplunkConnection(server.url(""), "admin", "changeme");
+    connection.setSlicing(4, 100L);
+    final List<List<Long>> bounds = new ArrayList<List<Long>>();
+    final Thread fetcher =
+        new Thread(
+            new Runnable() {
+              public void run() {
+                bounds.add(connection.sliceBounds(null, null));
+              }
+            });
+    fetcher.start();
+    try {
+      for (int i = 0; splunkServer.lastExportBody == null && i < 100; i++) {
+        Thread.sleep(50);
+      }
+      assertNotNull(splunkServer.lastExportBody);
+      final Thread other =
+          new Thread(
+              new Runnable() {
+                public void run() {
+                  connection.setSlicing(4, 1000L);
+                  connection.setJobMode(0, 1);
+                }
+              });
+      other.start();
+      other.join(5000);
+      assertFalse("blocked by the statistics search", other.isAlive());
+    } finally {
+      gate.countDown();
+      fetcher.join(5000);
+    }
+    assertEquals(1000d, connection.getEventStatistics().count, 0d);
+    assertEquals(
+        "[[null, 1250000, 1500000, 1750000, null]]", bounds.toString());
+  }
+
+  /** Tests that a connection splits a long time range into slices, runs
+   * them, and returns all rows, merged in time order if asked. */
+  public void testSlicing() throws Exception {
+    server.close();
+    final TimeStubServer timeServer = new TimeStubServer();
+    server = timeServer;
+    final SplunkConnection connection =
+        new SplunkConnection(server.url(""), "admin", "changeme");
+    final List<String> fields = Arrays.asList("_time", "source");
+
+    // Without slicing, one search.
+    Enumerator enumerator =
+        connection.getSearchResultIterator(
+            "search", null, fields, 1000000L, 2000000L, 0);
+    assertFalse(enumerator instanceof SlicedEnumerator);
+    enumerator.close();
+
+    // The number of slices depends on the length of the range.
+    connection.setSlicing(4, 250000L);
+    assertEquals(
+        Arrays.asList(1000000L, 1150000L, 1300000L),
+        connection.sliceBounds(1000000L, 1300000L));
+    assertEquals(5, connection.sliceBounds(1000000L, 2000000L).size());
+    assertEquals(5, connection.sliceBounds(1000000L, 9000000L).size());
+
+    for (int timeOrder : new int[] {-1, 0, 1}) {
+      enumerator =
+          connection.getSearchResultIterator(
+              "search", null, fields, 1000000L, 2000000L, timeOrder);
+      assertTrue(enumerator instanceof SlicedEnumerator);
+      final Set<Long> times = new HashSet<Long>();
+      Long previous = null;
+      while (enumerator.moveNext()) {
+        final Long time = (Long) ((Object[]) enumerator.current())[0];
+        assertTrue(times.add(time));
+        if (previous != null && timeOrder != 0) {
+          assertEquals(
+              "" + previous + ", " + time,
+              timeOrder > 0, time > previous);
+        }
+        previous = time;
+      }
+      enumerator.close();
+      assertEquals(1000, times.size());
+      final List<SlicedEnumerator.Slice> slices =
+          ((SlicedEnumerator) enumerator).getSlices();
+      assertEquals(4, slices.size());
+      for (SlicedEnumerator.Slice slice : slices) {
+        assertEquals(250, slice.getRowCount());
+        assertTrue(slice.getElapsedMillis() >= 0);
+      }
+    }
+  }
+
+  /** Tests that if a slice fails, the consumer receives the error, rather
+   * than the rows of the other slices as if they were all. */
+  public void testSlicingError() throws Exception {
+    server.close();
+    final TimeStubServer timeServer = new TimeStubServer();
+    timeServer.failEarliest = 1250;
+    server = timeServer;
+    final SplunkConnection connection =
+        new SplunkConnection(server.url(""), "admin", "changeme");
+    connection.setSlicing(4, 250000L);
+    final List<String> fields = Arrays.asList("_time", "source");
+    for (int timeOrder : new int[] {-1, 0, 1}) {
+      final Enumerator enumerator =
+          connection.getSearchResultIterator(
+              "search", null, fields, 1000000L, 2000000L, timeOrder);
+      int count = 0;
+      try {
+        while (enumerator.moveNext()) {
+          ++count;
+        }
+        fail("expected error, got " + count + " rows");
+      } catch (RuntimeException e) {
+        assertTrue(count < 1000);
+      } finally {
+        enumerator.close();
+      }
+    }
+  }
+
+  /** Tests that if a slice of a split "| stats" fails, the merge throws,
+   * rather than returning aggregates of the other slices. */
+  public void testPartialStatsError() throws Exception {
+    server.close();
+    final TimeStubServer timeServer = new TimeStubServer();
+    timeServer.failEarliest = 1250;
+    server = timeServer;
+    final SplunkConnection connection =
+        new SplunkConnection(server.url(""), "admin", "changeme");
+    connection.setSlicing(4, 250000L);
+    final Enumerator enumerator =
+        connection.getSearchResultIterator(
+            "search x | stats count AS c", null, Arrays.asList("c"),
+            1000000L, 2000000L, 0);
+    try {
+      enumerator.moveNext();
+      fail("expected error, got " + enumerator.current());
+    } catch (RuntimeException e) {
+      // ok
+    } finally {
+      enumerator.close();
+    }
+  }
+
+  /** Tests that two sliced searches on one connection, read alternately,
+   * do not wait for each other's slices. */
+  public void testSlicingInterleaved() throws Exception {
+    server.close();
+    server = new TimeStubServer();
+    final SplunkConnection connection =
+        new SplunkConnection(server.url(""), "admin", "changeme");
+    connection.setSlicing(4, 250000L);
+    // Small batches, so that each slice fills its queue and waits.
+    connection.setPrefetch(1, 1);
+    final List<String> fields = Arrays.asList("_time", "source");
+    final int[] counts = new int[2];
+    final Thread thread =
+        new Thread(
+            new Runnable() {
+              public void run() {
+                final Enumerator first =
+                    connection.getSearchResultIterator(
+                        "search", null, fields, 1000000L, 2000000L, 1);
+                final Enumerator second =
+                    connection.getSearchResultIterator(
+                        "search", null, fields, 1000000L, 2000000L, 1);
+                boolean more = true;
+                while (more) {
+                  more = false;
+                  if (first.moveNext()) {
+                    ++counts[0];
+                    more = true;
+                  }
+                  if (second.moveNext()) {
+                    ++counts[1];
+                    more = true;
+                  }
+                }
+                first.close();
+                second.close();
+              }
+            });
+    thread.setDaemon(true);
+    thread.start();
+    thread.join(10000);
+    assertFalse("deadlocked", thread.isAlive());
+    assertEquals(1000, counts[0]);
+    assertEquals(1000, counts[1]);
+  }
+
+  /** Tests that the slices of a search merged in time order start in merge
+   * order, so that a connection limited to fewer searches than slices does
+   * not start a later slice that waits for the consumer while the consumer
+   * waits for an earlier slice. */
+  public void testSlicingAdmission() throws Exception {
+    server.close();
+    server = new TimeStubServer();
+    final SplunkConnection connection =
+        new SplunkConnection(server.url(""), "admin", "changeme");
+    connection.setSlicing(3, 300000L);
+    connection.setPrefetch(1, 1);
+    connection.setMaxActiveSearches(1);
+    connection.setQueueTimeout(5000);
+    final List<String> fields = Arrays.asList("_time", "source");
+    for (int i = 0; i < 10; i++) {
+      final int timeOrder = i % 2 == 0 ? 1 : -1;
+      final Enumerator enumerator =
+          connection.getSearchResultIterator(
+              "search", null, fields, 1000000L, 1900000L, timeOrder);
+      assertEquals(
+          3, ((SlicedEnumerator) enumerator).getSlices().size());
+      Long previous = null;
+      int count = 0;
+      while (enumerator.moveNext()) {
+        final Long time = (Long) ((Object[]) enumerator.current())[0];
+        if (previous != null) {
+          assertEquals(timeOrder > 0, time > previous);
+        }
+        previous = time;
+        ++count;
+      }
+      enumerator.close();
+      assertEquals(900, count);
+    }
+    assertEquals(0, connection.getScheduler().getTimeoutCount());
+  }
+
+  /** Tests that {@link PartialStats} splits a "| stats" into partial
+   * aggregates, and merges them. */
+  public void testPartialStats() {
+    assertNull(PartialStats.of("search x | stats dc(y) AS a by z"));
+    assertNull(PartialStats.of("search x | stats count AS a | where a>1"));
+    assertNull(PartialStats.of("search x | head 5 | stats count AS a"));
+    assertNull(PartialStats.of("search x | stats sum(y)"));
+
+    final PartialStats stats =
+        PartialStats.of(
+            "search x | bin _time span=1h | stats count AS c, sum(b) AS s,"
+            + " avg(b) AS a, min(h) AS lo, max(h) AS hi by _time host");
+    assertNotNull(stats);
+    assertEquals(
+        "search x | bin _time span=1h | stats count AS c, sum(b) AS s,"
+        + " sum(b) AS a_sum, count(b) AS a_count, min(h) AS lo,"
+        + " max(h) AS hi by _time host",
+        stats.getSearch());
+    assertEquals(
+        Arrays.asList(
+            "_time", "host", "c", "s", "a_sum", "a_count", "lo", "hi"),
+        stats.getFieldList());
+
+    // Two slices, each with a partial row for group (1, "h1").
+    final List<Object[]> partials =
+        Arrays.asList(
+            new Object[] {1L, "h1", "3", "6", "6", "3", "9", "10"},
+            new Object[] {2L, "h1", "1", "2.5", "2.5", "1", "a", "a"},
+            new Object[] {1L, "h1", "2", "4", "4", "2", "10", "2"},
+            // Numbers come before other values, whatever the order of the
+            // slices, although "10" < "5a" < "9" as strings.
+            new Object[] {3L, "h1", "1", "1", "1", "1", "9", "5a"},
+            new Object[] {3L, "h1", "1", "1", "1", "1", "10", "10"},
+            new Object[] {3L, "h1", "1", "1", "1", "1", "5a", "9"});
+    final Enumerator enumerator =
+        stats.merge(
+            new ListEnumerator(partials),
+            Arrays.asList("host", "_time", "c", "s", "a", "lo", "hi"));
+    final List<String> rows = new ArrayList<String>();
+    while (enumerator.moveNext()) {
+      rows.add(Arrays.toString((Object[]) enumerator.current()));
+    }
+    enumerator.close();
+    Collections.sort(rows);
+    assertEquals(
+        "[[h1, 1, 5, 10, 2.0, 9, 10], [h1, 2, 1, 2.5, 2.5, a, a],"
+        + " [h1, 3, 3, 3, 1.0, 9, 5a]]",
+        rows.toString());
+
+    // Without groups, one row even if there are no partial rows.
+    final PartialStats total = PartialStats.of("search x | stats count AS c");
+    final Enumerator empty =
+        total.merge(
+            new ListEnumerator(Collections.<Object[]>emptyList()),
+            Arrays.asList("c"));
+    assertTrue(empty.moveNext());
+    assertEquals("0", empty.current());
+    assertFalse(empty.moveNext());
+  }
+
+  /** Tests that a connection that prefetches returns all rows, in
+   * order. */
+  public void testPrefetch() throws Exception {
+    final StringBuilder buf = new StringBuilder("source,sourcetype\n");
+    for (int i = 0; i < 1000; i++) {
+      buf.append("s").append(i).append(",t\n");
+    }
+    server.close();
+    server = new SplunkStubServer(buf.toString());
+    final SplunkConnection connection =
+        new SplunkConnection(server.url(""), "admin", "changeme");
+    connection.setPrefetch(2, 16);
+    final Enumerator enumerator =
+        connection.getSearchResultIterator(
+            "search", new HashMap<String, String>(), Arrays.asList("source"));
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(enumerator.moveNext());
+      assertEquals("s" + i, enumerator.current());
+    }
+    assertFalse(enumerator.moveNext());
+    assertFalse(enumerator.moveNext());
+    enumerator.close();
+  }
+
+  /** Tests that the producer of a {@link PrefetchEnumerator} reads a
+   * limited number of rows ahead of the consumer, and stops, and closes its
+   * source, when the consumer closes. */
+  public void testPrefetchBackPressure() throws Exception {
+    final CountingEnumerator source = new CountingEnumerator(1000000, -1);
+    final PrefetchEnumerator<Integer> enumerator =
+        new PrefetchEnumerator<Integer>(source, 10, 3);
+    assertTrue(enumerator.moveNext());
+    assertEquals(0, enumerator.current().intValue());
+    Thread.sleep(100);
+    // 3 batches in the queue, plus the consumer's and the producer's.
+    assertTrue(source.count.get() <= 50);
+    enumerator.close();
+    Thread.sleep(100);
+    assertTrue(source.closed);
+  }
+
+  /** Tests that a {@link PrefetchEnumerator} whose consumer is slow, so that
+   * the producer hands over a batch for almost every row, reuses batches
+   * rather than allocating one per row. */
+  public void testPrefetchReusesBatches() throws Exception {
+    final CountingEnumerator source = new CountingEnumerator(200, -1);
+    final PrefetchEnumerator<Integer> enumerator =
+        new PrefetchEnumerator<Integer>(source, 256, 2);
+    for (int i = 0; i < 200; i++) {
+      assertTrue(enumerator.moveNext());
+      assertEquals(i, enumerator.current().intValue());
+      Thread.sleep(1);
+    }
+    assertFalse(enumerator.moveNext());
+    enumerator.close();
+    // 2 batches in the queue, plus the consumer's and the producer's.
+    assertTrue(
+        "batches: " + enumerator.getBatchCount(),
+        enumerator.getBatchCount() <= 4);
+  }
+
+  /** Tests that an exception thrown by the source of a
+   * {@link PrefetchEnumerator} is thrown to the consumer, after the rows
+   * that preceded it. */
+  public void testPrefetchError() throws Exception {
+    final CountingEnumerator source = new CountingEnumerator(100, 25);
+    final PrefetchEnumerator<Integer> enumerator =
+        new PrefetchEnumerator<Integer>(source, 10, 3);
+    for (int i = 0; i < 25; i++) {
+      assertTrue(enumerator.moveNext());
+      assertEquals(i, enumerator.current().intValue());
+    }
+    try {
+      enumerator.moveNext();
+      fail("expected error");
+    } catch (IllegalStateException e) {
+      assertEquals("row 25", e.getMessage());
+    }
+    enumerator.close();
+  }
+
+  /** Tests that closing a search's enumerator before the end closes the
+   * connection, so that Splunk stops the search, with and without
+   * prefetch. */
+  public void testCloseAbortsSearch() throws Exception {
+    for (final int prefetch : new int[] {0, 1}) {
+      server.close();
+      final CountDownLatch aborted = new CountDownLatch(1);
+      server = new SplunkStubServer("") {
+        void respond(
+            String method,
+            String path,
+            Map<String, String> headers,
+            String body,
+            OutputStream out) throws IOException {
+          if (!path.equals("/services/search/jobs/export")) {
+            super.respond(method, path, headers, body, out);
+            return;
+          }
+          // An endless stream of results.
+          out.write(
+              "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                  .getBytes("ISO-8859-1"));
+          try {
+            out.write("7\r\nsource\n\r\n".getBytes("ISO-8859-1"));
+            for (;;) {
+              out.write("2\r\nx\n\r\n".getBytes("ISO-8859-1"));
+              out.flush();
+              Thread.sleep(1);
+            }
+          } catch (IOException e) {
+            aborted.countDown();
+            throw e;
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      final SplunkConnection connection =
+          new SplunkConnection(server.url(""), "admin", "changeme");
+      connection.setPrefetch(prefetch, 1);
+      final Enumerator enumerator =
+          connection.getSearchResultIterator(
+              "search", new HashMap<String, String>(),
+              Arrays.asList("source"));
+      assertTrue(enumerator.moveNext());
+      assertEquals("x", enumerator.current());
+      enumerator.close();
+      assertTrue(
+          "prefetch " + prefetch, aborted.await(5, TimeUnit.SECONDS));
+    }
+  }
+
+  /** Tests that {@link CsvParser} can skip fields without decoding them. */
+  public void testCsvParserSelectedFields() throws IOException {
+    final CsvParser parser =
+        new CsvParser(
+            new ByteArrayInputStream("a,\"b\"\"\",c\nd,e\n\n".getBytes()), 4);
+    assertEquals(3, parser.next());
+    assertEquals("b\"", parser.get(1));
+    assertEquals(2, parser.next());
+    assertEquals("e", parser.get(1));
+    assertEquals(1, parser.next());
+    assertEquals("", parser.get(0));
+    assertEquals(-1, parser.next());
+    assertEquals(-1, parser.next());
+  }
+
+  /** Enumerator over the integers 0 to {@code size - 1}, that fails at
+   * {@code failAt} (if not negative). */
+  private static class CountingEnumerator implements Enumerator<Integer> {
+    final AtomicInteger count = new AtomicInteger();
+    final int size;
+    final int failAt;
+    volatile boolean closed;
+    int current = -1;
+
+    CountingEnumerator(int size, int failAt) {
+      this.size = size;
+      this.failAt = failAt;
+    }
+
+    public Integer current() {
+      return current;
+    }
+
+    public boolean moveNext() {
+      if (current + 1 == failAt) {
+        throw new IllegalStateException("row " + failAt);
+      }
+      if (current + 1 == size) {
+        return false;
+      }
+      ++current;
+      count.incrementAndGet();
+      return true;
+    }
+
+    public void reset() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+      closed = true;
+    }
+  }
+
+  /** Enumerator over a list of rows. */
+  private static class ListEnumerator implements Enumerator<Object> {
+    final List<Object[]> rows;
+    int index = -1;
+
+    ListEnumerator(List<Object[]> rows) {
+      this.rows = rows;
+    }
+
+    public Object current() {
+      return rows.get(index);
+    }
+
+    public boolean moveNext() {
+      return ++index < rows.size();
+    }
+
+    public void reset() {
+      index = -1;
+    }
+
+    public void close() {
+    }
+  }
+
+  /**
+   * Minimal HTTP/1.1 server that supports keep-alive. By default, each
+   * response body echoes the method, path and body of the request.
+   */
+  static class StubServer implements Runnable {
+    final ServerSocket serverSocket;
+    final Thread thread;
+    final AtomicInteger connectionCount = new AtomicInteger();
+    final AtomicInteger requestCount = new AtomicInteger();
+    final List<Socket> sockets =
+        Collections.synchronizedList(new ArrayList<Socket>());
+    volatile boolean chunked;
+    volatile int status = 200;
+    /** Whether to close a connection, without responding, when it receives
+     * its second request. */
+    volatile boolean dropReused;
+    /** Whether to close a connection after each response. */
+    volatile boolean closeAfterResponse;
+
+    StubServer() throws IOException {
+      serverSocket =
+          new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+      thread = new Thread(this, "stub-http-server");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    String url(String path) {
+      return "http://localhost:" + serverSocket.getLocalPort() + path;
+    }
+
+    public void run() {
+      try {
+        for (;;) {
+          final Socket socket = serverSocket.accept();
+          connectionCount.incrementAndGet();
+          sockets.add(socket);
+          final Thread t =
+              new Thread(
+                  new Runnable() {
+                    public void run() {
+                      serve(socket);
+                    }
+                  });
+          t.setDaemon(true);
+          t.start();
+        }
+      } catch (IOException e) {
+        // server closed
+      }
+    }
+
+    void serve(Socket socket) {
+      try {
+        final InputStream in = new BufferedInputStream(socket.getInputStream());
+        final OutputStream out = socket.getOutputStream();
+        for (int i = 0;; i++) {
+          final String requestLine = readLine(in);
+          if (requestLine == null) {
+            break;
+          }
+          final Map<String, String> headers = new HashMap<String, String>();
+          String line;
+          while ((line = readLine(in)) != null && line.length() > 0) {
+            final int colon = line.indexOf(':');
+            headers.put(
+                line.substring(0, colon).trim().toLowerCase(),
+                line.substring(colon + 1).trim());
+          }
+          final String length = headers.get("content-length");
+          final byte[] body =
+              new byte[length == null ? 0 : Integer.parseInt(length)];
+          new DataInputStream(in).readFully(body);
+          requestCount.incrementAndGet();
+          if (dropReused && i > 0) {
+            break;
+          }
+          final String[] parts = requestLine.split(" ");
+          respond(parts[0], parts[1], headers, new String(body, "UTF-8"), out);
+          out.flush();
+          if (closeAfterResponse) {
+            break;
+          }
+        }
+      } catch (IOException e) {
+        // client went away
+      } finally {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+
+    /** Writes a response. Override to change behavior. */
+    void respond(
+        String method,
+        String path,
+        Map<String, String> headers,
+        String body,
+        OutputStream out) throws IOException {
+      write(out, status, (method + " " + path + " " + body).getBytes("UTF-8"));
+    }
+
+    void write(OutputStream out, int status, byte[] content)
+        throws IOException {
+      write(out, status, Collections.<String, String>emptyMap(), content);
+    }
+
+    void write(
+        OutputStream out,
+        int status,
+        Map<String, String> headers,
+        byte[] content) throws IOException {
+      final StringBuilder buf = new StringBuilder();
+      buf.append("HTTP/1.1 ").append(status).append(" Status\r\n");
+      for (Map.Entry<String, String> entry : headers.entrySet()) {
+        buf.append(entry.getKey()).append(": ").append(entry.getValue())
+            .append("\r\n");
+      }
+      if (chunked) {
+        buf.append("Transfer-Encoding: chunked\r\n\r\n");
+        out.write(buf.toString().getBytes("ISO-8859-1"));
+        // Send the content in two chunks.
+        final int half = content.length / 2;
+        writeChunk(out, content, 0, half);
+        writeChunk(out, content, half, content.length - half);
+        out.write("0\r\n\r\n".getBytes("ISO-8859-1"));
+      } else {
+        buf.append("Content-Length: ").append(content.length)
+            .append("\r\n\r\n");
+        out.write(buf.toString().getBytes("ISO-8859-1"));
+        out.write(content);
+      }
+    }
+
+    private void writeChunk(OutputStream out, byte[] b, int off, int len)
+        throws IOException {
+      if (len == 0) {
+        return;
+      }
+      out.write((Integer.toHexString(len) + "\r\n").getBytes("ISO-8859-1"));
+      out.write(b, off, len);
+      out.write("\r\n".getBytes("ISO-8859-1"));
+    }
+
+    static String readLine(InputStream in) throws IOException {
+      final StringBuilder buf = new StringBuilder();
+      int c;
+      while ((c = in.read()) >= 0) {
+        if (c == '\n') {
+          final int n = buf.length();
+          if (n > 0 && buf.charAt(n - 1) == '\r') {
+            buf.setLength(n - 1);
+          }
+          return buf.toString();
+        }
+        buf.append((char) c);
+      }
+      return buf.length() == 0 ? null : buf.toString();
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+      synchronized (sockets) {
+        for (Socket socket : sockets) {
+          socket.close();
+        }
+      }
+    }
+  }
+
+  /** Stub server whose exports return an event every second between
+   * the search's "earliest_time" and "latest_time", latest first unless
+   * the search sorts by ascending "_time". */
+  static class TimeStubServer extends SplunkStubServer {
+    /** If not null, a search whose range starts at this time fails. */
+    volatile Integer failEarliest;
+
+    TimeStubServer() throws IOException {
+      super("");
+    }
+
+    void respond(
+        String method,
+        String path,
+        Map<String, String> headers,
+        String body,
+        OutputStream out) throws IOException {
+      if (!path.equals("/services/search/jobs/export")) {
+        super.respond(method, path, headers, body, out);
+        return;
+      }
+      final Map<String, String> args = new HashMap<String, String>();
+      for (String arg : body.split("&")) {
+        final String[] pair = arg.split("=", 2);
+        args.put(pair[0], URLDecoder.decode(pair[1], "UTF-8"));
+      }
+      final int earliest =
+          (int) Double.parseDouble(args.get("earliest_time"));
+      final int latest = (int) Double.parseDouble(args.get("latest_time"));
+      if (failEarliest != null && failEarliest == earliest) {
+        write(out, 400, "bad search".getBytes("UTF-8"));
+        return;
+      }
+      final boolean ascending = args.get("search").endsWith("+_time");
+      final StringBuilder buf = new StringBuilder("_time,source\n");
+      for (int i = earliest; i < latest; i++) {
+        final int t = ascending ? i : earliest + latest - 1 - i;
+        buf.append(t).append(".000,s").append(t).append('\n');
+      }
+      write(out, 200, buf.toString().getBytes("UTF-8"));
+    }
+  }
+
+  /** Stub server that runs search jobs, each of which is done from its
+   * second poll, unless the server is told to be slow, and returns a given
+   * number of rows. */
+  static class JobStubServer extends SplunkStubServer {
+    final int rowCount;
+    final AtomicInteger createCount = new AtomicInteger();
+    final AtomicInteger pollCount = new AtomicInteger();
+    final AtomicInteger pageCount = new AtomicInteger();
+    final Set<String> polled =
+        Collections.synchronizedSet(new HashSet<String>());
+    final List<String> cancelled =
+        Collections.synchronizedList(new ArrayList<String>());
+    /** Whether jobs never finish. */
+    volatile boolean slow;
+    /** Number of page requests whose response to break off midway. */
+    final AtomicInteger brokenPages = new AtomicInteger();
+
+    JobStubServer(int rowCount) throws IOException {
+      super("");
+      this.rowCount = rowCount;
+    }
+
+    void respond(
+        String method,
+        String path,
+        Map<String, String> headers,
+        String body,
+        OutputStream out) throws IOException {
+      final String[] parts = path.split("\\?", 2);
+      final Map<String, String> args = new HashMap<String, String>();
+      if (parts.length > 1) {
+        for (String arg : parts[1].split("&")) {
+          final String[] pair = arg.split("=", 2);
+          args.put(pair[0], URLDecoder.decode(pair[1], "UTF-8"));
+        }
+      }
+      if (parts[0].equals("/services/search/jobs")) {
+        write(
+            out, 201,
+            ("<response>\n<sid>job" + createCount.incrementAndGet()
+                + "</sid>\n</response>\n").getBytes("UTF-8"));
+      } else if (parts[0].matches("/services/search/jobs/job[0-9]+")) {
+        pollCount.incrementAndGet();
+        final String state =
+            polled.add(parts[0]) || slow ? "RUNNING" : "DONE";
+        write(
+            out, 200,
+            ("{\"entry\":[{\"content\":{\"dispatchState\":\"" + state
+                + "\",\"resultCount\":" + rowCount + ",\"ttl\":600}}]}")
+                .getBytes("UTF-8"));
+      } else if (parts[0].matches("/services/search/jobs/job[0-9]+/control")
+          && method.equals("POST")
+          && body.equals("action=cancel")) {
+        cancelled.add(parts[0].split("/")[4]);
+        write(out, 200, "<response/>".getBytes("UTF-8"));
+      } else if (parts[0].matches("/services/search/jobs/job[0-9]+/results")) {
+        pageCount.incrementAndGet();
+        final int offset = Integer.parseInt(args.get("offset"));
+        final int count = Integer.parseInt(args.get("count"));
+        final StringBuilder buf = new StringBuilder("source\n");
+        for (int i = offset; i < Math.min(offset + count, rowCount); i++) {
+          buf.append('r').append(i).append('\n');
+        }
+        final byte[] bytes = buf.toString().getBytes("UTF-8");
+        if (brokenPages.getAndDecrement() > 0) {
+          out.write(
+              ("HTTP/1.1 200 Status\r\nContent-Length: " + bytes.length
+                  + "\r\n\r\n").getBytes("ISO-8859-1"));
+          out.write(bytes, 0, bytes.length / 2);
+          out.flush();
+          throw new IOException("broken off");
+        }
+        write(out, 200, bytes);
+      } else {
+        super.respond(method, path, headers, body, out);
+      }
+    }
+  }
+
+  /** Stub server that handles the Splunk login and export requests. */
+  static class SplunkStubServer extends StubServer {
+    final AtomicInteger loginCount = new AtomicInteger();
+    volatile String csv;
+    volatile boolean requireAuth;
+    volatile String sessionKey;
+    volatile String lastExportBody;
+    /** If not null, exports wait until it is counted down. */
+    volatile CountDownLatch exportGate;
+
+    SplunkStubServer(String csv) throws IOException {
+      this.csv = csv;
+    }
+
+    void respond(
+        String method,
+        String path,
+        Map<String, String> headers,
+        String body,
+        OutputStream out) throws IOException {
+      if (path.equals("/services/auth/login")) {
+        sessionKey =
+            Integer.toHexString(0xabcd00 + loginCount.incrementAndGet());
+        write(
+            out, 200,
+            ("<response>\n<sessionKey>" + sessionKey
+                + "</sessionKey>\n</response>\n").getBytes("UTF-8"));
+      } else if (requireAuth
+          && !("Splunk " + sessionKey).equals(headers.get("authorization"))) {
+        write(out, 401, "unauthorized".getBytes("UTF-8"));
+      } else if (path.equals("/services/search/jobs/export")) {
+        lastExportBody = body;
+        final CountDownLatch gate = exportGate;
+        if (gate != null) {
+          try {
+            gate.await();
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+          }
+        }
+        final String encoding = headers.get("accept-encoding");
+        if (encoding != null && encoding.contains("gzip")) {
+          final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+          final GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+          gzip.write(csv.getBytes("UTF-8"));
+          gzip.close();
+          write(
+              out, 200,
+              Collections.singletonMap("Content-Encoding", "gzip"),
+              bytes.toByteArray());
+        } else {
+          write(out, 200, csv.getBytes("UTF-8"));
+        }
+      } else {
+        write(out, 404, new byte[0]);
+      }
+    }
+  }
+}
+
+// End SplunkHttpTest.java
@@ -0,0 +1,130 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.optiq.test;
+
+import net.hydromatic.optiq.impl.splunk.util.TrustAllSslSocketFactory;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import javax.net.ssl.*;
+
+/**
+ * Micro-benchmark that measures how many TLS connections per second can be
+ * made to a Splunk management port (or any TLS server).
+ *
+ * <p>Compares creating a new SSL context for each connection (which is what
+ * the driver used to do, so every connection required a full handshake)
+ * with sharing one factory, whose session cache allows abbreviated
+ * handshakes.</p>
+ *
+ * <p>Usage: <code>java SplunkSslBenchmark [host [port [count]]]</code>;
+ * default is localhost 8089 200.</p>
+ */
+public class SplunkSslBenchmark {
+  private SplunkSslBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    final String host = args.length > 0 ? args[0] : "localhost";
+    final int port = args.length > 1 ? Integer.parseInt(args[1]) : 8089;
+    final int count = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+    // Warm up, so that class loading does not count against either mode.
+    run(host, port, count / 10 + 1, false);
+    run(host, port, count / 10 + 1, true);
+
+    System.out.println(
+        "before (new context per connection): "
+        + run(host, port, count, false));
+    System.out.println(
+        "after (shared factory, session cache): "
+        + run(host, port, count, true));
+  }
+
+  private static String run(String host, int port, int count, boolean shared)
+      throws Exception {
+    final SSLSocketFactory sharedFactory =
+        TrustAllSslSocketFactory.getDefaultSSLSocketFactory();
+    int resumed = 0;
+    final long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      final SSLSocketFactory factory =
+          shared ? sharedFactory : newContextFactory();
+      final long connectTime = System.currentTimeMillis();
+      final Socket plain = new Socket();
+      plain.connect(new InetSocketAddress(host, port), 10000);
+      final SSLSocket socket =
+          (SSLSocket) factory.createSocket(plain, host, port, true);
+      socket.setSoTimeout(10000);
+
+      // Make a trivial request and read the status line, as a real client
+      // would. (With TLS 1.3, the server sends the ticket needed to resume
+      // the session after the handshake, so the client must read.)
+      final OutputStream out = socket.getOutputStream();
+      out.write("HEAD / HTTP/1.0\r\n\r\n".getBytes("ISO-8859-1"));
+      out.flush();
+      final InputStream in = socket.getInputStream();
+      int c;
+      while ((c = in.read()) >= 0 && c != '\n') {
+        // skip
+      }
+      // A resumed session was created by an earlier connection.
+      if (socket.getSession().getCreationTime() < connectTime) {
+        ++resumed;
+      }
+      socket.close();
+    }
+    final long nanos = System.nanoTime() - start;
+    return String.format(
+        "%d connections in %d ms, %.1f connections/s, %d resumed",
+        count,
+        nanos / 1000000,
+        count * 1e9 / nanos,
+        resumed);
+  }
+
+  /** Creates a factory with a new SSL context, as
+   * {@code TrustAllSslSocketFactory.createSSLSocketFactory()} used to. */
+  private static SSLSocketFactory newContextFactory() throws Exception {
+    final SSLContext context = SSLContext.getInstance("TLS");
+    context.init(
+        null,
+        new TrustManager[] {
+          new X509TrustManager() {
+            public java.security.cert.X509Certificate[] getAcceptedIssuers() {
+              return null;
+            }
+
+            public void checkClientTrusted(
+                java.security.cert.X509Certificate[] certs, String authType) {
+            }
+
+            public void checkServerTrusted(
+                java.security.cert.X509Certificate[] certs, String authType) {
+            }
+          }
+        },
+        new java.security.SecureRandom());
+    return context.getSocketFactory();
+  }
+}
+
+// End SplunkSslBenchmark.java
@@ -25,12 +25,20 @@ import java.util.Properties;
 
 /**
  * Unit test of the Optiq adapter for Splunk.
+ *
+ * <p>Each query's plan is checked without a Splunk instance. Then the query
+ * is executed against the instance at {@link #SPLUNK_URL}, unless the
+ * "optiq.test.splunk" system property is "false".</p>
  */
 public class SplunkTest extends TestCase {
   public static final String SPLUNK_URL = "https://localhost:8089";
   public static final String SPLUNK_USER = "admin";
   public static final String SPLUNK_PASSWORD = "changeme";
 
+  /** Whether to execute queries; if false, only checks their plans. */
+  private static final boolean ENABLED =
+      !"false".equals(System.getProperty("optiq.test.splunk"));
+
   private void loadDriverClass() {
     try {
       Class.forName("net.hydromatic.optiq.impl.splunk.SplunkDriver");
@@ -171,6 +179,146 @@ public class SplunkTest extends TestCase {
         + "from \"splunk\".\"splunk\"");
   }
 
+  /** Aggregates; the GROUP BY becomes "| stats" in the search. */
+  public void testGroupBy() throws SQLException {
+    checkSql(
+        "select \"sourcetype\", count(\"source\") as c,\n"
+        + " count(distinct \"source\") as dc\n"
+        + "from \"splunk\".\"splunk\"\n"
+        + "group by \"sourcetype\"",
+        "| stats count(source) AS",
+        "dc(source) AS",
+        "by sourcetype");
+  }
+
+  /** Finds the greatest string; Splunk's "max" would compare numbers
+   * numerically, so the aggregate remains in Optiq. */
+  public void testGroupByMaxString() throws SQLException {
+    checkSql(
+        "select \"sourcetype\", max(\"source\") as m\n"
+        + "from \"splunk\".\"splunk\"\n"
+        + "group by \"sourcetype\"",
+        "EnumerableAggregateRel");
+  }
+
+  /** Filters on a condition that Splunk can evaluate and one that it
+   * cannot; the first goes into the search, the second remains. */
+  public void testSelectPartialFilter() throws SQLException {
+    checkSql(
+        "select \"source\", \"sourcetype\"\n"
+        + "from \"splunk\".\"splunk\"\n"
+        + "where \"sourcetype\" = 'access_combined_wcookie'\n"
+        + "and char_length(\"source\") > 10",
+        "sourcetype=access_combined_wcookie");
+  }
+
+  /** Filters using IN, IS NOT NULL and a comparison with the literal on
+   * the left. The first two become part of the search; the comparison of
+   * strings remains, because Splunk would compare numbers numerically. */
+  public void testSelectFilterTranslation() throws SQLException {
+    checkSql(
+        "select \"source\", \"sourcetype\"\n"
+        + "from \"splunk\".\"splunk\"\n"
+        + "where \"sourcetype\" in ('access_combined_wcookie', 'secure')\n"
+        + "and \"source\" is not null\n"
+        + "and ('/var/log' < \"source\" or \"source\" like '%.log')",
+        "sourcetype=secure",
+        "source=*");
+  }
+
+  /** Computes values; the expressions become "| eval" in the search. */
+  public void testSelectEval() throws SQLException {
+    checkSql(
+        "select upper(\"sourcetype\") as st,\n"
+        + " substring(\"source\" from 1 for 4) || '...' as s\n"
+        + "from \"splunk\".\"splunk\"",
+        "| eval",
+        "upper(sourcetype)",
+        "substr(source, 1, 4)");
+  }
+
+  /** Counts events per hour; the buckets become "| bin _time span=1h" in
+   * the search. */
+  public void testGroupByHour() throws SQLException {
+    checkSql(
+        "select floor(\"_time\" to hour) as h, count(*) as c\n"
+        + "from \"splunk\".\"splunk\"\n"
+        + "group by floor(\"_time\" to hour)",
+        "| bin _time span=1h | stats count AS",
+        "by _time");
+  }
+
+  /** Aggregates and filters the groups; the HAVING clause becomes
+   * "| where" after "| stats" in the search. */
+  public void testGroupByHaving() throws SQLException {
+    checkSql(
+        "select \"sourcetype\", count(*) as c\n"
+        + "from \"splunk\".\"splunk\"\n"
+        + "group by \"sourcetype\"\n"
+        + "having count(*) > 100",
+        "| stats",
+        "| where ");
+  }
+
+  /** Finds the most common values; the query becomes "| top" in the
+   * search. */
+  public void testTop() throws SQLException {
+    checkSql(
+        "select \"sourcetype\", count(*) as c\n"
+        + "from \"splunk\".\"splunk\"\n"
+        + "group by \"sourcetype\"\n"
+        + "order by c desc\n"
+        + "limit 3",
+        "| top limit=3");
+  }
+
+  /** Reads a few rows; the limit becomes "| head" in the search. */
+  public void testSelectLimit() throws SQLException {
+    checkSql(
+        "select \"source\", \"sourcetype\"\n"
+        + "from \"splunk\".\"splunk\"\n"
+        + "limit 5",
+        "| head 5");
+  }
+
+  /** Reads the first few rows in order; the sort and limit become
+   * "| sort 5" in the search. Splunk sorts missing values last, so a
+   * descending key must say NULLS LAST. */
+  public void testSelectOrderByLimit() throws SQLException {
+    checkSql(
+        "select \"source\", \"sourcetype\"\n"
+        + "from \"splunk\".\"splunk\"\n"
+        + "order by \"sourcetype\", \"source\" desc nulls last\n"
+        + "limit 5",
+        "| sort 5 +str(sourcetype), -str(source)");
+  }
+
+  /** Reads events in a time range; the range becomes the search's
+   * "earliest_time" and "latest_time". */
+  public void testSelectTimeRange() throws SQLException {
+    checkSql(
+        "select \"_time\", \"source\"\n"
+        + "from \"splunk\".\"splunk\"\n"
+        + "where \"_time\" >= timestamp '2012-01-01 00:00:00'\n"
+        + "and \"_time\" < timestamp '2012-01-02 00:00:00'\n"
+        + "and \"sourcetype\" = 'access_combined_wcookie'",
+        "1325376000.000",
+        "1325462400.000");
+  }
+
+  /** Joins to a few products; the products' keys become part of the
+   * search. */
+  public void testSemiJoin() throws SQLException {
+    checkSql(
+        "select p.\"product_name\", s.\"action\"\n"
+        + "from \"splunk\".\"splunk\" as s\n"
+        + "join \"mysql\".\"products\" as p\n"
+        + "on s.\"product_id\" = p.\"product_id\"\n"
+        + "where p.\"product_name\" like 'Dream%'",
+        "SplunkSemiJoinRel",
+        "keyField=[product_id]");
+  }
+
   public void testSql() throws SQLException {
     checkSql(
         "select p.\"product_name\", /*s.\"product_id\",*/ s.\"action\"\n"
@@ -187,7 +335,16 @@ public class SplunkTest extends TestCase {
 */
   }
 
-  private void checkSql(String sql) throws SQLException {
+  /**
+   * Checks that a query's plan contains each of a list of strings (usually
+   * parts of the Splunk search), then executes the query.
+   *
+   * <p>Planning does not need a Splunk instance: the connection's event
+   * statistics are fetched in the background, and until then the planner
+   * uses its defaults.</p>
+   */
+  private void checkSql(String sql, String... planParts)
+      throws SQLException {
     loadDriverClass();
     Connection connection = null;
     Statement statement = null;
@@ -198,6 +355,17 @@ public class SplunkTest extends TestCase {
       info.put("password", SPLUNK_PASSWORD);
       connection = DriverManager.getConnection("jdbc:splunk:", info);
       statement = connection.createStatement();
+      if (planParts.length > 0) {
+        final String plan = plan(statement, sql);
+        for (String planPart : planParts) {
+          assertTrue(
+              "plan does not contain [" + planPart + "]: " + plan,
+              plan.contains(planPart));
+        }
+      }
+      if (!ENABLED) {
+        return;
+      }
       final ResultSet resultSet =
           statement.executeQuery(
               sql);
@@ -207,6 +375,18 @@ public class SplunkTest extends TestCase {
     }
   }
 
+  /** Returns the plan of a query, as printed by "explain plan for". */
+  private String plan(Statement statement, String sql) throws SQLException {
+    final ResultSet resultSet =
+        statement.executeQuery("explain plan for " + sql);
+    final StringBuilder buf = new StringBuilder();
+    while (resultSet.next()) {
+      buf.append(resultSet.getString(1)).append('\n');
+    }
+    resultSet.close();
+    return buf.toString();
+  }
+
   private void output(
       ResultSet resultSet, PrintStream out) throws SQLException {
     final ResultSetMetaData metaData = resultSet.getMetaData();